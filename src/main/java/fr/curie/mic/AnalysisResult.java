@@ -20,6 +20,12 @@ public class AnalysisResult {
     private Metrics objectMetrics;
     private double[] thresholds;
     private Metrics[] curveMetrics;
+    private BoundaryMetrics boundaryMetrics;
+    private double aggregatedJaccardIndex = Double.NaN;
+    private double aggregatedJaccardIndexPlus = Double.NaN;
+    private double variationOfInformationSplit = Double.NaN;
+    private double variationOfInformationMerge = Double.NaN;
+    private double adjustedRandIndex = Double.NaN;
 
     private int channel;
     private int frame;
@@ -89,6 +95,109 @@ public class AnalysisResult {
         return curveMetrics[index];
     }
 
+    /**
+     * Returns the boundary precision, recall and F1 of the plane and of its objects.
+     *
+     * @return boundary metrics, or null if boundary tolerances were not requested
+     */
+    public BoundaryMetrics getBoundaryMetrics() {
+        return boundaryMetrics;
+    }
+
+    /**
+     * Sets the boundary metrics.
+     *
+     * @param boundaryMetrics boundary metrics of the plane
+     */
+    public void setBoundaryMetrics(BoundaryMetrics boundaryMetrics) {
+        this.boundaryMetrics = boundaryMetrics;
+    }
+
+    /**
+     * Returns the Aggregated Jaccard Index (AJI) of the analysis.
+     *
+     * @return AJI value, NaN if not computed
+     */
+    public double getAggregatedJaccardIndex() {
+        return aggregatedJaccardIndex;
+    }
+
+    /**
+     * Returns the Aggregated Jaccard Index with unique pairing (AJI+) of the analysis.
+     *
+     * @return AJI+ value, NaN if not computed
+     */
+    public double getAggregatedJaccardIndexPlus() {
+        return aggregatedJaccardIndexPlus;
+    }
+
+    /**
+     * Sets the Aggregated Jaccard Indexes.
+     *
+     * @param aji Aggregated Jaccard Index
+     * @param ajiPlus Aggregated Jaccard Index with unique pairing
+     */
+    public void setAggregatedJaccardIndex(double aji, double ajiPlus) {
+        this.aggregatedJaccardIndex = aji;
+        this.aggregatedJaccardIndexPlus = ajiPlus;
+    }
+
+    /**
+     * Returns the split part of the Variation of Information, H(test | truth) in bits.
+     *
+     * @return VI split, NaN if not computed
+     */
+    public double getVariationOfInformationSplit() {
+        return variationOfInformationSplit;
+    }
+
+    /**
+     * Returns the merge part of the Variation of Information, H(truth | test) in bits.
+     *
+     * @return VI merge, NaN if not computed
+     */
+    public double getVariationOfInformationMerge() {
+        return variationOfInformationMerge;
+    }
+
+    /**
+     * Returns the Variation of Information (split + merge) in bits.
+     *
+     * @return VI, NaN if not computed
+     */
+    public double getVariationOfInformation() {
+        return variationOfInformationSplit + variationOfInformationMerge;
+    }
+
+    /**
+     * Sets the two parts of the Variation of Information.
+     *
+     * @param split H(test | truth) in bits
+     * @param merge H(truth | test) in bits
+     */
+    public void setVariationOfInformation(double split, double merge) {
+        this.variationOfInformationSplit = split;
+        this.variationOfInformationMerge = merge;
+    }
+
+    /**
+     * Returns the Adjusted Rand Index between the truth and test labelings.
+     *
+     * @return ARI, NaN if not computed
+     */
+    public double getAdjustedRandIndex() {
+        return adjustedRandIndex;
+    }
+
+    /**
+     * Sets the Adjusted Rand Index.
+     *
+     * @param adjustedRandIndex ARI value
+     */
+    public void setAdjustedRandIndex(double adjustedRandIndex) {
+        this.adjustedRandIndex = adjustedRandIndex;
+    }
+
     /**
      * Returns the IoU thresholds used for curve metrics.
      * 
@@ -259,6 +368,21 @@ public class AnalysisResult {
         return values;
     }
     
+    /**
+     * Extracts panoptic quality values across all thresholds.
+     * 
+     * @return array of PQ values (NaN where the matched IoUs are unknown)
+     */
+    public double[] getPanopticQualityCurve(){
+        double[] values = new double[curveMetrics.length];
+
+        for(int i = 0; i < curveMetrics.length; i++){
+            values[i] = curveMetrics[i].getPanopticQuality();
+        }
+
+        return values;
+    }
+    
     /**
      * Creates an ImageJ Plot with all metric curves.
      * X-axis: IoU threshold, Y-axis: metric value
@@ -268,6 +392,7 @@ public class AnalysisResult {
      * - Green: Sensitivity/Recall (TP/(TP+FN))
      * - Black: Jaccard Index (TP/(TP+FP+FN))
      * - Blue: F1-measure (2*TP/(2*TP+FP+FN))
+     * - Magenta: panoptic quality (sum of matched IoUs/(TP+FP/2+FN/2))
      * 
      * @param title plot title
      * @return ImageJ Plot object
@@ -287,11 +412,15 @@ public class AnalysisResult {
         plot.setColor(Color.BLUE);
         plot.add("line", thresholds, getF1Curve());
 
+        plot.setColor(Color.MAGENTA);
+        plot.add("line", thresholds, getPanopticQualityCurve());
+
         String labels =
                 "precision (tp/(tp+fp))" +
                         "\tsensitivity/recall (tp/(tp+fn))" +
                         "\tjaccard index (tp/(tp+fp+fn))" +
-                        "\tfmeasure ((2*precision*sensitivity)/(precision+sensitivity))";
+                        "\tfmeasure ((2*precision*sensitivity)/(precision+sensitivity))" +
+                        "\tpanoptic quality (sum of matched IoUs/(tp+fp/2+fn/2))";
 
         plot.addLegend(labels);
 
@@ -10,6 +10,8 @@ import ij.process.Blitter;
 import java.awt.*;
 import ij.gui.Roi;
 import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Manages display and output of mask analysis results.
@@ -20,15 +22,21 @@ import java.awt.Rectangle;
  * </p>
  */
 public class AnalysisResultDisplay {
+    private static final long BOOTSTRAP_SEED = 20240101L;
+
     private final ImagePlus truthMaskIP;
     private final ImagePlus testMaskIP;
     private ImagePlus plotHyperStack;
 
     private Metrics[] accumulatedMetrics;
+    // curve metrics of each accumulated slice, resampled for the bootstrap intervals
+    private final List<Metrics[]> sliceCurveMetrics = new ArrayList<>();
     private double[] thresholds;
     private ResultsTable resultsTable;
     private ResultsTable thresholdResultsTable;
     private ResultsTable correspondenceTable;
+    private ResultsTable boundaryObjectsTable;
+    private ResultsTable objectPairsTable;
 
 
     /**
@@ -132,13 +140,14 @@ public class AnalysisResultDisplay {
             accumulatedMetrics = new Metrics[curveMetrics.length];
 
             for(int i = 0; i < accumulatedMetrics.length; i++){
-                accumulatedMetrics[i] = new Metrics(0, 0, 0);
+                accumulatedMetrics[i] = new Metrics(0, 0, 0, 0);
             }
         }
 
         for(int i = 0; i < curveMetrics.length; i++){
             accumulatedMetrics[i].add(curveMetrics[i]);
         }
+        sliceCurveMetrics.add(curveMetrics);
     }
 
     /**
@@ -168,18 +177,30 @@ public class AnalysisResultDisplay {
      * across all IoU thresholds using accumulated metrics.
      */
     public void showSummaryGraph() {
+        showSummaryGraph(0);
+    }
+
+    /**
+     * Generates and displays the summary graph and table of the accumulated metrics, with percentile bootstrap
+     * confidence intervals (95%) over the slices in the table if replicates are requested.
+     *
+     * @param bootstrapReplicates number of bootstrap replicates, 0 for no confidence intervals
+     */
+    public void showSummaryGraph(int bootstrapReplicates) {
 
         if(accumulatedMetrics == null) return;
         double[] precision = new double[thresholds.length];
         double[] sensitivity = new double[thresholds.length];
         double[] jaccard = new double[thresholds.length];
         double[] fmeasure = new double[thresholds.length];
+        double[] panopticQuality = new double[thresholds.length];
         for(int i = 0; i < accumulatedMetrics.length; i++){
             Metrics m = accumulatedMetrics[i];
             precision[i] = m.getPrecision();
             sensitivity[i] = m.getSensitivity();
             jaccard[i] = m.getJaccardIndex();
             fmeasure[i] = m.getF1measure();
+            panopticQuality[i] = m.getPanopticQuality();
         }
         IJ.log("add graphs");
         Plot plot = new Plot("Global IoU Summary", "overlap threshold", "score");
@@ -199,15 +220,29 @@ public class AnalysisResultDisplay {
         plot.setColor(Color.BLUE);
         plot.add("line", thresholds, fmeasure);
         labels += "\tfmeasure ((2*precision*sensitivity)/(precision+sensitivity))";
+        //add panoptic quality
+        plot.setColor(Color.MAGENTA);
+        plot.add("line", thresholds, panopticQuality);
+        labels += "\tpanoptic quality (sum of matched IoUs/(tp+fp/2+fn/2))";
         //add legend
         plot.addLegend(labels);
         plot.setLimits(thresholds[0], thresholds[thresholds.length - 1], 0, 1.1);
         PlotWindow pw = plot.show();
 
+        BootstrapIntervals intervals = null;
+        if (bootstrapReplicates > 0 && sliceCurveMetrics.size() > 1) {
+            IJ.log("bootstrap: " + bootstrapReplicates + " replicates over " + sliceCurveMetrics.size() + " slices");
+            intervals = BootstrapIntervals.compute(sliceCurveMetrics, bootstrapReplicates, 0.95, BOOTSTRAP_SEED);
+        }
+        double meanJaccard = 0;
+        for (double value : jaccard) meanJaccard += value;
+        meanJaccard /= jaccard.length;
+
         ResultsTable rt = new ResultsTable();
         for (int i = 0; i < thresholds.length; i++) {
             if (i != 0) rt.incrementCounter();
             addMetricToTable(rt, accumulatedMetrics[i], thresholds[i]);
+            if (intervals != null) addIntervalsToTable(rt, intervals, i, meanJaccard);
         }
         rt.show(testMaskIP.getTitle() + " sum of all objects");
 
@@ -231,6 +266,40 @@ public class AnalysisResultDisplay {
         rt.addValue("Object Recall/Sensitivity", metric.getSensitivity());
         rt.addValue("Object Jaccard Index", metric.getJaccardIndex());
         rt.addValue("Object F-measure", metric.getF1measure());
+        if(metric.hasPanopticQuality()) addPanopticQuality(rt, "Object", metric);
+    }
+
+    /**
+     * Adds the panoptic, segmentation and recognition qualities of an object matching to the given table.
+     *
+     * @param rt the results table to update
+     * @param method the comparison method name
+     * @param metrics the metrics of a one-to-one matching
+     */
+    private void addPanopticQuality(ResultsTable rt, String method, Metrics metrics){
+        rt.addValue(method + " PQ", metrics.getPanopticQuality());
+        rt.addValue(method + " SQ", metrics.getSegmentationQuality());
+        rt.addValue(method + " RQ", metrics.getRecognitionQuality());
+    }
+
+    /**
+     * Adds the bootstrap confidence intervals of one threshold to the summary table.
+     *
+     * @param rt the summary table
+     * @param intervals bootstrap intervals
+     * @param index index of the IoU threshold
+     * @param meanJaccard mean Jaccard index over the thresholds
+     */
+    private void addIntervalsToTable(ResultsTable rt, BootstrapIntervals intervals, int index, double meanJaccard){
+        String[] names = {"Object Precision", "Object Recall/Sensitivity", "Object Jaccard Index", "Object F-measure"};
+        int[] metrics = {BootstrapIntervals.PRECISION, BootstrapIntervals.RECALL, BootstrapIntervals.JACCARD, BootstrapIntervals.F1};
+        for (int m = 0; m < metrics.length; m++) {
+            rt.addValue(names[m] + " CI low", intervals.getLow(metrics[m], index));
+            rt.addValue(names[m] + " CI high", intervals.getHigh(metrics[m], index));
+        }
+        rt.addValue("Object mean Jaccard", meanJaccard);
+        rt.addValue("Object mean Jaccard CI low", intervals.getMeanJaccardLow());
+        rt.addValue("Object mean Jaccard CI high", intervals.getMeanJaccardHigh());
     }
 
     /**
@@ -350,6 +419,16 @@ public class AnalysisResultDisplay {
        addMetric(thresholdResultsTable, method, metrics, threshold);
     }
 
+    /**
+     * Adds metrics to the current row of the threshold table without repeating the threshold column.
+     *
+     * @param method the comparison method name
+     * @param metrics the metrics object
+     */
+    public void addThresholdMetric(String method, Metrics metrics){
+        addMetric(thresholdResultsTable, method, metrics, -1);
+    }
+
     /**
     * Internal method to add metrics to the specified results table.
     *
@@ -368,6 +447,7 @@ public class AnalysisResultDisplay {
         rt.addValue(method + " Recall/Sensitivity", metrics.getSensitivity());
         rt.addValue(method + " Jaccard Index", metrics.getJaccardIndex());
         rt.addValue(method + " F-measure", metrics.getF1measure());
+        if(metrics.hasPanopticQuality()) addPanopticQuality(rt, method, metrics);
     }
 
     /**
@@ -400,6 +480,31 @@ public class AnalysisResultDisplay {
         resultsTable.addValue("Test objects", testObjects);
     }
 
+    /**
+     * Records the Aggregated Jaccard Indexes (AJI and AJI+) in the main table.
+     *
+     * @param aji Aggregated Jaccard Index
+     * @param ajiPlus Aggregated Jaccard Index with unique pairing
+     */
+    public void addAggregatedJaccardIndex(double aji, double ajiPlus){
+        resultsTable.addValue("Object AJI", aji);
+        resultsTable.addValue("Object AJI+", ajiPlus);
+    }
+
+    /**
+     * Records the clustering agreement scores (Variation of Information and Adjusted Rand Index) in the main table.
+     *
+     * @param viSplit VI split, H(test | truth) in bits
+     * @param viMerge VI merge, H(truth | test) in bits
+     * @param ari Adjusted Rand Index
+     */
+    public void addClusteringScores(double viSplit, double viMerge, double ari){
+        resultsTable.addValue("VI split", viSplit);
+        resultsTable.addValue("VI merge", viMerge);
+        resultsTable.addValue("VI", viSplit + viMerge);
+        resultsTable.addValue("ARI", ari);
+    }
+
     /**
      * Records mean average precision scores from analysis result.
      *
@@ -438,6 +543,62 @@ public class AnalysisResultDisplay {
         thresholdResultsTable.addValue("AP = precision*sensitivity", metric.getAP());
     }
 
+    /**
+     * Records the boundary precision, recall and F1 of the current plane for every tolerance.
+     *
+     * @param boundary boundary metrics of the plane
+     */
+    public void addBoundaryScores(BoundaryMetrics boundary){
+        double[] tolerances = boundary.getTolerances();
+        for(int k = 0; k < tolerances.length; k++){
+            String suffix = " (d=" + IJ.d2s(tolerances[k], 4, 9) + ")";
+            resultsTable.addValue("Boundary precision" + suffix, boundary.getPrecision(k));
+            resultsTable.addValue("Boundary recall" + suffix, boundary.getRecall(k));
+            resultsTable.addValue("Boundary F1" + suffix, boundary.getF1(k));
+        }
+    }
+
+    /**
+     * Records one row per truth and test object with its size, bounding box, centroid, best partner and category.
+     *
+     * @param channel the channel index
+     * @param frame the frame index
+     * @param slice the slice index
+     * @param pairs per-object statistics of the plane
+     */
+    public void addObjectPairs(int channel, int frame, int slice, ObjectPairStatistics pairs){
+        if(objectPairsTable == null) objectPairsTable = new ResultsTable();
+        pairs.appendTo(objectPairsTable, truthMaskIP.getTitle() + "/" + testMaskIP.getTitle(), channel, frame, slice);
+    }
+
+    /**
+     * Records one row per truth object with its paired test object and boundary scores.
+     *
+     * @param channel the channel index
+     * @param frame the frame index
+     * @param slice the slice index
+     * @param boundary boundary metrics of the plane
+     */
+    public void addBoundaryObjects(int channel, int frame, int slice, BoundaryMetrics boundary){
+        if(boundaryObjectsTable == null) boundaryObjectsTable = new ResultsTable();
+        double[] tolerances = boundary.getTolerances();
+        for(int label = 1; label <= boundary.getMaxTruth(); label++){
+            boundaryObjectsTable.incrementCounter();
+            boundaryObjectsTable.addValue("Truth image", truthMaskIP.getTitle());
+            boundaryObjectsTable.addValue("Test image", testMaskIP.getTitle());
+            boundaryObjectsTable.addValue("channel", channel);
+            boundaryObjectsTable.addValue("frame", frame);
+            boundaryObjectsTable.addValue("slice", slice);
+            boundaryObjectsTable.addValue("truth object", label);
+            boundaryObjectsTable.addValue("test object", boundary.getMatchedTest(label));
+            for(int k = 0; k < tolerances.length; k++){
+                String suffix = " (d=" + IJ.d2s(tolerances[k], 4, 9) + ")";
+                boundaryObjectsTable.addValue("Boundary recall" + suffix, boundary.getObjectRecall(k, label));
+                boundaryObjectsTable.addValue("Boundary F1" + suffix, boundary.getObjectF1(k, label));
+            }
+        }
+    }
+
     /**
      * Advances the main results table counter to a new row.
      */
@@ -479,6 +640,8 @@ public class AnalysisResultDisplay {
         resultsTable.show("Mask comparison results");
         if(pixelObjectMethod) thresholdResultsTable.show("Mask comparison Object with IoU thresholds");
         if((pixelObjectMethod || objectMethod) && showCorrespondances) correspondenceTable.show("Objects correspondences");
+        if(boundaryObjectsTable != null) boundaryObjectsTable.show("Boundary F1 per object");
+        if(objectPairsTable != null) objectPairsTable.show("Object pairs");
     }
 
     /**
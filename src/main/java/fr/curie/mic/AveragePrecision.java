@@ -0,0 +1,307 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+/**
+ * COCO-style average precision of scored detections (test objects) against truth objects.
+ * <p>
+ * Detections are ranked by decreasing score and each one is matched, in that order, to the unmatched
+ * truth object with the highest IoU at least equal to the threshold. Precision is made monotonic
+ * (interpolated) and averaged at 101 recall points (0, 0.01, ..., 1).
+ * The IoU matrix is read once to keep, for each detection, its truth candidates above a minimum IoU,
+ * so evaluating several thresholds only costs the candidate lists.
+ * Objects marked as not analyzed in the IoU matrix (-1) are ignored. When the overlaps are given, a detection
+ * that finds no analyzed truth object but overlaps a truth object that is not analyzed (filtered by size,
+ * distance to border or evaluation region) with an IoU at least equal to the threshold is matched to it and
+ * dropped from the ranking, as detections on COCO ignore regions: it is neither a true nor a false positive.
+ * </p>
+ */
+public class AveragePrecision {
+    private static final int RECALL_POINTS = 101;
+
+    private final int nTruth;
+    private final int maxTruth;
+    private final int[] order;
+    private final double[] rankedScores;
+    private final int[] start;
+    private final int[] candidates;
+    private final float[] candidateIoUs;
+    // candidates among the truth objects not analyzed, null without overlaps
+    private final int[] ignoredStart;
+    private final int[] ignoredCandidates;
+    private final float[] ignoredIoUs;
+
+    /**
+     * Extracts ranked detections and their candidate matches from an IoU matrix.
+     *
+     * @param iou IoU matrix (x = truth label, y = test label, 0 = background)
+     * @param scores confidence of each test object, indexed by test label (index 0 unused);
+     *               NaN scores are ranked last
+     * @param minIoU lowest IoU threshold that will be evaluated
+     */
+    public AveragePrecision(ImageProcessor iou, double[] scores, double minIoU) {
+        this(iou, null, null, null, scores, minIoU);
+    }
+
+    /**
+     * Extracts ranked detections and their candidate matches from an IoU matrix, and the truth objects not
+     * analyzed that they overlap from the 2D histogram, so that detections on these objects are ignored.
+     *
+     * @param iou IoU matrix (x = truth label, y = test label, 0 = background)
+     * @param histo2D 2D histogram of the overlaps with the same layout as iou, or null to count every
+     *                unmatched detection as a false positive
+     * @param truthCounts size of each truth object, indexed by label (unused without histo2D)
+     * @param testCounts size of each test object, indexed by label (unused without histo2D)
+     * @param scores confidence of each test object, indexed by test label (index 0 unused);
+     *               NaN scores are ranked last
+     * @param minIoU lowest IoU threshold that will be evaluated
+     */
+    public AveragePrecision(ImageProcessor iou, ImageProcessor histo2D, long[] truthCounts, long[] testCounts,
+                            double[] scores, double minIoU) {
+        int width = iou.getWidth();
+        int height = iou.getHeight();
+        maxTruth = width - 1;
+        int valid = 0;
+        for (int x = 1; x < width; x++) if (iou.getf(x, 0) >= 0) valid++;
+        nTruth = valid;
+
+        int nDetections = 0;
+        int[] detections = new int[height - 1];
+        float[] keys = new float[height - 1];
+        for (int y = 1; y < height; y++) {
+            if (iou.getf(0, y) < 0) continue;
+            double score = y < scores.length ? scores[y] : Double.NaN;
+            detections[nDetections] = y;
+            keys[nDetections] = Double.isNaN(score) ? Float.POSITIVE_INFINITY : (float) -score;
+            nDetections++;
+        }
+        int[] ranks = MicUtils.sortedIndexes(Arrays.copyOf(keys, nDetections));
+        order = new int[nDetections];
+        rankedScores = new double[nDetections];
+        for (int i = 0; i < nDetections; i++) {
+            order[i] = detections[ranks[i]];
+            rankedScores[i] = order[i] < scores.length ? scores[order[i]] : Double.NaN;
+        }
+
+        float threshold = (float) Math.max(minIoU, Float.MIN_VALUE);
+        float[] matrix = iou.getPixels() instanceof float[] ? (float[]) iou.getPixels() : null;
+        float[] row = new float[width];
+        start = new int[nDetections + 1];
+        int[] truth = new int[16];
+        float[] values = new float[16];
+        int n = 0;
+        for (int i = 0; i < nDetections; i++) {
+            int offset = 0;
+            if (matrix != null) {
+                row = matrix;
+                offset = order[i] * width;
+            } else {
+                iou.getRow(0, order[i], row, width);
+            }
+            int first = n;
+            for (int x = 1; x < width; x++) {
+                float value = row[offset + x];
+                if (value < threshold) continue;
+                if (n == truth.length) {
+                    truth = Arrays.copyOf(truth, 2 * n);
+                    values = Arrays.copyOf(values, 2 * n);
+                }
+                // insertion by decreasing IoU, a detection rarely has more than a few candidates
+                int k = n++;
+                while (k > first && values[k - 1] < value) {
+                    truth[k] = truth[k - 1];
+                    values[k] = values[k - 1];
+                    k--;
+                }
+                truth[k] = x;
+                values[k] = value;
+            }
+            start[i + 1] = n;
+        }
+        candidates = Arrays.copyOf(truth, n);
+        candidateIoUs = Arrays.copyOf(values, n);
+
+        int nExcluded = 0;
+        int[] excluded = new int[width - 1];
+        for (int x = 1; x < width; x++) if (iou.getf(x, 0) < 0) excluded[nExcluded++] = x;
+        if (histo2D == null || nExcluded == 0) {
+            ignoredStart = null;
+            ignoredCandidates = null;
+            ignoredIoUs = null;
+            return;
+        }
+        int[] overlaps = histo2D.getPixels() instanceof int[] ? (int[]) histo2D.getPixels() : null;
+        ignoredStart = new int[nDetections + 1];
+        n = 0;
+        for (int i = 0; i < nDetections; i++) {
+            int y = order[i];
+            int first = n;
+            for (int e = 0; e < nExcluded; e++) {
+                int x = excluded[e];
+                long intersection = overlaps != null ? overlaps[y * width + x] : histo2D.get(x, y);
+                if (intersection == 0) continue;
+                float value = (float) ((double) intersection / (truthCounts[x] + testCounts[y] - intersection));
+                if (value < threshold) continue;
+                if (n == truth.length) {
+                    truth = Arrays.copyOf(truth, 2 * n);
+                    values = Arrays.copyOf(values, 2 * n);
+                }
+                int k = n++;
+                while (k > first && values[k - 1] < value) {
+                    truth[k] = truth[k - 1];
+                    values[k] = values[k - 1];
+                    k--;
+                }
+                truth[k] = x;
+                values[k] = value;
+            }
+            ignoredStart[i + 1] = n;
+        }
+        ignoredCandidates = Arrays.copyOf(truth, n);
+        ignoredIoUs = Arrays.copyOf(values, n);
+    }
+
+    /**
+     * Returns the standard COCO thresholds 0.50, 0.55, ..., 0.95.
+     *
+     * @return IoU thresholds
+     */
+    public static double[] cocoThresholds() {
+        double[] thresholds = new double[10];
+        for (int i = 0; i < thresholds.length; i++) thresholds[i] = (50 + 5 * i) / 100.0;
+        return thresholds;
+    }
+
+    /**
+     * Computes the interpolated average precision at one IoU threshold.
+     *
+     * @param threshold IoU threshold (not lower than the minimum given to the constructor)
+     * @return AP in [0, 1], NaN when there is no truth object
+     */
+    public double compute(double threshold) {
+        if (nTruth == 0) return Double.NaN;
+        double[][] curve = getPrecisionRecallCurve(threshold);
+        double[] precision = curve[1];
+        double[] recall = curve[2];
+        for (int i = precision.length - 2; i >= 0; i--) precision[i] = Math.max(precision[i], precision[i + 1]);
+        double sum = 0;
+        int i = 0;
+        for (int r = 0; r < RECALL_POINTS; r++) {
+            double target = r / (double) (RECALL_POINTS - 1);
+            while (i < recall.length && recall[i] < target - 1e-12) i++;
+            if (i == recall.length) break;
+            sum += precision[i];
+        }
+        return sum / RECALL_POINTS;
+    }
+
+    /**
+     * Computes the mean of the average precisions over several IoU thresholds (e.g. AP@[.50:.95]).
+     *
+     * @param thresholds IoU thresholds
+     * @return mean AP, NaN when there is no truth object
+     */
+    public double compute(double[] thresholds) {
+        double sum = 0;
+        for (double threshold : thresholds) sum += compute(threshold);
+        return sum / thresholds.length;
+    }
+
+    /**
+     * Builds the raw precision/recall curve at one IoU threshold, one point per ranked detection that is
+     * not ignored.
+     *
+     * @param threshold IoU threshold
+     * @return {scores, precision, recall}, each of the length of the number of detections not ignored
+     */
+    public double[][] getPrecisionRecallCurve(double threshold) {
+        // analyzed and not analyzed truth objects have distinct labels, they share the flags
+        boolean[] matched = new boolean[maxTruth + 1];
+        double[] scores = new double[order.length];
+        double[] precision = new double[order.length];
+        double[] recall = new double[order.length];
+        int tp = 0;
+        int n = 0;
+        for (int i = 0; i < order.length; i++) {
+            boolean found = false;
+            for (int c = start[i]; c < start[i + 1] && candidateIoUs[c] >= threshold; c++) {
+                if (matched[candidates[c]]) continue;
+                matched[candidates[c]] = true;
+                found = true;
+                break;
+            }
+            if (found) {
+                tp++;
+            } else if (ignoredStart != null && isIgnored(i, threshold, matched)) {
+                continue;
+            }
+            scores[n] = rankedScores[i];
+            precision[n] = tp / (double) (n + 1);
+            recall[n] = nTruth > 0 ? tp / (double) nTruth : 0;
+            n++;
+        }
+        return new double[][]{Arrays.copyOf(scores, n), Arrays.copyOf(precision, n), Arrays.copyOf(recall, n)};
+    }
+
+    /**
+     * Matches a detection to its best unmatched truth object not analyzed, if any reaches the threshold.
+     *
+     * @param i rank of the detection
+     * @param threshold IoU threshold
+     * @param matched flags of the matched truth objects, updated
+     * @return true if the detection is ignored
+     */
+    private boolean isIgnored(int i, double threshold, boolean[] matched) {
+        for (int c = ignoredStart[i]; c < ignoredStart[i + 1] && ignoredIoUs[c] >= threshold; c++) {
+            if (matched[ignoredCandidates[c]]) continue;
+            matched[ignoredCandidates[c]] = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of truth objects taken into account.
+     *
+     * @return number of analyzed truth objects
+     */
+    public int getNTruth() {
+        return nTruth;
+    }
+
+    /**
+     * Returns the number of ranked detections.
+     *
+     * @return number of analyzed test objects
+     */
+    public int getNDetections() {
+        return order.length;
+    }
+}
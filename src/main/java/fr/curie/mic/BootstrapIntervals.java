@@ -0,0 +1,224 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Percentile bootstrap confidence intervals of the pooled object metrics of several samples (slices or images).
+ * <p>
+ * Each replicate draws as many samples as available, with replacement, sums their stored TP/FP/FN counts
+ * at every IoU threshold and computes precision, recall, Jaccard index and F-measure from these sums,
+ * as the summary of all objects does, plus the mean Jaccard index over the thresholds.
+ * No image is analyzed again. Replicates run on a parallel stream; each one has its own random
+ * generator derived from the seed, so the intervals do not depend on the number of threads.
+ * </p>
+ */
+public class BootstrapIntervals {
+    public static final int PRECISION = 0;
+    public static final int RECALL = 1;
+    public static final int JACCARD = 2;
+    public static final int F1 = 3;
+    private static final int NB_METRICS = 4;
+
+    private final int replicates;
+    private final double confidence;
+    // [metric][threshold]
+    private final double[][] low;
+    private final double[][] high;
+    private final double meanJaccardLow;
+    private final double meanJaccardHigh;
+
+    private BootstrapIntervals(int replicates, double confidence, double[][] low, double[][] high, double meanJaccardLow, double meanJaccardHigh) {
+        this.replicates = replicates;
+        this.confidence = confidence;
+        this.low = low;
+        this.high = high;
+        this.meanJaccardLow = meanJaccardLow;
+        this.meanJaccardHigh = meanJaccardHigh;
+    }
+
+    /**
+     * Computes the bootstrap intervals.
+     *
+     * @param samples curve metrics of each sample, all computed at the same thresholds
+     * @param replicates number of bootstrap replicates
+     * @param confidence confidence level of the intervals (e.g. 0.95)
+     * @param seed seed of the resampling
+     * @return intervals for each metric and threshold
+     */
+    public static BootstrapIntervals compute(List<Metrics[]> samples, int replicates, double confidence, long seed) {
+        if (samples.isEmpty()) throw new IllegalArgumentException("No sample to resample");
+        if (replicates < 1) throw new IllegalArgumentException("At least one bootstrap replicate is needed");
+        int nSamples = samples.size();
+        int nThresholds = samples.get(0).length;
+        long[][] tp = new long[nSamples][nThresholds];
+        long[][] fp = new long[nSamples][nThresholds];
+        long[][] fn = new long[nSamples][nThresholds];
+        for (int s = 0; s < nSamples; s++) {
+            Metrics[] curve = samples.get(s);
+            if (curve.length != nThresholds) throw new IllegalArgumentException("Samples have different thresholds");
+            for (int k = 0; k < nThresholds; k++) {
+                tp[s][k] = curve[k].getTP();
+                fp[s][k] = curve[k].getFP();
+                fn[s][k] = curve[k].getFN();
+            }
+        }
+
+        // seeds drawn from one generator: seeds in arithmetic progression would give overlapping sequences
+        SplittableRandom master = new SplittableRandom(seed);
+        long[] seeds = new long[replicates];
+        for (int r = 0; r < replicates; r++) seeds[r] = master.nextLong();
+        // values[r][metric * nThresholds + threshold], mean Jaccard last
+        double[][] values = new double[replicates][];
+        IntStream.range(0, replicates).parallel().forEach(r -> {
+            SplittableRandom random = new SplittableRandom(seeds[r]);
+            long[] sumTP = new long[nThresholds];
+            long[] sumFP = new long[nThresholds];
+            long[] sumFN = new long[nThresholds];
+            for (int draw = 0; draw < nSamples; draw++) {
+                int s = random.nextInt(nSamples);
+                for (int k = 0; k < nThresholds; k++) {
+                    sumTP[k] += tp[s][k];
+                    sumFP[k] += fp[s][k];
+                    sumFN[k] += fn[s][k];
+                }
+            }
+            double[] replicate = new double[NB_METRICS * nThresholds + 1];
+            double jaccardSum = 0;
+            for (int k = 0; k < nThresholds; k++) {
+                Metrics pooled = new Metrics(sumTP[k], sumFP[k], sumFN[k]);
+                replicate[PRECISION * nThresholds + k] = pooled.getPrecision();
+                replicate[RECALL * nThresholds + k] = pooled.getSensitivity();
+                replicate[JACCARD * nThresholds + k] = pooled.getJaccardIndex();
+                replicate[F1 * nThresholds + k] = pooled.getF1measure();
+                jaccardSum += pooled.getJaccardIndex();
+            }
+            replicate[NB_METRICS * nThresholds] = jaccardSum / nThresholds;
+            values[r] = replicate;
+        });
+
+        double alpha = (1 - confidence) / 2;
+        double[] column = new double[replicates];
+        double[][] low = new double[NB_METRICS][nThresholds];
+        double[][] high = new double[NB_METRICS][nThresholds];
+        for (int m = 0; m < NB_METRICS; m++) {
+            for (int k = 0; k < nThresholds; k++) {
+                int n = sortedColumn(values, m * nThresholds + k, column);
+                low[m][k] = percentile(column, n, alpha);
+                high[m][k] = percentile(column, n, 1 - alpha);
+            }
+        }
+        int n = sortedColumn(values, NB_METRICS * nThresholds, column);
+        return new BootstrapIntervals(replicates, confidence, low, high, percentile(column, n, alpha), percentile(column, n, 1 - alpha));
+    }
+
+    /**
+     * Copies the defined (non NaN) values of one column and sorts them.
+     *
+     * @return number of defined values at the start of column
+     */
+    private static int sortedColumn(double[][] values, int index, double[] column) {
+        int n = 0;
+        for (double[] replicate : values) {
+            if (!Double.isNaN(replicate[index])) column[n++] = replicate[index];
+        }
+        Arrays.sort(column, 0, n);
+        return n;
+    }
+
+    /**
+     * Percentile of sorted values with linear interpolation between closest ranks.
+     */
+    private static double percentile(double[] sorted, int n, double p) {
+        if (n == 0) return Double.NaN;
+        double position = p * (n - 1);
+        int below = (int) Math.floor(position);
+        int above = Math.min(n - 1, below + 1);
+        return sorted[below] + (position - below) * (sorted[above] - sorted[below]);
+    }
+
+    /**
+     * Returns the number of bootstrap replicates.
+     *
+     * @return number of replicates
+     */
+    public int getReplicates() {
+        return replicates;
+    }
+
+    /**
+     * Returns the confidence level of the intervals.
+     *
+     * @return confidence level (e.g. 0.95)
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * Returns the lower bound of the interval of a metric.
+     *
+     * @param metric one of {@link #PRECISION}, {@link #RECALL}, {@link #JACCARD}, {@link #F1}
+     * @param threshold index of the IoU threshold
+     * @return lower bound, NaN if the metric is never defined
+     */
+    public double getLow(int metric, int threshold) {
+        return low[metric][threshold];
+    }
+
+    /**
+     * Returns the upper bound of the interval of a metric.
+     *
+     * @param metric one of {@link #PRECISION}, {@link #RECALL}, {@link #JACCARD}, {@link #F1}
+     * @param threshold index of the IoU threshold
+     * @return upper bound, NaN if the metric is never defined
+     */
+    public double getHigh(int metric, int threshold) {
+        return high[metric][threshold];
+    }
+
+    /**
+     * Returns the lower bound of the interval of the mean Jaccard index over the thresholds.
+     *
+     * @return lower bound
+     */
+    public double getMeanJaccardLow() {
+        return meanJaccardLow;
+    }
+
+    /**
+     * Returns the upper bound of the interval of the mean Jaccard index over the thresholds.
+     *
+     * @return upper bound
+     */
+    public double getMeanJaccardHigh() {
+        return meanJaccardHigh;
+    }
+}
@@ -0,0 +1,311 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Boundary precision, recall and F1 of two label planes at one or several pixel tolerances.
+ * <p>
+ * A contour pixel is an object pixel with a 4-neighbour of another label (background included);
+ * the image border is not a contour. The squared Euclidean distance to the nearest truth contour and to the
+ * nearest test contour are computed once per plane with the linear-time transform of Felzenszwalb and
+ * Huttenlocher, and then compared with every tolerance. A test contour pixel is matched if a truth contour
+ * lies within the tolerance (precision) and conversely (recall).
+ * Per object, the recall of each truth contour is combined with the precision of its best-IoU test object.
+ * </p>
+ */
+public class BoundaryMetrics {
+    private static final double INF = 1e20;
+
+    private final double[] tolerances;
+    private long truthContour;
+    private long testContour;
+    private final long[] truthMatched;
+    private final long[] testMatched;
+    private final int[] truthObjectContour;
+    private final int[] testObjectContour;
+    private final int[][] truthObjectMatched;
+    private final int[][] testObjectMatched;
+    private final int[] bestMatch;
+
+    private BoundaryMetrics(double[] tolerances, int maxTruth, int maxTest) {
+        this.tolerances = tolerances.clone();
+        int n = tolerances.length;
+        truthMatched = new long[n];
+        testMatched = new long[n];
+        truthObjectContour = new int[maxTruth + 1];
+        testObjectContour = new int[maxTest + 1];
+        truthObjectMatched = new int[n][maxTruth + 1];
+        testObjectMatched = new int[n][maxTest + 1];
+        bestMatch = new int[maxTruth + 1];
+    }
+
+    /**
+     * Computes boundary metrics of one plane.
+     *
+     * @param truth truth label plane with labels 0 to maxTruth
+     * @param maxTruth highest truth label
+     * @param test test label plane with labels 0 to maxTest
+     * @param maxTest highest test label
+     * @param iou IoU matrix of the plane (x = truth label, y = test label), used to pair objects
+     * @param tolerances distances in pixels under which contour pixels are matched
+     * @return boundary metrics for every tolerance
+     */
+    public static BoundaryMetrics compute(ImageProcessor truth, int maxTruth, ImageProcessor test, int maxTest,
+                                          ImageProcessor iou, double[] tolerances) {
+        int width = truth.getWidth();
+        int height = truth.getHeight();
+        int[] truthLabels = contourLabels(truth, maxTruth);
+        int[] testLabels = contourLabels(test, maxTest);
+        float[] toTruth = squaredDistanceTransform(truthLabels, width, height);
+        float[] toTest = squaredDistanceTransform(testLabels, width, height);
+
+        BoundaryMetrics counts = new BoundaryMetrics(tolerances, maxTruth, maxTest);
+        double[] squared = new double[tolerances.length];
+        for (int k = 0; k < tolerances.length; k++) squared[k] = tolerances[k] * tolerances[k];
+        for (int i = 0; i < truthLabels.length; i++) {
+            int label = truthLabels[i];
+            if (label > 0) {
+                counts.truthContour++;
+                counts.truthObjectContour[label]++;
+                for (int k = 0; k < squared.length; k++) {
+                    if (toTest[i] <= squared[k]) {
+                        counts.truthMatched[k]++;
+                        counts.truthObjectMatched[k][label]++;
+                    }
+                }
+            }
+            label = testLabels[i];
+            if (label > 0) {
+                counts.testContour++;
+                counts.testObjectContour[label]++;
+                for (int k = 0; k < squared.length; k++) {
+                    if (toTruth[i] <= squared[k]) {
+                        counts.testMatched[k]++;
+                        counts.testObjectMatched[k][label]++;
+                    }
+                }
+            }
+        }
+        for (int x = 1; x <= maxTruth && x < iou.getWidth(); x++) {
+            float best = 0;
+            for (int y = 1; y < iou.getHeight(); y++) {
+                float value = iou.getf(x, y);
+                if (value > best) {
+                    best = value;
+                    counts.bestMatch[x] = y;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Marks the contour pixels of a label plane with their label.
+     *
+     * @param ip label plane
+     * @param maxLabel highest label, other values are treated as background
+     * @return label of each contour pixel, 0 elsewhere
+     */
+    static int[] contourLabels(ImageProcessor ip, int maxLabel) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int[] labels = new int[width * height];
+        for (int i = 0; i < labels.length; i++) {
+            int label = (int) ip.getf(i);
+            labels[i] = label < 0 || label > maxLabel ? 0 : label;
+        }
+        int[] contour = new int[labels.length];
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int label = labels[row + x];
+                if (label == 0) continue;
+                if ((x > 0 && labels[row + x - 1] != label) || (x < width - 1 && labels[row + x + 1] != label)
+                        || (y > 0 && labels[row - width + x] != label) || (y < height - 1 && labels[row + width + x] != label)) {
+                    contour[row + x] = label;
+                }
+            }
+        }
+        return contour;
+    }
+
+    /**
+     * Squared Euclidean distance of every pixel to the nearest feature (non-zero) pixel,
+     * in linear time (one 1D lower envelope of parabolas per column, then per row).
+     *
+     * @param features non-zero for feature pixels
+     * @param width plane width
+     * @param height plane height
+     * @return squared distances; about 1e20 when the plane has no feature
+     */
+    static float[] squaredDistanceTransform(int[] features, int width, int height) {
+        int n = Math.max(width, height);
+        double[] f = new double[n];
+        double[] d = new double[n];
+        int[] v = new int[n];
+        double[] z = new double[n + 1];
+        double[] columns = new double[width * height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) f[y] = features[y * width + x] != 0 ? 0 : INF;
+            transform1D(f, height, d, v, z);
+            for (int y = 0; y < height; y++) columns[y * width + x] = d[y];
+        }
+        float[] result = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(columns, y * width, f, 0, width);
+            transform1D(f, width, d, v, z);
+            for (int x = 0; x < width; x++) result[y * width + x] = (float) d[x];
+        }
+        return result;
+    }
+
+    private static void transform1D(double[] f, int n, double[] d, int[] v, double[] z) {
+        int k = 0;
+        v[0] = 0;
+        z[0] = -INF;
+        z[1] = INF;
+        for (int q = 1; q < n; q++) {
+            double s = ((f[q] + (double) q * q) - (f[v[k]] + (double) v[k] * v[k])) / (2.0 * q - 2.0 * v[k]);
+            while (s <= z[k]) {
+                k--;
+                s = ((f[q] + (double) q * q) - (f[v[k]] + (double) v[k] * v[k])) / (2.0 * q - 2.0 * v[k]);
+            }
+            k++;
+            v[k] = q;
+            z[k] = s;
+            z[k + 1] = INF;
+        }
+        k = 0;
+        for (int q = 0; q < n; q++) {
+            while (z[k + 1] < q) k++;
+            double dq = q - v[k];
+            d[q] = dq * dq + f[v[k]];
+        }
+    }
+
+    /**
+     * Returns the tolerances, in pixels.
+     *
+     * @return tolerances in the order given to {@link #compute}
+     */
+    public double[] getTolerances() {
+        return tolerances.clone();
+    }
+
+    /**
+     * Returns the fraction of test contour pixels within the tolerance of a truth contour.
+     *
+     * @param k tolerance index
+     * @return boundary precision, NaN without test contour
+     */
+    public double getPrecision(int k) {
+        return testContour > 0 ? testMatched[k] / (double) testContour : Double.NaN;
+    }
+
+    /**
+     * Returns the fraction of truth contour pixels within the tolerance of a test contour.
+     *
+     * @param k tolerance index
+     * @return boundary recall, NaN without truth contour
+     */
+    public double getRecall(int k) {
+        return truthContour > 0 ? truthMatched[k] / (double) truthContour : Double.NaN;
+    }
+
+    /**
+     * Returns the boundary F1 score, harmonic mean of boundary precision and recall.
+     *
+     * @param k tolerance index
+     * @return boundary F1, NaN if precision or recall is undefined
+     */
+    public double getF1(int k) {
+        return f1(getPrecision(k), getRecall(k));
+    }
+
+    /**
+     * Returns the test object paired with a truth object (highest IoU).
+     *
+     * @param truthLabel truth object label
+     * @return test object label, 0 if the truth object overlaps no test object
+     */
+    public int getMatchedTest(int truthLabel) {
+        return bestMatch[truthLabel];
+    }
+
+    /**
+     * Returns the fraction of the contour of a truth object within the tolerance of a test contour.
+     *
+     * @param k tolerance index
+     * @param truthLabel truth object label
+     * @return boundary recall of the object, NaN if it has no contour
+     */
+    public double getObjectRecall(int k, int truthLabel) {
+        int contour = truthObjectContour[truthLabel];
+        return contour > 0 ? truthObjectMatched[k][truthLabel] / (double) contour : Double.NaN;
+    }
+
+    /**
+     * Returns the fraction of the contour of a test object within the tolerance of a truth contour.
+     *
+     * @param k tolerance index
+     * @param testLabel test object label
+     * @return boundary precision of the object, NaN if it has no contour
+     */
+    public double getObjectPrecision(int k, int testLabel) {
+        int contour = testObjectContour[testLabel];
+        return contour > 0 ? testObjectMatched[k][testLabel] / (double) contour : Double.NaN;
+    }
+
+    /**
+     * Returns the boundary F1 of a truth object and its paired test object.
+     *
+     * @param k tolerance index
+     * @param truthLabel truth object label
+     * @return boundary F1 of the pair, 0 if the truth object has no paired test object
+     */
+    public double getObjectF1(int k, int truthLabel) {
+        int test = bestMatch[truthLabel];
+        if (test == 0) return 0;
+        return f1(getObjectPrecision(k, test), getObjectRecall(k, truthLabel));
+    }
+
+    /**
+     * Returns the highest truth label.
+     *
+     * @return number of truth objects
+     */
+    public int getMaxTruth() {
+        return truthObjectContour.length - 1;
+    }
+
+    private static double f1(double precision, double recall) {
+        if (Double.isNaN(precision) || Double.isNaN(recall)) return Double.NaN;
+        if (precision + recall == 0) return 0;
+        return 2 * precision * recall / (precision + recall);
+    }
+}
@@ -0,0 +1,476 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Label volume stored on disk as fixed-size bricks (chunks), each with a small presence header.
+ * <p>
+ * File layout (big-endian): a header with the volume and chunk sizes, then one table entry per chunk
+ * (offset, compressed length, minimum and maximum non-zero label, number of non-zero voxels), then the
+ * deflate-compressed chunks as 32-bit labels, x fastest. Chunks containing only background are not stored,
+ * so analyses can skip them from the table alone. Chunks are ordered x fastest, then y, then z;
+ * chunks on the far edges are cropped to the volume size.
+ * </p>
+ * <p>
+ * Chunks can be read concurrently from several threads.
+ * </p>
+ */
+public class ChunkedLabelVolume implements Closeable {
+    /** file extension used for chunked label volumes */
+    public static final String EXTENSION = ".micl";
+    /** default chunk edge, in voxels */
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+
+    private static final int MAGIC = 0x4D49434C; // "MICL"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 * 8;
+    private static final int ENTRY_BYTES = 8 + 4 * 4;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final String title;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int chunkWidth;
+    private final int chunkHeight;
+    private final int chunkDepth;
+    private final int chunksX;
+    private final int chunksY;
+    private final int chunksZ;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final int[] minLabels;
+    private final int[] maxLabels;
+    private final int[] nonZero;
+
+    private ChunkedLabelVolume(File input) throws IOException {
+        file = new RandomAccessFile(input, "r");
+        channel = file.getChannel();
+        String name = input.getName();
+        title = name.endsWith(EXTENSION) ? name.substring(0, name.length() - EXTENSION.length()) : name;
+        try {
+            if (file.readInt() != MAGIC) throw new IOException(input + " is not a chunked label volume");
+            int version = file.readInt();
+            if (version != VERSION) throw new IOException("Unsupported chunked label volume version " + version);
+            width = file.readInt();
+            height = file.readInt();
+            depth = file.readInt();
+            chunkWidth = file.readInt();
+            chunkHeight = file.readInt();
+            chunkDepth = file.readInt();
+            chunksX = (width + chunkWidth - 1) / chunkWidth;
+            chunksY = (height + chunkHeight - 1) / chunkHeight;
+            chunksZ = (depth + chunkDepth - 1) / chunkDepth;
+            int nChunks = chunksX * chunksY * chunksZ;
+            offsets = new long[nChunks];
+            lengths = new int[nChunks];
+            minLabels = new int[nChunks];
+            maxLabels = new int[nChunks];
+            nonZero = new int[nChunks];
+            for (int i = 0; i < nChunks; i++) {
+                offsets[i] = file.readLong();
+                lengths[i] = file.readInt();
+                minLabels[i] = file.readInt();
+                maxLabels[i] = file.readInt();
+                nonZero[i] = file.readInt();
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a chunked label volume and reads its chunk table.
+     *
+     * @param input file written by {@link #importStack(ImagePlus, File, int)}
+     * @return the opened volume, to be closed after use
+     * @throws IOException if the file cannot be read or has the wrong format
+     */
+    public static ChunkedLabelVolume open(File input) throws IOException {
+        return new ChunkedLabelVolume(input);
+    }
+
+    /**
+     * Tests whether a path names a chunked label volume.
+     *
+     * @param path file path
+     * @return true if the path has the chunked volume extension
+     */
+    public static boolean isChunkedVolume(String path) {
+        return path != null && path.toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Writes all slices of a label stack as a chunked volume.
+     * Only chunkSize planes are kept in memory at a time, so a virtual stack opened from a TIFF
+     * can be converted without loading it completely. Chunks of the same slab are compressed in parallel.
+     * Labels of 32-bit images are renumbered from their distinct values (one extra pass over the stack),
+     * so large or non-integer IDs are stored as contiguous integer labels.
+     *
+     * @param imp label image (single channel and frame; all slices form the Z axis)
+     * @param output file to create (overwritten if it exists)
+     * @param chunkSize edge of the cubic chunks, in voxels
+     * @throws IOException if the image is not a single 3D volume or the file cannot be written
+     */
+    public static void importStack(ImagePlus imp, File output, int chunkSize) throws IOException {
+        if (imp.getNChannels() * imp.getNFrames() > 1) throw new IOException("Only single channel, single frame volumes can be converted");
+        if (chunkSize < 1) throw new IOException("Chunk size must be positive");
+        ImageStack stack = imp.getImageStack();
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        int depth = stack.getSize();
+        int cw = Math.min(chunkSize, width);
+        int ch = Math.min(chunkSize, height);
+        int cd = Math.min(chunkSize, depth);
+        int chunksX = (width + cw - 1) / cw;
+        int chunksY = (height + ch - 1) / ch;
+        int chunksZ = (depth + cd - 1) / cd;
+        int chunksPerSlab = chunksX * chunksY;
+        float[] labels = imp.getBitDepth() == 32 ? MicUtils.distinctLabels(imp) : null;
+
+        if (output.exists() && !output.delete()) throw new IOException("Cannot overwrite " + output);
+        try (RandomAccessFile out = new RandomAccessFile(output, "rw")) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(depth);
+            out.writeInt(cw);
+            out.writeInt(ch);
+            out.writeInt(cd);
+            long tableStart = out.getFilePointer();
+            long dataStart = tableStart + (long) chunksPerSlab * chunksZ * ENTRY_BYTES;
+            out.setLength(dataStart);
+            long position = dataStart;
+
+            for (int cz = 0; cz < chunksZ; cz++) {
+                int z0 = cz * cd;
+                int slabDepth = Math.min(cd, depth - z0);
+                ImageProcessor[] planes = new ImageProcessor[slabDepth];
+                for (int z = 0; z < slabDepth; z++) planes[z] = stack.getProcessor(z0 + z + 1);
+
+                EncodedChunk[] encoded = IntStream.range(0, chunksPerSlab).parallel()
+                        .mapToObj(i -> encodeChunk(planes, labels, width, (i % chunksX) * cw, (i / chunksX) * ch,
+                                Math.min(cw, width - (i % chunksX) * cw), Math.min(ch, height - (i / chunksX) * ch)))
+                        .toArray(EncodedChunk[]::new);
+
+                for (int i = 0; i < chunksPerSlab; i++) {
+                    EncodedChunk chunk = encoded[i];
+                    long offset = 0;
+                    if (chunk.data != null) {
+                        offset = position;
+                        out.seek(position);
+                        out.write(chunk.data);
+                        position += chunk.data.length;
+                    }
+                    out.seek(tableStart + (long) (cz * chunksPerSlab + i) * ENTRY_BYTES);
+                    out.writeLong(offset);
+                    out.writeInt(chunk.data == null ? 0 : chunk.data.length);
+                    out.writeInt(chunk.minLabel);
+                    out.writeInt(chunk.maxLabel);
+                    out.writeInt(chunk.nonZero);
+                }
+            }
+        }
+    }
+
+    private static EncodedChunk encodeChunk(ImageProcessor[] planes, float[] labels, int width, int x0, int y0, int w, int h) {
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        int count = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(w * h * planes.length * 4);
+        for (ImageProcessor plane : planes) {
+            for (int y = y0; y < y0 + h; y++) {
+                int offset = y * width;
+                for (int x = x0; x < x0 + w; x++) {
+                    int label = labels == null ? (int) plane.getf(offset + x) : MicUtils.sparseLabel(labels, plane.getf(offset + x));
+                    buffer.putInt(label);
+                    if (label != 0) {
+                        count++;
+                        if (label < min) min = label;
+                        if (label > max) max = label;
+                    }
+                }
+            }
+        }
+        if (count == 0) return new EncodedChunk(null, 0, 0, 0);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(buffer.array());
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] block = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(block);
+            compressed.write(block, 0, n);
+        }
+        deflater.end();
+        return new EncodedChunk(compressed.toByteArray(), min, max, count);
+    }
+
+    /**
+     * Reads and decompresses one chunk.
+     *
+     * @param chunk chunk index
+     * @return labels of the chunk, x fastest, of size {@link #getChunkWidth(int)} &times;
+     * {@link #getChunkHeight(int)} &times; {@link #getChunkDepth(int)}; all zeros for an empty chunk
+     * @throws IOException if the chunk cannot be read
+     */
+    public int[] readChunk(int chunk) throws IOException {
+        int[] labels = new int[getChunkWidth(chunk) * getChunkHeight(chunk) * getChunkDepth(chunk)];
+        if (isEmpty(chunk)) return labels;
+
+        ByteBuffer compressed = ByteBuffer.allocate(lengths[chunk]);
+        long position = offsets[chunk];
+        while (compressed.hasRemaining()) {
+            int n = channel.read(compressed, position + compressed.position());
+            if (n < 0) throw new EOFException("Chunk " + chunk + " is truncated");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            byte[] raw = new byte[labels.length * 4];
+            int read = 0;
+            while (read < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, read, raw.length - read);
+                if (n == 0 && inflater.needsInput()) break;
+                read += n;
+            }
+            if (read != raw.length) throw new IOException("Chunk " + chunk + " is corrupted");
+            ByteBuffer.wrap(raw).asIntBuffer().get(labels);
+        } catch (DataFormatException e) {
+            throw new IOException("Chunk " + chunk + " is corrupted", e);
+        } finally {
+            inflater.end();
+        }
+        return labels;
+    }
+
+    /**
+     * Tests whether a chunk contains only background, using the chunk table only.
+     *
+     * @param chunk chunk index
+     * @return true if the chunk has no labeled voxel
+     */
+    public boolean isEmpty(int chunk) {
+        return nonZero[chunk] == 0;
+    }
+
+    /**
+     * Returns the number of labeled voxels of a chunk, from the chunk table.
+     *
+     * @param chunk chunk index
+     * @return non-zero voxel count
+     */
+    public int getNonZeroCount(int chunk) {
+        return nonZero[chunk];
+    }
+
+    /**
+     * Returns the smallest non-zero label of a chunk.
+     *
+     * @param chunk chunk index
+     * @return minimum label, 0 for an empty chunk
+     */
+    public int getMinLabel(int chunk) {
+        return minLabels[chunk];
+    }
+
+    /**
+     * Returns the largest label of a chunk.
+     *
+     * @param chunk chunk index
+     * @return maximum label, 0 for an empty chunk
+     */
+    public int getMaxLabel(int chunk) {
+        return maxLabels[chunk];
+    }
+
+    /**
+     * Returns the largest label of the whole volume, from the chunk table.
+     *
+     * @return maximum label
+     */
+    public int getMaxLabel() {
+        int max = 0;
+        for (int label : maxLabels) max = Math.max(max, label);
+        return max;
+    }
+
+    /**
+     * Tests whether another volume has the same size and chunk layout, so chunks can be compared index by index.
+     *
+     * @param other volume to compare with
+     * @return true if both volumes share their geometry
+     */
+    public boolean hasSameLayout(ChunkedLabelVolume other) {
+        return width == other.width && height == other.height && depth == other.depth
+                && chunkWidth == other.chunkWidth && chunkHeight == other.chunkHeight && chunkDepth == other.chunkDepth;
+    }
+
+    /**
+     * Returns the number of chunks, empty ones included.
+     *
+     * @return chunk count
+     */
+    public int getNChunks() {
+        return offsets.length;
+    }
+
+    /**
+     * Returns the x of the first voxel of a chunk.
+     *
+     * @param chunk chunk index
+     * @return chunk origin x
+     */
+    public int getChunkX(int chunk) {
+        return (chunk % chunksX) * chunkWidth;
+    }
+
+    /**
+     * Returns the y of the first voxel of a chunk.
+     *
+     * @param chunk chunk index
+     * @return chunk origin y
+     */
+    public int getChunkY(int chunk) {
+        return ((chunk / chunksX) % chunksY) * chunkHeight;
+    }
+
+    /**
+     * Returns the z (0-based slice) of the first voxel of a chunk.
+     *
+     * @param chunk chunk index
+     * @return chunk origin z
+     */
+    public int getChunkZ(int chunk) {
+        return (chunk / (chunksX * chunksY)) * chunkDepth;
+    }
+
+    /**
+     * Returns the width of a chunk, smaller than the nominal size on the right edge.
+     *
+     * @param chunk chunk index
+     * @return chunk width
+     */
+    public int getChunkWidth(int chunk) {
+        return Math.min(chunkWidth, width - getChunkX(chunk));
+    }
+
+    /**
+     * Returns the height of a chunk, smaller than the nominal size on the bottom edge.
+     *
+     * @param chunk chunk index
+     * @return chunk height
+     */
+    public int getChunkHeight(int chunk) {
+        return Math.min(chunkHeight, height - getChunkY(chunk));
+    }
+
+    /**
+     * Returns the number of slices of a chunk, smaller than the nominal size on the last slab.
+     *
+     * @param chunk chunk index
+     * @return chunk depth
+     */
+    public int getChunkDepth(int chunk) {
+        return Math.min(chunkDepth, depth - getChunkZ(chunk));
+    }
+
+    /**
+     * Returns the volume width.
+     *
+     * @return width in voxels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the volume height.
+     *
+     * @return height in voxels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of slices of the volume.
+     *
+     * @return depth in voxels
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the file name without its extension.
+     *
+     * @return volume title
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static class EncodedChunk {
+        final byte[] data;
+        final int minLabel;
+        final int maxLabel;
+        final int nonZero;
+
+        EncodedChunk(byte[] data, int minLabel, int maxLabel, int nonZero) {
+            this.data = data;
+            this.minLabel = minLabel;
+            this.maxLabel = maxLabel;
+            this.nonZero = nonZero;
+        }
+    }
+}
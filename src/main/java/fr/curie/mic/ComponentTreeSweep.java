@@ -0,0 +1,354 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Object-level metrics of a probability map against truth labels for many probability thresholds at once,
+ * using the component tree (max-tree) of the map.
+ * <p>
+ * The objects obtained by thresholding the map at a level are the 8-connected components of the pixels at or
+ * above it. They are the nodes of the max-tree cut at that level, so the tree is built once per plane with a
+ * union-find over the pixels sorted by decreasing probability, and a single pass from the leaves to the roots
+ * gives the area of every node and its overlap with each truth object. Each node is matched at all the
+ * thresholds where it is a component, without thresholding and labelling the map again.
+ * </p>
+ * <p>
+ * Matching is the greedy one-to-one matching of {@link IoUAnalysis#getMetrics(double)}. Truth and test objects
+ * smaller than the minimum size are not analyzed; the border filter is not applied. Planes are evaluated
+ * independently (in parallel) and their metrics are summed. Probabilities are quantized as in
+ * {@link ProbabilityCurve}: raw values for 8 and 16-bit maps, bins over [0, 1] for 32-bit maps. Thresholds are
+ * probabilities in [0, 1] whatever the bit depth: they are scaled to the full range of 8 and 16-bit maps
+ * (255 and 65535).
+ * </p>
+ */
+public class ComponentTreeSweep {
+    private static final int[] DX = {-1, 0, 1, -1, 1, -1, 0, 1};
+    private static final int[] DY = {-1, -1, -1, 0, 0, 1, 1, 1};
+
+    private ComponentTreeSweep() {
+    }
+
+    /**
+     * Computes the object-level metrics of the thresholded probability map for each threshold.
+     *
+     * @param truth truth label image
+     * @param probabilities probability map with the same dimensions (8, 16 or 32-bit)
+     * @param thresholds ascending probability thresholds in [0, 1]; pixels at or above a threshold are foreground
+     * @param bins number of bins over [0, 1] for 32-bit maps, ignored otherwise
+     * @param iouThreshold minimum IoU of a match
+     * @param minSize minimum object size in pixels
+     * @return metrics of each threshold, summed over the planes
+     */
+    public static Metrics[] compute(ImagePlus truth, ImagePlus probabilities, double[] thresholds, int bins,
+                                    double iouThreshold, double minSize) {
+        if (truth.getWidth() != probabilities.getWidth() || truth.getHeight() != probabilities.getHeight()
+                || truth.getStackSize() != probabilities.getStackSize()) {
+            throw new IllegalArgumentException("The probability map must have the dimensions of the truth image");
+        }
+        int bitDepth = probabilities.getBitDepth();
+        if (bitDepth == 24) throw new IllegalArgumentException("RGB probability maps are not supported");
+        if (bitDepth == 32 && bins < 1) throw new IllegalArgumentException("The number of bins must be positive");
+        if (thresholds.length == 0) throw new IllegalArgumentException("No threshold given");
+        int[] thresholdLevels = new int[thresholds.length];
+        for (int k = 0; k < thresholds.length; k++) {
+            if (k > 0 && thresholds[k] < thresholds[k - 1]) throw new IllegalArgumentException("Thresholds must be ascending");
+            double scale = bitDepth == 32 ? bins : bitDepth == 8 ? 255 : 65535;
+            // the tolerance keeps thresholds such as 0.1 + 0.1 on the level they denote
+            thresholdLevels[k] = (int) Math.max(0, Math.ceil(thresholds[k] * scale - 1e-9));
+            // 32-bit values of 1 fall in the last bin, which a threshold of 1 must still reach
+            if (bitDepth == 32 && thresholds[k] <= 1) thresholdLevels[k] = Math.min(thresholdLevels[k], bins - 1);
+        }
+        // truth labels made contiguous over the whole image, as in IoUAnalysis
+        if (truth.getBitDepth() == 32) truth = MicUtils.renumberSparseLabels(truth, MicUtils.distinctLabels(truth));
+        int[] truthConvert = MicUtils.conversionIndexes(truth);
+        int maxTruth = MicUtils.maxIndex(truthConvert);
+        truth = MicUtils.renumberObjects(truth, truthConvert);
+        ImageStack truthStack = truth.getImageStack();
+        ImageStack probabilityStack = probabilities.getImageStack();
+        IntStream planes = IntStream.range(1, truthStack.getSize() + 1);
+        if (!truthStack.isVirtual() && !probabilityStack.isVirtual()) planes = planes.parallel();
+        List<Metrics[]> planeMetrics = planes.mapToObj(z -> new ComponentTreeSweep().evaluatePlane(
+                truthStack.getProcessor(z), maxTruth, levels(probabilityStack.getProcessor(z), bins), thresholdLevels, iouThreshold, minSize))
+                .collect(Collectors.toList());
+        Metrics[] total = new Metrics[thresholds.length];
+        for (int k = 0; k < total.length; k++) total[k] = new Metrics(0, 0, 0, 0);
+        for (Metrics[] metrics : planeMetrics) {
+            for (int k = 0; k < total.length; k++) total[k].add(metrics[k]);
+        }
+        return total;
+    }
+
+    /**
+     * Quantizes a probability plane; NaN pixels get level -1 and are never foreground.
+     */
+    private static int[] levels(ImageProcessor ip, int bins) {
+        int size = ip.getPixelCount();
+        int[] levels = new int[size];
+        Object pixels = ip.getPixels();
+        if (pixels instanceof byte[]) {
+            byte[] values = (byte[]) pixels;
+            for (int i = 0; i < size; i++) levels[i] = values[i] & 0xff;
+        } else if (pixels instanceof short[]) {
+            short[] values = (short[]) pixels;
+            for (int i = 0; i < size; i++) levels[i] = values[i] & 0xffff;
+        } else {
+            for (int i = 0; i < size; i++) {
+                float value = ip.getf(i);
+                levels[i] = Float.isNaN(value) ? -1 : ProbabilityCurve.bin(value, bins);
+            }
+        }
+        return levels;
+    }
+
+    // state of the plane being evaluated
+    private int[] level;
+    private int[] parent;
+    private int[] zpar;
+    private int[] thresholdLevels;
+    private long[] truthAreas;
+    private double iouThreshold;
+    private double minSize;
+    private long[] components;
+    private List<List<ObjectMatch>> candidates;
+
+    /**
+     * Builds the max-tree of one plane and matches its nodes at every threshold.
+     *
+     * @param truthPlane truth labels of the plane, contiguous over the image
+     * @param maxTruth highest truth label of the image
+     * @param level quantized probabilities of the plane
+     * @param thresholdLevels quantized thresholds
+     * @param iouThreshold minimum IoU of a match
+     * @param minSize minimum object size in pixels
+     * @return metrics of each threshold
+     */
+    private Metrics[] evaluatePlane(ImageProcessor truthPlane, int maxTruth, int[] level, int[] thresholdLevels, double iouThreshold, double minSize) {
+        this.level = level;
+        this.thresholdLevels = thresholdLevels;
+        this.iouThreshold = iouThreshold;
+        this.minSize = minSize;
+        int width = truthPlane.getWidth();
+        int height = truthPlane.getHeight();
+        int size = width * height;
+
+        // truth labels and their areas in the plane
+        int[] truthLabels = new int[size];
+        truthAreas = new long[maxTruth + 1];
+        for (int i = 0; i < size; i++) {
+            int label = (int) truthPlane.getf(i);
+            truthLabels[i] = label;
+            truthAreas[label]++;
+        }
+        long validTruth = 0;
+        for (int label = 1; label <= maxTruth; label++) {
+            if (truthAreas[label] > 0 && truthAreas[label] >= minSize) validTruth++;
+        }
+
+        components = new long[thresholdLevels.length];
+        candidates = new ArrayList<>();
+        for (int k = 0; k < thresholdLevels.length; k++) candidates.add(new ArrayList<>());
+
+        int[] sorted = sortByDecreasingLevel(thresholdLevels[0]);
+        buildTree(sorted, width, height);
+        accumulate(sorted, truthLabels);
+
+        Metrics[] metrics = new Metrics[thresholdLevels.length];
+        for (int k = 0; k < metrics.length; k++) metrics[k] = match(candidates.get(k), components[k], validTruth);
+        return metrics;
+    }
+
+    /**
+     * Sorts the pixels at or above the lowest threshold by decreasing level (counting sort).
+     */
+    private int[] sortByDecreasingLevel(int minLevel) {
+        int maxLevel = minLevel - 1;
+        for (int value : level) if (value > maxLevel) maxLevel = value;
+        if (maxLevel < minLevel) return new int[0];
+        int[] counts = new int[maxLevel - minLevel + 2];
+        for (int value : level) if (value >= minLevel) counts[maxLevel - value + 1]++;
+        for (int i = 1; i < counts.length; i++) counts[i] += counts[i - 1];
+        int[] sorted = new int[counts[counts.length - 1]];
+        for (int p = 0; p < level.length; p++) {
+            if (level[p] >= minLevel) sorted[counts[maxLevel - level[p]]++] = p;
+        }
+        return sorted;
+    }
+
+    /**
+     * Builds the max-tree with a union-find over the sorted pixels, then makes every pixel point
+     * to the canonical pixel of its node.
+     */
+    private void buildTree(int[] sorted, int width, int height) {
+        parent = new int[level.length];
+        zpar = new int[level.length];
+        Arrays.fill(zpar, -1);
+        for (int p : sorted) {
+            parent[p] = p;
+            zpar[p] = p;
+            int x = p % width;
+            int y = p / width;
+            for (int n = 0; n < DX.length; n++) {
+                int nx = x + DX[n];
+                int ny = y + DY[n];
+                if (nx < 0 || ny < 0 || nx >= width || ny >= height) continue;
+                int q = ny * width + nx;
+                if (zpar[q] < 0) continue;
+                int root = findRoot(q);
+                if (root != p) {
+                    parent[root] = p;
+                    zpar[root] = p;
+                }
+            }
+        }
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            int p = sorted[i];
+            int q = parent[p];
+            if (level[parent[q]] == level[q]) parent[p] = parent[q];
+        }
+    }
+
+    private int findRoot(int p) {
+        int root = p;
+        while (zpar[root] != root) root = zpar[root];
+        while (zpar[p] != root) {
+            int next = zpar[p];
+            zpar[p] = root;
+            p = next;
+        }
+        return root;
+    }
+
+    private boolean isCanonical(int p) {
+        return parent[p] == p || level[parent[p]] != level[p];
+    }
+
+    /**
+     * Gathers the area and truth overlaps of the nodes from the leaves to the roots. A node is complete when its
+     * canonical pixel is reached, since all its pixels and sub-nodes come before it in the sorted order; it is
+     * then recorded as a component of every threshold between its parent level (excluded) and its level, and
+     * merged into its parent.
+     */
+    private void accumulate(int[] sorted, int[] truthLabels) {
+        long[] area = new long[level.length];
+        @SuppressWarnings("unchecked")
+        Map<Integer, Long>[] overlaps = new Map[level.length];
+        for (int p : sorted) {
+            int node = isCanonical(p) ? p : parent[p];
+            area[node]++;
+            if (truthLabels[p] > 0) {
+                if (overlaps[node] == null) overlaps[node] = new HashMap<>();
+                overlaps[node].merge(truthLabels[p], 1L, Long::sum);
+            }
+            if (node != p) continue;
+
+            int parentLevel = parent[p] == p ? Integer.MIN_VALUE : level[parent[p]];
+            record(p, parentLevel, area[p], overlaps[p]);
+            if (parent[p] == p) continue;
+            int up = parent[p];
+            area[up] += area[p];
+            Map<Integer, Long> small = overlaps[p];
+            overlaps[p] = null;
+            if (small == null) continue;
+            Map<Integer, Long> large = overlaps[up];
+            if (large == null) {
+                overlaps[up] = small;
+                continue;
+            }
+            if (large.size() < small.size()) {
+                Map<Integer, Long> swap = large;
+                large = small;
+                small = swap;
+                overlaps[up] = large;
+            }
+            for (Map.Entry<Integer, Long> entry : small.entrySet()) large.merge(entry.getKey(), entry.getValue(), Long::sum);
+        }
+    }
+
+    /**
+     * Records a node as a component of the thresholds in (parentLevel, level], with its candidate matches.
+     */
+    private void record(int node, int parentLevel, long area, Map<Integer, Long> overlap) {
+        if (area < minSize) return;
+        int k = Arrays.binarySearch(thresholdLevels, parentLevel + 1);
+        if (k < 0) k = -k - 1;
+        while (k > 0 && thresholdLevels[k - 1] > parentLevel) k--;
+        for (; k < thresholdLevels.length && thresholdLevels[k] <= level[node]; k++) {
+            components[k]++;
+            if (overlap == null) continue;
+            for (Map.Entry<Integer, Long> entry : overlap.entrySet()) {
+                long truthArea = truthAreas[entry.getKey()];
+                if (truthArea < minSize) continue;
+                long intersection = entry.getValue();
+                double iou = (double) intersection / (area + truthArea - intersection);
+                if (iou >= iouThreshold) candidates.get(k).add(new ObjectMatch(entry.getKey(), node, iou));
+            }
+        }
+    }
+
+    /**
+     * Greedy one-to-one matching by decreasing IoU.
+     */
+    private static Metrics match(List<ObjectMatch> matches, long components, long validTruth) {
+        matches.sort((a, b) -> Double.compare(b.iou, a.iou));
+        HashSet<Integer> acceptedTruth = new HashSet<>();
+        HashSet<Integer> acceptedTest = new HashSet<>();
+        long tp = 0;
+        double matchedIoUSum = 0;
+        for (ObjectMatch match : matches) {
+            if (acceptedTruth.contains(match.truth) || acceptedTest.contains(match.test)) continue;
+            acceptedTruth.add(match.truth);
+            acceptedTest.add(match.test);
+            tp++;
+            matchedIoUSum += match.iou;
+        }
+        return new Metrics(tp, components - tp, validTruth - tp, matchedIoUSum);
+    }
+
+    private static class ObjectMatch {
+        final int truth;
+        final int test;
+        final double iou;
+
+        ObjectMatch(int truth, int test, double iou) {
+            this.truth = truth;
+            this.test = test;
+            this.iou = iou;
+        }
+    }
+}
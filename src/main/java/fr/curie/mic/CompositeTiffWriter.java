@@ -0,0 +1,230 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
+
+/**
+ * Writes composite planes to a tiled, deflate-compressed TIFF as soon as they are produced.
+ * <p>
+ * Planes must be given in ImageJ hyperstack order (channel fastest, then slice, then frame).
+ * Only the plane being written is kept in memory: its tiles are compressed, appended to the file
+ * together with its IFD, and the previous IFD is then linked to it.
+ * The file is an 8-bit palette TIFF using the given LUT, with an ImageJ description
+ * giving the hyperstack dimensions.
+ * </p>
+ */
+public class CompositeTiffWriter implements Closeable {
+    private static final int TILE_SIZE = 256;
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    private final RandomAccessFile file;
+    private final int width;
+    private final int height;
+    private final int nPlanes;
+    private final String description;
+    private final byte[] colorMap;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final byte[] tile = new byte[TILE_SIZE * TILE_SIZE];
+    private final byte[] chunk = new byte[64 * 1024];
+
+    private long nextIfdPointer = 4;
+    private int written = 0;
+
+    /**
+     * Creates the TIFF file and writes its header.
+     *
+     * @param output file to create (overwritten if it exists)
+     * @param width plane width
+     * @param height plane height
+     * @param nChannels number of channels of the hyperstack
+     * @param nSlices number of slices of the hyperstack
+     * @param nFrames number of frames of the hyperstack
+     * @param lut palette stored in the file
+     * @throws IOException if the file cannot be created
+     */
+    public CompositeTiffWriter(File output, int width, int height, int nChannels, int nSlices, int nFrames, LUT lut) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.nPlanes = nChannels * nSlices * nFrames;
+        this.description = "ImageJ=1.54f\nimages=" + nPlanes + "\nchannels=" + nChannels + "\nslices=" + nSlices
+                + "\nframes=" + nFrames + "\nhyperstack=true\nmode=color\n";
+        this.colorMap = lut.getBytes();
+        if (output.exists() && !output.delete()) throw new IOException("Cannot overwrite " + output);
+        file = new RandomAccessFile(output, "rw");
+        // big-endian header, first IFD pointer patched when the first plane is written
+        file.writeShort(0x4D4D);
+        file.writeShort(42);
+        file.writeInt(0);
+    }
+
+    /**
+     * Compresses and appends one plane, then releases it.
+     *
+     * @param plane composite plane (color indices); converted to 8-bit if needed
+     * @throws IOException if writing fails or the classic TIFF 4 GB limit is reached
+     */
+    public void writePlane(ImageProcessor plane) throws IOException {
+        if (written >= nPlanes) throw new IOException("All " + nPlanes + " planes were already written");
+        if (plane.getWidth() != width || plane.getHeight() != height) throw new IOException("Plane size does not match the composite size");
+        byte[] pixels = (byte[]) ((plane instanceof ByteProcessor) ? plane : plane.convertToByte(false)).getPixels();
+
+        long start = file.length();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        int tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+        int nTiles = tilesAcross * tilesDown;
+        long[] tileOffsets = new long[nTiles];
+        long[] tileCounts = new long[nTiles];
+        for (int ty = 0; ty < tilesDown; ty++) {
+            for (int tx = 0; tx < tilesAcross; tx++) {
+                int index = ty * tilesAcross + tx;
+                tileOffsets[index] = start + out.size();
+                tileCounts[index] = writeTile(out, pixels, tx * TILE_SIZE, ty * TILE_SIZE);
+            }
+        }
+        align(out);
+
+        boolean first = written == 0;
+        long descriptionOffset = 0;
+        if (first) {
+            descriptionOffset = start + out.size();
+            out.writeBytes(description);
+            out.writeByte(0);
+            align(out);
+        }
+        long colorMapOffset = start + out.size();
+        for (int c = 0; c < 3; c++) {
+            for (int i = 0; i < 256; i++) out.writeShort((colorMap[c * 256 + i] & 0xff) * 257);
+        }
+        long offsetsOffset = start + out.size();
+        if (nTiles > 1) for (long offset : tileOffsets) out.writeInt((int) checkOffset(offset));
+        long countsOffset = start + out.size();
+        if (nTiles > 1) for (long count : tileCounts) out.writeInt((int) count);
+
+        long ifdOffset = start + out.size();
+        out.writeShort(first ? 13 : 12);
+        writeEntry(out, 256, TYPE_LONG, 1, width);
+        writeEntry(out, 257, TYPE_LONG, 1, height);
+        writeEntry(out, 258, TYPE_SHORT, 1, 8);
+        writeEntry(out, 259, TYPE_SHORT, 1, 8);
+        writeEntry(out, 262, TYPE_SHORT, 1, 3);
+        if (first) writeEntry(out, 270, TYPE_ASCII, description.length() + 1, checkOffset(descriptionOffset));
+        writeEntry(out, 277, TYPE_SHORT, 1, 1);
+        writeEntry(out, 284, TYPE_SHORT, 1, 1);
+        writeEntry(out, 320, TYPE_SHORT, 768, checkOffset(colorMapOffset));
+        writeEntry(out, 322, TYPE_SHORT, 1, TILE_SIZE);
+        writeEntry(out, 323, TYPE_SHORT, 1, TILE_SIZE);
+        writeEntry(out, 324, TYPE_LONG, nTiles, checkOffset(nTiles > 1 ? offsetsOffset : tileOffsets[0]));
+        writeEntry(out, 325, TYPE_LONG, nTiles, nTiles > 1 ? checkOffset(countsOffset) : tileCounts[0]);
+        long pointer = start + out.size();
+        out.writeInt(0);
+        out.flush();
+
+        file.seek(start);
+        file.write(buffer.toByteArray());
+        file.seek(nextIfdPointer);
+        file.writeInt((int) checkOffset(ifdOffset));
+        nextIfdPointer = pointer;
+        written++;
+    }
+
+    /**
+     * Returns the number of planes already written.
+     *
+     * @return count of written planes
+     */
+    public int getWrittenPlanes() {
+        return written;
+    }
+
+    /**
+     * Closes the file. Missing planes are reported as an error.
+     *
+     * @throws IOException if the file is incomplete or cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        file.close();
+        if (written != nPlanes) throw new IOException("Composite export incomplete: " + written + "/" + nPlanes + " planes written");
+    }
+
+    private int writeTile(DataOutputStream out, byte[] pixels, int x0, int y0) throws IOException {
+        java.util.Arrays.fill(tile, (byte) 0);
+        int w = Math.min(TILE_SIZE, width - x0);
+        int h = Math.min(TILE_SIZE, height - y0);
+        for (int y = 0; y < h; y++) {
+            System.arraycopy(pixels, (y0 + y) * width + x0, tile, y * TILE_SIZE, w);
+        }
+        deflater.reset();
+        deflater.setInput(tile);
+        deflater.finish();
+        int total = 0;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    private static void writeEntry(DataOutputStream out, int tag, int type, int count, long value) throws IOException {
+        out.writeShort(tag);
+        out.writeShort(type);
+        out.writeInt(count);
+        if (type == TYPE_SHORT && count == 1) {
+            out.writeShort((int) value);
+            out.writeShort(0);
+        } else {
+            out.writeInt((int) value);
+        }
+    }
+
+    private static void align(DataOutputStream out) throws IOException {
+        if ((out.size() & 1) != 0) out.writeByte(0);
+    }
+
+    private static long checkOffset(long offset) throws IOException {
+        if (offset > 0xFFFFFFFFL) throw new IOException("Composite export exceeds the 4 GB limit of classic TIFF");
+        return offset;
+    }
+}
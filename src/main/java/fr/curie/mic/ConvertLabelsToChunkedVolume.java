@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * ImageJ plugin converting a 3D label TIFF stack into a chunked label volume ({@link ChunkedLabelVolume}).
+ * <p>
+ * The stack is opened as a virtual stack and written slab by slab, so volumes larger than the memory
+ * can be converted. The output file is written next to the TIFF, with the {@value ChunkedLabelVolume#EXTENSION}
+ * extension, and can be given as truth or test path to the 3D comparator.
+ * </p>
+ */
+public class ConvertLabelsToChunkedVolume implements PlugIn {
+
+    /**
+     * Asks for the TIFF stack and chunk size, then writes the chunked volume.
+     *
+     * @param arg plugin argument (unused)
+     */
+    @Override
+    public void run(String arg) {
+        GenericDialog gd = new GenericDialog("Convert labels to chunked volume");
+        gd.addFileField("Label_stack (TIFF)", "");
+        gd.addNumericField("Chunk_size (voxels)", ChunkedLabelVolume.DEFAULT_CHUNK_SIZE, 0);
+        gd.addMessage("the chunked volume is written next to the TIFF file with the " + ChunkedLabelVolume.EXTENSION + " extension");
+        gd.showDialog();
+        if (gd.wasCanceled()) return;
+
+        String path = gd.getNextString().trim();
+        int chunkSize = (int) gd.getNextNumber();
+
+        ImagePlus imp = IJ.openVirtual(path);
+        if (imp == null) {
+            IJ.error("Cannot open " + path);
+            return;
+        }
+        File output = outputFile(new File(path));
+        IJ.showStatus("Writing " + output.getName());
+        long start = System.currentTimeMillis();
+        try {
+            ChunkedLabelVolume.importStack(imp, output, chunkSize);
+        } catch (IOException e) {
+            IJ.error("Conversion to chunked volume failed: " + e.getMessage());
+            return;
+        }
+        IJ.log("chunked volume written to " + output + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Returns the chunked volume file corresponding to a TIFF file.
+     *
+     * @param tiff source file
+     * @return file in the same directory with the chunked volume extension
+     */
+    static File outputFile(File tiff) {
+        String name = tiff.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        return new File(tiff.getParentFile(), name + ChunkedLabelVolume.EXTENSION);
+    }
+}
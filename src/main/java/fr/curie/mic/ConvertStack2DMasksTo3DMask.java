@@ -28,10 +28,13 @@ package fr.curie.mic;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.plugin.PlugIn;
+import ij.gui.GenericDialog;
 import ij.plugin.filter.PlugInFilter;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * ImageJ plugin to convert a stack of 2D segmentation masks into a consistent 3D mask.
@@ -43,21 +46,23 @@ import ij.process.ShortProcessor;
  * </p>
  * <p>
  * Algorithm Overview:
- * 1. For each consecutive pair of slices (z-1, z):
- *    - Build a 2D histogram showing object co-occurrences
- *    - Calculate IoU score for each object pair
- *    - Match objects with IoU >= threshold
- *    - Assign new labels to unmatched objects
- * 2. Update the z-slice with corrected labels to maintain continuity
+ * 1. Index the objects of every slice (labels and areas), in parallel
+ * 2. For every slice z, in parallel, link each object to the object with the highest IoU >= threshold
+ *    in slice z-1; objects without match are searched in z-2 ... z-k (look-back window), which
+ *    closes the gaps left by objects missed on a few slices. The pixel positions of the objects of z
+ *    are only kept while z is linked
+ * 3. Merge the links into 3D objects with a union-find and number them in order of appearance
+ * 4. Update all slices with their 3D labels, in parallel
  * </p>
  */
 public class ConvertStack2DMasksTo3DMask implements PlugInFilter {
 
     ImagePlus myimp;
     double iou=0.5;
+    int window=1;
 
     /**
-     * Sets up the plugin and retrieves the IoU threshold from user input.
+     * Sets up the plugin and retrieves the IoU threshold and look-back window from user input.
      *
      * @param arg plugin argument (unused)
      * @param imp the image stack to process
@@ -66,77 +71,223 @@ public class ConvertStack2DMasksTo3DMask implements PlugInFilter {
     @Override
     public int setup(String arg, ImagePlus imp) {
         this.myimp=imp;
-        iou=IJ.getNumber("IoU threshold:",iou);
+        GenericDialog gd = new GenericDialog("Convert Stack 2D masks to 3D mask");
+        gd.addNumericField("IoU_threshold", iou, 2);
+        gd.addNumericField("Look-back_slices", window, 0);
+        gd.addMessage("objects without match in the previous slice are searched up to this number of slices back");
+        gd.showDialog();
+        if (gd.wasCanceled()) return DONE;
+        iou = gd.getNextNumber();
+        window = Math.max(1, (int) gd.getNextNumber());
         return DOES_ALL+STACK_REQUIRED;
     }
 
     /**
      * Processes the image stack, correcting object numbering from z=2 onwards.
+     * <p>
+     * Objects of each slice are indexed (labels and areas), then every object is linked in parallel to its best match
+     * (highest IoU) in the closest previous slice, up to the look-back window, that has one.
+     * Links are merged with a union-find into 3D objects, and every slice is relabeled in parallel.
+     * The result is always a 32-bit stack, so the number of 3D objects is not limited by the input bit depth.
+     * </p>
      *
      * @param ip the current slice's image processor (unused; stack is processed directly)
      */
     @Override
     public void run(ImageProcessor ip) {
-        MicUtils.correctObjectNumbering(myimp);
+        int maxLabel = MicUtils.correctObjectNumbering(myimp);
         ImageStack is=myimp.getImageStack();
-        for(int z=2;z<= is.getSize();z++){
-            correctNumber3D(is.getProcessor(z-1),is.getProcessor(z),iou);
+        int nSlices = is.getSize();
+
+        SliceObjects[] objects = new SliceObjects[nSlices + 1];
+        IntStream.rangeClosed(1, nSlices).parallel().forEach(z -> objects[z] = new SliceObjects(is.getProcessor(z), maxLabel));
+        IntStream.rangeClosed(2, nSlices).parallel().forEach(z -> linkObjects(objects, is, z, window, iou, maxLabel));
+
+        int[][] labels3D = mergeLinks(objects);
+
+        ImageStack output = is;
+        if (myimp.getBitDepth() != 32) {
+            output = new ImageStack(is.getWidth(), is.getHeight());
+            for (int z = 1; z <= nSlices; z++) output.addSlice(is.getSliceLabel(z), new FloatProcessor(is.getWidth(), is.getHeight()));
+        }
+        ImageStack labelStack = output;
+        IntStream.rangeClosed(1, nSlices).parallel().forEach(z ->
+                relabel(is.getProcessor(z), labelStack.getProcessor(z), objects[z].labels, labels3D[z], maxLabel));
+        if (output != is) {
+            myimp.setStack(output);
+            myimp.resetDisplayRange();
         }
 
+        int nObjects = 0;
+        for (int z = 1; z <= nSlices; z++) {
+            for (int label : labels3D[z]) nObjects = Math.max(nObjects, label);
+        }
+        IJ.log(nObjects + " 3D objects");
     }
 
     /**
-     * Corrects object numbering between two consecutive slices using IoU-based matching.
-     * <p>
-     * Algorithm:
-     * 1. Build 2D histogram counting co-occurrences of objects from both slices
-     * 1. Calculate 1D histograms for normalization
-     * 3. Compute IoU matrix from the 2D histogram
-     * 4. For each object in slice 2: find best matching object in slice 1 with IoU >= threshold
-     * 5. Assign matched objects to same label, or create new labels for unmatched objects
-     * 6. Update slice 2 pixel values with corrected labels
-     * </p>
+     * Links each object of slice z to the object with the highest IoU (at least the threshold) in slice z-1,
+     * or, if there is none, in z-2, and so on up to z-window.
+     * Overlaps are counted by reading the previous slices only at the pixels of the object, so looking further back
+     * only costs the area of the objects still unmatched. The pixel positions of slice z are indexed here and
+     * released once z is linked: previous slices are read from the stack and only their labels and areas are
+     * used, so at any time the positions are held for the slices being linked only, not for the whole stack.
      *
-     * @param ip1 the previous slice's image processor
-     * @param ip2 the current slice's image processor (will be modified)
+     * @param objects indexed objects of every slice (index 1 to nSlices)
+     * @param is the stack
+     * @param z slice to link
+     * @param window maximum number of slices to look back
      * @param thresholdIoU the minimum IoU score to consider objects as corresponding
+     * @param maxLabel highest label of the stack
      */
-    public void correctNumber3D(ImageProcessor ip1, ImageProcessor ip2, double thresholdIoU){
-        int max1 = (int)Math.round(ip1.getStats().max+1);
-        int max2 = (int)Math.round(ip2.getStats().max+1);
-        //IJ.log("max1="+max1);
-        //IJ.log("max2="+max2);
-        ImageProcessor histo = new ShortProcessor(max1 , max2);
-        MicUtils.histo2D(ip1,ip2,histo);
-        //new ImagePlus("histo2D",histo).show();
-
-        int[] histo1D1 = new int[max1];
-        int[] histo1D2 = new int[max2];
-        MicUtils.histo1D(ip1,histo1D1);
-        MicUtils.histo1D(ip2,histo1D2);
-
-        ImageProcessor ious = MicUtils.computesIoUs(histo,histo1D1,histo1D2);
-        //new ImagePlus("ious",ious).show();
-
-        int[] convertedIndex = new int[max2];
-        int currentMax=max1;
-        for(int i2=1; i2<max2; i2++){
-            int newi=0;
-            for(int i1=1;i1<max1;i1++){
-                if(ious.getf(i1,i2)>=thresholdIoU){
-                    newi=i1;
+    static void linkObjects(SliceObjects[] objects, ImageStack is, int z, int window, double thresholdIoU, int maxLabel) {
+        SliceObjects current = objects[z];
+        current.indexPixels(is.getProcessor(z), maxLabel);
+        int[] overlap = new int[maxLabel + 1];
+        int[] touched = new int[maxLabel + 1];
+        ImageProcessor[] previous = new ImageProcessor[window + 1];
+        for (int i = 0; i < current.labels.length; i++) {
+            for (int d = 1; d <= window && z - d >= 1; d++) {
+                if (previous[d] == null) previous[d] = is.getProcessor(z - d);
+                ImageProcessor ip = previous[d];
+                int nTouched = 0;
+                for (int p = current.start[i]; p < current.start[i + 1]; p++) {
+                    int label = (int) ip.getf(current.pixels[p]);
+                    if (label == 0) continue;
+                    if (overlap[label] == 0) touched[nTouched++] = label;
+                    overlap[label]++;
+                }
+                SliceObjects candidates = objects[z - d];
+                double bestIoU = -1;
+                int best = -1;
+                for (int t = 0; t < nTouched; t++) {
+                    int label = touched[t];
+                    double intersection = overlap[label];
+                    overlap[label] = 0;
+                    int index = Arrays.binarySearch(candidates.labels, label);
+                    double score = intersection / (candidates.getArea(index) + current.getArea(i) - intersection);
+                    if (score >= thresholdIoU && (score > bestIoU || (score == bestIoU && index < best))) {
+                        bestIoU = score;
+                        best = index;
+                    }
+                }
+                if (best >= 0) {
+                    current.linkSlice[i] = z - d;
+                    current.linkIndex[i] = best;
+                    break;
                 }
             }
-            if(newi==0) {
-                newi=currentMax;
-                currentMax++;
+        }
+        current.releasePixels();
+    }
+
+    /**
+     * Merges linked objects into 3D objects with a union-find over all slice objects, then numbers the
+     * 3D objects in order of first appearance.
+     *
+     * @param objects indexed and linked objects of every slice (index 1 to nSlices)
+     * @return 3D label of each object, in the order of {@link SliceObjects#labels}
+     */
+    static int[][] mergeLinks(SliceObjects[] objects) {
+        int[] offsets = new int[objects.length + 1];
+        for (int z = 1; z < objects.length; z++) offsets[z + 1] = offsets[z] + objects[z].labels.length;
+        int[] parent = new int[offsets[objects.length]];
+        for (int n = 0; n < parent.length; n++) parent[n] = n;
+
+        for (int z = 2; z < objects.length; z++) {
+            SliceObjects slice = objects[z];
+            for (int i = 0; i < slice.labels.length; i++) {
+                if (slice.linkSlice[i] == 0) continue;
+                int a = find(parent, offsets[z] + i);
+                int b = find(parent, offsets[slice.linkSlice[i]] + slice.linkIndex[i]);
+                // the earliest object stays the root so labels follow the order of appearance
+                if (a < b) parent[b] = a;
+                else if (b < a) parent[a] = b;
             }
-            convertedIndex[i2]=newi;
         }
-        for (int y=0;y<ip2.getHeight();y++){
-            for(int x=0;x<ip2.getWidth();x++){
-                ip2.setf(x,y,convertedIndex[Math.round(ip2.getf(x,y))]);
+
+        int[] label3D = new int[parent.length];
+        int next = 1;
+        for (int n = 0; n < parent.length; n++) {
+            int root = find(parent, n);
+            label3D[n] = root == n ? next++ : label3D[root];
+        }
+        int[][] labels3D = new int[objects.length][];
+        for (int z = 1; z < objects.length; z++) {
+            labels3D[z] = Arrays.copyOfRange(label3D, offsets[z], offsets[z + 1]);
+        }
+        return labels3D;
+    }
+
+    private static int find(int[] parent, int n) {
+        while (parent[n] != n) {
+            parent[n] = parent[parent[n]];
+            n = parent[n];
+        }
+        return n;
+    }
+
+    private static void relabel(ImageProcessor source, ImageProcessor target, int[] labels, int[] labels3D, int maxLabel) {
+        int[] convert = new int[maxLabel + 1];
+        for (int i = 0; i < labels.length; i++) convert[labels[i]] = labels3D[i];
+        LabelKernels.remap(source, target, convert);
+    }
+
+    /**
+     * Index of the objects of one slice: labels in ascending order and, for each object, the range
+     * start[i] to start[i + 1] - 1 of its pixels. The positions of the pixels (pixels[start[i]] to
+     * pixels[start[i + 1] - 1]) are only built while the slice is linked. Also holds the link found for each
+     * object (slice and index in that slice, linkSlice = 0 when unmatched).
+     */
+    static class SliceObjects {
+        final int[] labels;
+        final int[] start;
+        int[] pixels;
+        final int[] linkSlice;
+        final int[] linkIndex;
+
+        SliceObjects(ImageProcessor ip, int maxLabel) {
+            int nPixels = ip.getPixelCount();
+            int[] area = new int[maxLabel + 1];
+            for (int i = 0; i < nPixels; i++) area[(int) ip.getf(i)]++;
+            int nLabels = 0;
+            for (int label = 1; label <= maxLabel; label++) if (area[label] > 0) nLabels++;
+            labels = new int[nLabels];
+            start = new int[nLabels + 1];
+            int n = 0;
+            for (int label = 1; label <= maxLabel; label++) {
+                if (area[label] == 0) continue;
+                labels[n] = label;
+                start[n + 1] = start[n] + area[label];
+                n++;
+            }
+            linkSlice = new int[nLabels];
+            linkIndex = new int[nLabels];
+        }
+
+        /**
+         * Builds the pixel positions of the objects.
+         *
+         * @param ip the slice this index was built from
+         * @param maxLabel highest label of the stack
+         */
+        void indexPixels(ImageProcessor ip, int maxLabel) {
+            int[] position = new int[maxLabel + 1];
+            for (int n = 0; n < labels.length; n++) position[labels[n]] = start[n];
+            int nPixels = ip.getPixelCount();
+            pixels = new int[start[labels.length]];
+            for (int i = 0; i < nPixels; i++) {
+                int label = (int) ip.getf(i);
+                if (label > 0) pixels[position[label]++] = i;
             }
         }
+
+        void releasePixels() {
+            pixels = null;
+        }
+
+        int getArea(int index) {
+            return start[index + 1] - start[index];
+        }
     }
 }
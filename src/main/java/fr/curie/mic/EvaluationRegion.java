@@ -0,0 +1,363 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Region of the image in which the comparison is evaluated, given as area ROIs or as a binary mask.
+ * The analysis is restricted to the bounding box of the region: images are cropped to it before any
+ * computation, so that a small annotated patch of a large image is evaluated at the cost of the patch.
+ * Inside the bounding box, pixels outside the region are set to background, and objects lying mostly
+ * outside the region are marked as not analyzed.
+ * <p>
+ * A 2D region applies to every slice. A mask stack gives one region per slice and also restricts the
+ * analysis to the slices containing the region.
+ * <p>
+ * A region can also only bound the content of the images ({@link #ofContent}): the whole image is then
+ * evaluated, but only the bounding box of the foreground is processed since everything else is background.
+ */
+public class EvaluationRegion {
+
+    private final int width;
+    private final int height;
+    private final int nSlices;
+    private final Rectangle bounds;
+    private final int firstSlice;
+    private final int depth;
+    // cropped region planes, one per slice of [firstSlice, firstSlice + depth) or a single plane for all slices,
+    // null when the whole image is evaluated
+    private final byte[][] planes;
+
+    private EvaluationRegion(int width, int height, int nSlices, Rectangle bounds, int firstSlice, int depth, byte[][] planes) {
+        this.width = width;
+        this.height = height;
+        this.nSlices = nSlices;
+        this.bounds = bounds;
+        this.firstSlice = firstSlice;
+        this.depth = depth;
+        this.planes = planes;
+    }
+
+    /**
+     * Creates a region from a mask: every non-zero pixel is inside the region.
+     *
+     * @param mask 2D mask, or stack with one plane per slice
+     * @return the region
+     * @throws IllegalArgumentException if the mask is empty
+     */
+    public static EvaluationRegion fromMask(ImagePlus mask) {
+        ImageStack stack = mask.getImageStack();
+        int w = mask.getWidth();
+        int h = mask.getHeight();
+        int n = stack.getSize();
+        int xMin = w, yMin = h, xMax = -1, yMax = -1, zMin = n, zMax = -1;
+        for (int z = 0; z < n; z++) {
+            ImageProcessor ip = stack.getProcessor(z + 1);
+            for (int y = 0; y < h; y++) {
+                int offset = y * w;
+                for (int x = 0; x < w; x++) {
+                    if (ip.getf(offset + x) == 0) continue;
+                    if (x < xMin) xMin = x;
+                    if (x > xMax) xMax = x;
+                    if (y < yMin) yMin = y;
+                    if (y > yMax) yMax = y;
+                    if (z < zMin) zMin = z;
+                    zMax = z;
+                }
+            }
+        }
+        if (xMax < 0) throw new IllegalArgumentException("The evaluation region " + mask.getTitle() + " is empty");
+        Rectangle bounds = new Rectangle(xMin, yMin, xMax - xMin + 1, yMax - yMin + 1);
+        int firstSlice = n > 1 ? zMin : 0;
+        int depth = n > 1 ? zMax - zMin + 1 : 1;
+        byte[][] planes = new byte[depth][bounds.width * bounds.height];
+        for (int z = 0; z < depth; z++) {
+            ImageProcessor ip = stack.getProcessor(firstSlice + z + 1);
+            byte[] plane = planes[z];
+            for (int y = 0; y < bounds.height; y++) {
+                int offset = (bounds.y + y) * w + bounds.x;
+                for (int x = 0; x < bounds.width; x++) {
+                    if (ip.getf(offset + x) != 0) plane[y * bounds.width + x] = 1;
+                }
+            }
+        }
+        return new EvaluationRegion(w, h, n > 1 ? n : 0, bounds, firstSlice, depth, planes);
+    }
+
+    /**
+     * Creates a region evaluating the whole image while processing only the bounding box of its content.
+     * Both compared images must be background outside the bounding box.
+     *
+     * @param contentBounds bounding box of the foreground of both images, not empty
+     * @param width image width
+     * @param height image height
+     * @return the region
+     */
+    public static EvaluationRegion ofContent(Rectangle contentBounds, int width, int height) {
+        Rectangle bounds = contentBounds.intersection(new Rectangle(width, height));
+        if (bounds.isEmpty()) throw new IllegalArgumentException("The content bounds " + contentBounds + " are outside the image");
+        return new EvaluationRegion(width, height, 0, bounds, 0, 1, null);
+    }
+
+    /**
+     * Creates a 2D region from area ROIs: the region is the union of the ROIs.
+     *
+     * @param rois area ROIs
+     * @param width image width
+     * @param height image height
+     * @return the region
+     * @throws IllegalArgumentException if the ROIs do not cover any pixel of the image
+     */
+    public static EvaluationRegion fromRois(Roi[] rois, int width, int height) {
+        ByteProcessor mask = new ByteProcessor(width, height);
+        mask.setValue(255);
+        for (Roi roi : rois) {
+            if (roi != null && roi.isArea()) mask.fill(roi);
+        }
+        return fromMask(new ImagePlus("evaluation region", mask));
+    }
+
+    /**
+     * Opens a region from a file: a .roi file or a .zip of ROIs saved by the ROI Manager,
+     * otherwise a mask image.
+     *
+     * @param path path of the file
+     * @param width image width, used for ROIs
+     * @param height image height, used for ROIs
+     * @return the region
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the region is empty
+     */
+    public static EvaluationRegion open(String path, int width, int height) throws IOException {
+        String name = path.toLowerCase();
+        if (name.endsWith(".roi")) {
+            Roi roi = RoiDecoder.open(path);
+            if (roi == null) throw new IOException("Cannot read the ROI " + path);
+            return fromRois(new Roi[]{roi}, width, height);
+        }
+        if (name.endsWith(".zip")) return fromRois(readRois(path), width, height);
+        ImagePlus mask = IJ.openImage(path);
+        if (mask == null) throw new IOException("Cannot open the evaluation region " + path);
+        return fromMask(mask);
+    }
+
+    /**
+     * Reads the ROIs of a zip file saved by the ROI Manager.
+     *
+     * @param path path of the zip file
+     * @return the ROIs
+     * @throws IOException if the file cannot be read or contains no ROI
+     */
+    private static Roi[] readRois(String path) throws IOException {
+        List<Roi> rois = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(new FileInputStream(path))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (!entry.getName().toLowerCase().endsWith(".roi")) continue;
+                Roi roi = new RoiDecoder(readAll(zip), entry.getName()).getRoi();
+                if (roi != null) rois.add(roi);
+            }
+        }
+        if (rois.isEmpty()) throw new IOException("No ROI found in " + path);
+        return rois.toArray(new Roi[0]);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return bounding box of the region in image coordinates
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Returns the number of pixels of the evaluated domain, which is the whole image for {@link #ofContent} regions.
+     *
+     * @param slices number of slices of the full image
+     * @return number of pixels (voxels) evaluated
+     */
+    public long getPixelCount(int slices) {
+        if (planes == null) return (long) width * height * slices;
+        long count = 0;
+        for (byte[] plane : planes) {
+            for (byte b : plane) if (b != 0) count++;
+        }
+        return planes.length == 1 && nSlices == 0 ? count * slices : count;
+    }
+
+    /**
+     * @return true if the region was given as a mask stack, with one plane per slice
+     */
+    public boolean isStack() {
+        return nSlices > 0;
+    }
+
+    /**
+     * @return width of the full image
+     */
+    public int getImageWidth() {
+        return width;
+    }
+
+    /**
+     * @return height of the full image
+     */
+    public int getImageHeight() {
+        return height;
+    }
+
+    /**
+     * @return index (from 0) of the first slice of the region, 0 for a 2D region
+     */
+    public int getFirstSlice() {
+        return firstSlice;
+    }
+
+    /**
+     * Checks that an image has the size of the region image.
+     *
+     * @param imp image to check
+     * @throws IllegalArgumentException if the width, the height or, for a region stack, the number of slices differ
+     */
+    public void checkSize(ImagePlus imp) {
+        checkSize(imp.getWidth(), imp.getHeight(), imp.getStackSize());
+    }
+
+    /**
+     * Checks that an image size matches the size of the region image.
+     *
+     * @param width image width
+     * @param height image height
+     * @param slices number of slices of the image
+     * @throws IllegalArgumentException if the width, the height or, for a region stack, the number of slices differ
+     */
+    public void checkSize(int width, int height, int slices) {
+        if (width != this.width || height != this.height || (nSlices > 0 && slices != nSlices)) {
+            throw new IllegalArgumentException("The evaluation region (" + this.width + "x" + this.height
+                    + (nSlices > 0 ? "x" + nSlices : "") + ") does not match the image size ("
+                    + width + "x" + height + (nSlices > 0 ? "x" + slices : "") + ")");
+        }
+    }
+
+    /**
+     * Crops an image to the bounding box of the region. The image is not modified.
+     *
+     * @param imp image with the size of the region image
+     * @return cropped copy
+     */
+    public ImagePlus crop(ImagePlus imp) {
+        checkSize(imp);
+        ImageStack stack = imp.getImageStack();
+        int first = nSlices > 0 ? firstSlice : 0;
+        int last = nSlices > 0 ? firstSlice + depth : stack.getSize();
+        ImageStack cropped = new ImageStack(bounds.width, bounds.height);
+        for (int z = first; z < last; z++) cropped.addSlice(stack.getSliceLabel(z + 1), crop(stack.getProcessor(z + 1)));
+        ImagePlus result = new ImagePlus(imp.getTitle(), cropped);
+        if (imp.getCalibration() != null) result.setCalibration(imp.getCalibration().copy());
+        return result;
+    }
+
+    /**
+     * Crops a plane to the bounding box of the region. The plane is not modified.
+     *
+     * @param ip plane with the size of the region image
+     * @return cropped copy
+     */
+    public ImageProcessor crop(ImageProcessor ip) {
+        ip.setRoi(bounds);
+        ImageProcessor cropped = ip.crop();
+        ip.resetRoi();
+        return cropped;
+    }
+
+    /**
+     * Places a plane cropped by this region back in a plane with the size of the region image.
+     * Pixels outside the bounding box are 0.
+     *
+     * @param cropped plane with the size of the bounding box
+     * @return plane with the size of the region image
+     */
+    public ImageProcessor uncrop(ImageProcessor cropped) {
+        ImageProcessor full = cropped.createProcessor(width, height);
+        full.insert(cropped, bounds.x, bounds.y);
+        return full;
+    }
+
+    /**
+     * Clears the pixels of a cropped label image lying outside the region, and flags the objects having less
+     * than half of their pixels inside the region. Only the part of the objects inside the bounding box is
+     * considered. The image is modified in place.
+     *
+     * @param labels label image cropped by this region, with labels from 1 to maxLabel
+     * @param maxLabel maximum label
+     * @return flags indexed by label, true for the objects mostly outside the region
+     */
+    public boolean[] restrict(ImagePlus labels, int maxLabel) {
+        if (planes == null) return new boolean[maxLabel + 1];
+        long[] inside = new long[maxLabel + 1];
+        long[] total = new long[maxLabel + 1];
+        ImageStack stack = labels.getImageStack();
+        int size = bounds.width * bounds.height;
+        for (int z = 0; z < stack.getSize(); z++) {
+            ImageProcessor ip = stack.getProcessor(z + 1);
+            byte[] plane = planes[planes.length == 1 ? 0 : z];
+            for (int i = 0; i < size; i++) {
+                int label = (int) ip.getf(i);
+                if (label <= 0) continue;
+                total[label]++;
+                if (plane[i] != 0) inside[label]++;
+                else ip.setf(i, 0);
+            }
+        }
+        boolean[] outside = new boolean[maxLabel + 1];
+        for (int label = 1; label <= maxLabel; label++) outside[label] = 2 * inside[label] < total[label];
+        return outside;
+    }
+}
@@ -2,12 +2,21 @@ package fr.curie.mic;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.Roi;
 import ij.process.*;
 
 import java.awt.*;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 /**
  * Performs IoU (Intersection over Union) analysis between truth and test labeled images.
@@ -36,6 +45,20 @@ public class IoUAnalysis {
     private final int maxTest;
     private final HashMap<Double, ImageProcessor> colorCodeCache = new HashMap<>();
     private final ImageProcessor histo2D;
+    private ObjectStatistics truthStatistics;
+    private ObjectStatistics testStatistics;
+    private float[] truthObjectIds;
+    private float[] testObjectIds;
+    private double[] testScores;
+    // number of pixels/voxels compared, 0 if unknown
+    private long voxelCount;
+    // VI split, VI merge and ARI, computed on first request
+    private double[] clusteringScores;
+    // non-zero cells of the 2D histogram, collected on first request
+    private OverlapPairs overlapPairs;
+    private PixelErrorMap pixelErrorMap;
+    // region the analysis is restricted to, or null for the whole image
+    private EvaluationRegion region;
 
 
     /**
@@ -55,11 +78,15 @@ public class IoUAnalysis {
         this.iou = iou;
         this.maxTruth = maxTruth;
         this.maxTest = maxTest;
+        if (truth != null) this.voxelCount = (long) truth.getWidth() * truth.getHeight() * truth.getStackSize();
     }
 
     /**
      * Factory method to create an IoUAnalysis from labeled images with filtering options.
      * Normalizes object labels, computes IoU matrix, and filters objects by size and distance to border.
+     * The input images are not modified: if labels need renumbering, {@link #getTruth()} and
+     * {@link #getTest()} return renumbered copies, otherwise the inputs themselves.
+     * 32-bit images are first renumbered from their distinct values, so label IDs may be arbitrarily large or non-integer.
      * 
      * @param truth labeled truth image (3D stack)
      * @param test labeled test image (3D stack)
@@ -68,21 +95,222 @@ public class IoUAnalysis {
      * @return IoUAnalysis instance ready for metrics computation and visualization
      */
     public static IoUAnalysis create(ImagePlus truth, ImagePlus test, double minSize, double minDist) {
+        return create(truth, test, minSize, minDist, null);
+    }
+
+    /**
+     * Factory method to create an IoUAnalysis from labeled images, with a score image giving the confidence
+     * of the test objects. The score of each test object is the mean of the score image over the object,
+     * gathered in the same pass as the object statistics.
+     *
+     * @param truth labeled truth image (3D stack)
+     * @param test labeled test image (3D stack)
+     * @param minSize minimum object size in pixels; objects below this threshold are marked as not analyzed
+     * @param minDist minimum distance from image border in pixels; objects closer are marked as not analyzed
+     * @param testScores score image with the dimensions of test, or null
+     * @return IoUAnalysis instance ready for metrics computation and visualization
+     */
+    public static IoUAnalysis create(ImagePlus truth, ImagePlus test, double minSize, double minDist, ImagePlus testScores) {
+        return create(truth, test, minSize, minDist, testScores, null);
+    }
+
+    /**
+     * Factory method to create an IoUAnalysis restricted to an evaluation region.
+     * The images are cropped to the bounding box of the region before any computation, so the cost follows
+     * the size of the region rather than the size of the images. Pixels outside the region are set to background
+     * and objects having less than half of their pixels (within the bounding box) inside the region are marked
+     * as not analyzed. {@link #getTruth()} and {@link #getTest()} return the cropped images (see {@link #getRegion()}),
+     * while object positions and the border filter still refer to the full images.
+     *
+     * @param truth labeled truth image (3D stack)
+     * @param test labeled test image (3D stack)
+     * @param minSize minimum object size in pixels; objects below this threshold are marked as not analyzed
+     * @param minDist minimum distance from image border in pixels; objects closer are marked as not analyzed
+     * @param testScores score image with the dimensions of test, or null
+     * @param region evaluation region, or null to analyze the whole images
+     * @return IoUAnalysis instance ready for metrics computation and visualization
+     */
+    public static IoUAnalysis create(ImagePlus truth, ImagePlus test, double minSize, double minDist, ImagePlus testScores, EvaluationRegion region) {
         //long start = System.currentTimeMillis();
-        int maxTruth = MicUtils.correctObjectNumbering(truth);
-        int maxTest = MicUtils.correctObjectNumbering(test);
+        int fullDepth = truth.getStackSize();
+        if (region != null) {
+            truth = region.crop(truth);
+            test = region.crop(test);
+            if (testScores != null) testScores = region.crop(testScores);
+        }
+        float[] truthLabels = null;
+        float[] testLabels = null;
+        if (truth.getBitDepth() == 32) {
+            truthLabels = MicUtils.distinctLabels(truth);
+            truth = MicUtils.renumberSparseLabels(truth, truthLabels);
+        }
+        if (test.getBitDepth() == 32) {
+            testLabels = MicUtils.distinctLabels(test);
+            test = MicUtils.renumberSparseLabels(test, testLabels);
+        }
+        int[] truthConvert = MicUtils.conversionIndexes(truth);
+        int[] testConvert = MicUtils.conversionIndexes(test);
+        int maxTruth = MicUtils.maxIndex(truthConvert);
+        int maxTest = MicUtils.maxIndex(testConvert);
+        truth = MicUtils.renumberObjects(truth, truthConvert);
+        test = MicUtils.renumberObjects(test, testConvert);
+        // the cropped images are copies, so they can be restricted in place
+        boolean[] outsideTruth = region == null ? null : region.restrict(truth, maxTruth);
+        boolean[] outsideTest = region == null ? null : region.restrict(test, maxTest);
 
         ImageProcessor histo2D =MicUtils.histo2D(truth, maxTruth, test, maxTest);
-        int[] histoTruth = MicUtils.histo1D(truth, maxTruth);
-        int[] histoTest = MicUtils.histo1D(test, maxTest);
+        ObjectStatistics truthStatistics = ObjectStatistics.compute(truth, maxTruth);
+        ObjectStatistics testStatistics = ObjectStatistics.compute(test, maxTest, testScores);
+        long pixelCount = 0;
+        if (region != null) {
+            // positions, border tests and background counts refer to the full images
+            Rectangle bounds = region.getBounds();
+            pixelCount = region.getPixelCount(fullDepth);
+            truthStatistics.translate(bounds.x, bounds.y, region.getFirstSlice(), region.getImageWidth(), region.getImageHeight(), fullDepth, pixelCount);
+            testStatistics.translate(bounds.x, bounds.y, region.getFirstSlice(), region.getImageWidth(), region.getImageHeight(), fullDepth, pixelCount);
+            int[] pairCounts = (int[]) histo2D.getPixels();
+            long background = pixelCount;
+            for (int i = 1; i < pairCounts.length; i++) background -= pairCounts[i];
+            pairCounts[0] = (int) Math.min(Integer.MAX_VALUE, background);
+        }
 
-        ImageProcessor iou = MicUtils.computesIoUs(histo2D, histoTruth, histoTest);
+        ImageProcessor iou = MicUtils.computesIoUs(histo2D, truthStatistics.getCounts(), testStatistics.getCounts());
         IoUAnalysis result = new IoUAnalysis(truth, test, histo2D, iou, maxTruth, maxTest);
-        result.checkPositionAndSize(iou, histoTruth, histoTest, minSize, minDist, truth, test);
+        result.truthStatistics = truthStatistics;
+        result.testStatistics = testStatistics;
+        result.truthObjectIds = objectIds(truthLabels, truthConvert, maxTruth);
+        result.testObjectIds = objectIds(testLabels, testConvert, maxTest);
+        result.testScores = testStatistics.getMeanValues();
+        result.checkPositionAndSize(iou, minSize, minDist);
+        if (region != null) {
+            result.region = region;
+            result.voxelCount = pixelCount;
+            result.removefromIoU(iou, outsideTruth, outsideTest);
+        }
         //IJ.log("IoUAnalysis.create : "+(System.currentTimeMillis()-start)+" ms");
         return result;
     }
 
+    /**
+     * Factory method to create an IoUAnalysis from two chunked label volumes.
+     * Chunks that are empty in both volumes are skipped using the chunk tables only; the other chunks
+     * are read and accumulated in parallel, so the cost follows the foreground rather than the volume size.
+     * Labels are renumbered to be contiguous as for images. No labeled image is kept:
+     * {@link #getTruth()} and {@link #getTest()} return null, so composites cannot be drawn from this analysis.
+     *
+     * @param truth chunked truth volume
+     * @param test chunked test volume, with the same size and chunk size as truth
+     * @param minSize minimum object size in voxels; objects below this threshold are marked as not analyzed
+     * @param minDist minimum distance from image border in pixels; objects closer are marked as not analyzed
+     * @return IoUAnalysis instance ready for metrics computation
+     * @throws IOException if a chunk cannot be read
+     */
+    public static IoUAnalysis create(ChunkedLabelVolume truth, ChunkedLabelVolume test, double minSize, double minDist) throws IOException {
+        if (!truth.hasSameLayout(test)) throw new IllegalArgumentException("Truth and test volumes must have the same size and chunk size");
+        int rawMaxTruth = truth.getMaxLabel();
+        int rawMaxTest = test.getMaxLabel();
+        int[] chunks = IntStream.range(0, truth.getNChunks()).filter(i -> !truth.isEmpty(i) || !test.isEmpty(i)).toArray();
+        IJ.log("chunks analyzed: " + chunks.length + "/" + truth.getNChunks());
+
+        int nWorkers = Math.max(1, Math.min(Prefs.getThreads(), chunks.length));
+        ChunkAccumulator[] workers = new ChunkAccumulator[nWorkers];
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(nWorkers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < nWorkers; w++) {
+                ChunkAccumulator worker = new ChunkAccumulator(truth, test, rawMaxTruth, rawMaxTest);
+                workers[w] = worker;
+                futures.add(executor.submit(() -> {
+                    int k;
+                    while ((k = next.getAndIncrement()) < chunks.length) worker.add(chunks[k]);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Chunked analysis interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        ChunkAccumulator total = workers[0];
+        for (int w = 1; w < nWorkers; w++) total.merge(workers[w]);
+        if (total.incorrect > 0) IJ.log(total.incorrect + " pixels were incorrects!");
+
+        int[] truthConvert = contiguousLabels(total.truthStatistics.getCounts());
+        int[] testConvert = contiguousLabels(total.testStatistics.getCounts());
+        int maxTruth = MicUtils.maxIndex(truthConvert);
+        int maxTest = MicUtils.maxIndex(testConvert);
+        ObjectStatistics truthStatistics = total.truthStatistics.renumber(truthConvert, maxTruth);
+        ObjectStatistics testStatistics = total.testStatistics.renumber(testConvert, maxTest);
+
+        ImageProcessor histo2D = new IntProcessor(maxTruth + 1, maxTest + 1);
+        long foreground = 0;
+        for (Map.Entry<Long, long[]> pair : total.pairs.entrySet()) {
+            long key = pair.getKey();
+            if (key == 0) continue;
+            int x = truthConvert[(int) (key / (rawMaxTest + 1))];
+            int y = testConvert[(int) (key % (rawMaxTest + 1))];
+            long count = pair.getValue()[0];
+            histo2D.set(x, y, (int) Math.min(Integer.MAX_VALUE, count));
+            foreground += count;
+        }
+        long background = (long) truth.getWidth() * truth.getHeight() * truth.getDepth() - foreground;
+        histo2D.set(0, 0, (int) Math.min(Integer.MAX_VALUE, background));
+
+        ImageProcessor iou = MicUtils.computesIoUs(histo2D, truthStatistics.getCounts(), testStatistics.getCounts());
+        IoUAnalysis result = new IoUAnalysis(null, null, histo2D, iou, maxTruth, maxTest);
+        result.voxelCount = foreground + background;
+        result.truthStatistics = truthStatistics;
+        result.testStatistics = testStatistics;
+        result.truthObjectIds = objectIds(null, truthConvert, maxTruth);
+        result.testObjectIds = objectIds(null, testConvert, maxTest);
+        result.checkPositionAndSize(iou, minSize, minDist);
+        return result;
+    }
+
+    private static float[] identityIds(int max) {
+        float[] ids = new float[max + 1];
+        for (int label = 1; label <= max; label++) ids[label] = label;
+        return ids;
+    }
+
+    /**
+     * Builds the original label of each renumbered object.
+     *
+     * @param distinctLabels sorted distinct labels of a 32-bit image (renumbered to 1, 2, ...), or null
+     * @param convert conversion from labels (after sparse renumbering if any) to contiguous labels
+     * @param max number of objects
+     * @return original label indexed by renumbered label, 0 for the background
+     */
+    private static float[] objectIds(float[] distinctLabels, int[] convert, int max) {
+        float[] ids = new float[max + 1];
+        for (int label = 1; label < convert.length; label++) {
+            if (convert[label] > 0) ids[convert[label]] = distinctLabels == null ? label : distinctLabels[label - 1];
+        }
+        return ids;
+    }
+
+    /**
+     * Builds the conversion to contiguous labels from label counts: present labels get 1, 2, 3...
+     *
+     * @param counts voxel count per original label
+     * @return conversion indexed by original label (0 for background and absent labels)
+     */
+    private static int[] contiguousLabels(long[] counts) {
+        int[] convert = new int[counts.length];
+        int next = 1;
+        for (int label = 1; label < counts.length; label++) {
+            if (counts[label] > 0) convert[label] = next++;
+        }
+        return convert;
+    }
+
     /**
      * Factory method to create an IoUAnalysis from Regions of Interest (ROIs).
      * Converts ROIs to labeled images and computes IoU analysis with border filtering.
@@ -102,11 +330,13 @@ public class IoUAnalysis {
         int maxTruth = MicUtils.correctObjectNumbering(truth);
         int maxTest = MicUtils.correctObjectNumbering(test);
         ImageProcessor histo2D = MicUtils.histo2D(truth, maxTruth, test, maxTest);
-        int[] histoTruth = MicUtils.histo1D(truth, maxTruth);
-        int[] histoTest = MicUtils.histo1D(test, maxTest);
         ImageProcessor iou = buildIoUImageFromRois(truthRois, testRois);
         IoUAnalysis result = new IoUAnalysis(truth, test, histo2D, iou, maxTruth, maxTest);
-        result.checkPositionAndSize(iou, histoTruth, histoTest, 0, minDist, truth, test);
+        result.truthStatistics = ObjectStatistics.compute(truth, maxTruth);
+        result.testStatistics = ObjectStatistics.compute(test, maxTest);
+        result.truthObjectIds = identityIds(maxTruth);
+        result.testObjectIds = identityIds(maxTest);
+        result.checkPositionAndSize(iou, 0, minDist);
         return result;
     }
 
@@ -120,29 +350,7 @@ public class IoUAnalysis {
      * @return ByteProcessor with color indices ready for LUT visualization
      */
     public static ImageProcessor displayCombinationProcessor(ImageProcessor truth, ImageProcessor test, ImageProcessor colorcode) {
-        ByteProcessor result = new ByteProcessor(
-                truth.getWidth(),
-                truth.getHeight()
-        );
-
-        int maxTruthLabel = colorcode.getWidth() - 1;
-        int maxTestLabel = colorcode.getHeight() - 1;
-
-        for (int y = 0; y < truth.getHeight(); y++) {
-            for (int x = 0; x < truth.getWidth(); x++) {
-
-                int truthLabel = (int) truth.getf(x, y);
-                int testLabel = (int) test.getf(x, y);
-
-                if (truthLabel < 0 || testLabel < 0 || truthLabel > maxTruthLabel || testLabel  > maxTestLabel) {
-                    result.set(x, y, 0);
-                } else {
-                    result.set(x, y, colorcode.get(truthLabel, testLabel));
-                }
-            }
-        }
-
-        return result;
+        return new ByteProcessor(truth.getWidth(), truth.getHeight(), LabelKernels.lookup(truth, test, colorcode));
     }
 
     /**
@@ -228,6 +436,97 @@ public class IoUAnalysis {
     }
 
 
+    /**
+     * Returns the per-object statistics (size, bounding box, centroid) of the truth image.
+     *
+     * @return truth object statistics
+     */
+    public ObjectStatistics getTruthStatistics() {
+        return truthStatistics;
+    }
+
+    /**
+     * Returns the per-object statistics (size, bounding box, centroid) of the test image.
+     *
+     * @return test object statistics
+     */
+    public ObjectStatistics getTestStatistics() {
+        return testStatistics;
+    }
+
+    /**
+     * Returns the label each truth object had in the input, before renumbering.
+     *
+     * @return original labels indexed by truth label (index 0 is the background)
+     */
+    public float[] getTruthObjectIds() {
+        return truthObjectIds;
+    }
+
+    /**
+     * Returns the label each test object had in the input, before renumbering.
+     *
+     * @return original labels indexed by test label (index 0 is the background)
+     */
+    public float[] getTestObjectIds() {
+        return testObjectIds;
+    }
+
+    /**
+     * Sets the confidence of the test objects from a score table keyed by their original labels.
+     *
+     * @param scores scores by original test label
+     */
+    public void setTestScores(ObjectScores scores) {
+        testScores = scores.forObjects(testObjectIds);
+    }
+
+    /**
+     * Returns the confidence of the test objects, from a score image or a score table.
+     *
+     * @return scores indexed by test label (NaN when unknown), or null if no score was given
+     */
+    public double[] getTestScores() {
+        return testScores;
+    }
+
+    /**
+     * Computes the COCO-style average precision of the scored test objects at one IoU threshold.
+     *
+     * @param threshold IoU threshold
+     * @return AP in [0, 1], NaN without scores or truth objects
+     */
+    public double getAveragePrecision(double threshold) {
+        return getAveragePrecision(new double[]{threshold});
+    }
+
+    /**
+     * Computes the mean COCO-style average precision over several IoU thresholds,
+     * e.g. {@link AveragePrecision#cocoThresholds()} for AP@[.50:.95].
+     *
+     * @param thresholds IoU thresholds
+     * @return mean AP in [0, 1], NaN without scores or truth objects
+     */
+    public double getAveragePrecision(double[] thresholds) {
+        if (testScores == null) return Double.NaN;
+        double min = Double.POSITIVE_INFINITY;
+        for (double threshold : thresholds) min = Math.min(min, threshold);
+        return createAveragePrecision(min).compute(thresholds);
+    }
+
+    /**
+     * Prepares the COCO-style average precision of the scored test objects, for thresholds not lower than minIoU.
+     * Detections on truth objects that are not analyzed are ignored rather than counted as false positives.
+     *
+     * @param minIoU lowest IoU threshold that will be evaluated
+     * @return average precision evaluator, null without scores
+     */
+    public AveragePrecision createAveragePrecision(double minIoU) {
+        if (testScores == null) return null;
+        if (truthStatistics == null) return new AveragePrecision(iou, testScores, minIoU);
+        return new AveragePrecision(iou, histo2D, truthStatistics.getCounts(), testStatistics.getCounts(), testScores, minIoU);
+    }
+
     /**
      * Returns the 2D histogram of object overlaps.
      * 
@@ -249,19 +548,104 @@ public class IoUAnalysis {
         return getMatchingMetrics(threshold);
     }
 
+    /**
+     * Computes object-level metrics per object-area bin (COCO style) with a single greedy matching.
+     * Bins are [0, e1), [e1, e2), ..., [en, infinity) for the ascending edges e1..en.
+     * In each bin, TP and FN count the truth objects whose area falls in it (matched or not), and FP the
+     * unmatched test objects whose area falls in it; a test object matched to a truth object of another
+     * bin is not counted.
+     *
+     * @param threshold minimum IoU value for a match
+     * @param areaEdges ascending area edges (pixels or voxels)
+     * @return metrics of each bin, areaEdges.length + 1 entries
+     */
+    public Metrics[] getMetricsBySize(double threshold, double[] areaEdges){
+        return getMatchingMetrics(threshold, sizeBins(truthStatistics, maxTruth, areaEdges),
+                sizeBins(testStatistics, maxTest, areaEdges), areaEdges.length + 1);
+    }
+
+    /**
+     * Computes the object-level metrics per object-area bin for several IoU thresholds,
+     * with one matching pass per threshold for all bins.
+     *
+     * @param thresholds IoU thresholds
+     * @param areaEdges ascending area edges (see {@link #getMetricsBySize(double, double[])})
+     * @return metrics indexed by threshold then bin
+     */
+    public Metrics[][] getMetricsCurveBySize(double[] thresholds, double[] areaEdges){
+        int[] truthBins = sizeBins(truthStatistics, maxTruth, areaEdges);
+        int[] testBins = sizeBins(testStatistics, maxTest, areaEdges);
+        Metrics[][] curves = new Metrics[thresholds.length][];
+        for(int t = 0; t < thresholds.length; t++){
+            curves[t] = getMatchingMetrics(thresholds[t], truthBins, testBins, areaEdges.length + 1);
+        }
+        return curves;
+    }
+
+    /**
+     * Returns a readable name of an object-area bin, such as "area<32", "area 32-96" or "area>=96".
+     *
+     * @param areaEdges ascending area edges
+     * @param bin bin index (0 to areaEdges.length)
+     * @return bin name
+     */
+    public static String getSizeBinName(double[] areaEdges, int bin){
+        if(bin == 0) return "area<" + formatArea(areaEdges[0]);
+        if(bin == areaEdges.length) return "area>=" + formatArea(areaEdges[bin - 1]);
+        return "area " + formatArea(areaEdges[bin - 1]) + "-" + formatArea(areaEdges[bin]);
+    }
+
+    private static String formatArea(double area){
+        return IJ.d2s(area, area == Math.floor(area) ? 0 : 2);
+    }
+
+    /**
+     * Finds the area bin of each object from its pixel count.
+     *
+     * @param statistics object statistics
+     * @param max number of objects
+     * @param areaEdges ascending area edges
+     * @return bin of object i + 1 at index i
+     */
+    private static int[] sizeBins(ObjectStatistics statistics, int max, double[] areaEdges){
+        int[] bins = new int[max];
+        for(int i = 0; i < max; i++){
+            long area = statistics.getCount(i + 1);
+            int bin = 0;
+            while(bin < areaEdges.length && area >= areaEdges[bin]) bin++;
+            bins[i] = bin;
+        }
+        return bins;
+    }
+
     /**
      * Computes object-level metrics using greedy matching strategy.
      * 
+     * @param threshold minimum IoU threshold for valid matches
+     * @return Metrics with TP, FP, FN counts
+     */
+    private Metrics getMatchingMetrics(double threshold){
+        return getMatchingMetrics(threshold, null, null, 1)[0];
+    }
+
+    /**
+     * Computes object-level metrics using greedy matching strategy, counted per object bin.
+     * 
      * Algorithm:
      * 1. Collect all IoU pairs above threshold
      * 2. Sort pairs by descending IoU value
      * 3. Greedily assign matches: each valid pair that hasn't used either object
      * 4. Count TP (matched objects), FP (unmatched test), FN (unmatched truth)
+     *    and sum the IoUs of the matched pairs for the panoptic quality;
+     *    TP and FN go to the bin of the truth object, FP to the bin of the test object
      * 
      * @param threshold minimum IoU threshold for valid matches
-     * @return Metrics with TP, FP, FN counts
+     * @param truthBins bin of each truth object (index = label - 1), null for a single bin
+     * @param testBins bin of each test object (index = label - 1), null for a single bin
+     * @param nBins number of bins
+     * @return Metrics with TP, FP, FN counts of each bin
      */
-    private Metrics getMatchingMetrics(double threshold){
+    private Metrics[] getMatchingMetrics(double threshold, int[] truthBins, int[] testBins, int nBins){
         int nTruth = maxTruth;
         int nTest = maxTest;
         boolean[] validTruth = new boolean[nTruth];
@@ -286,24 +670,243 @@ public class IoUAnalysis {
         // Greedy matching: assign highest IoU pairs first, prevent one-to-many
         boolean[] acceptedTruth = new boolean[nTruth];
         boolean[] acceptedTest = new boolean[nTest];
-        int tp = 0;
+        long[] tp = new long[nBins];
+        double[] matchedIoUSum = new double[nBins];
         for(ObjectMatch match : matches){
             if(acceptedTruth[match.truth] || acceptedTest[match.test]) continue;
             acceptedTruth[match.truth] = true;
             acceptedTest[match.test] = true;
-            tp++;
+            int bin = truthBins == null ? 0 : truthBins[match.truth];
+            tp[bin]++;
+            matchedIoUSum[bin] += match.iou;
         }
         
         // Count unmatched objects
-        int fp = 0;
+        long[] fp = new long[nBins];
         for(int j = 0; j < nTest; j++){
-            if(validTest[j] && !acceptedTest[j]) fp++;
+            if(validTest[j] && !acceptedTest[j]) fp[testBins == null ? 0 : testBins[j]]++;
         }
-        int fn = 0;
+        long[] fn = new long[nBins];
         for(int i = 0; i < nTruth; i++){
-            if(validTruth[i] && !acceptedTruth[i]) fn++;
+            if(validTruth[i] && !acceptedTruth[i]) fn[truthBins == null ? 0 : truthBins[i]]++;
+        }
+        Metrics[] metrics = new Metrics[nBins];
+        for(int bin = 0; bin < nBins; bin++) metrics[bin] = new Metrics(tp[bin], fp[bin], fn[bin], matchedIoUSum[bin]);
+        return metrics;
+    }
+
+    /**
+     * Computes the Aggregated Jaccard Index (AJI): each truth object is paired with its best-IoU test object,
+     * AJI is the sum of the intersections of these pairs over the sum of their unions plus the sizes of
+     * the unpaired truth and test objects. A test object may be paired with several truth objects.
+     * Objects not analyzed (filtered by size or distance to border) are ignored.
+     *
+     * @return AJI value [0, 1], NaN if there is no object
+     */
+    public double getAggregatedJaccardIndex(){
+        return aggregatedJaccardIndex(false);
+    }
+
+    /**
+     * Computes AJI+, the Aggregated Jaccard Index with a unique pairing: pairs are accepted greedily by
+     * decreasing IoU, each truth and test object being used at most once, so that no test object is counted
+     * in several unions.
+     *
+     * @return AJI+ value [0, 1], NaN if there is no object
+     */
+    public double getAggregatedJaccardIndexPlus(){
+        return aggregatedJaccardIndex(true);
+    }
+
+    /**
+     * Computes AJI or AJI+ from the non-zero overlaps of the 2D histogram and the object sizes.
+     *
+     * @param unique true for a one-to-one pairing (AJI+), false for the best test object of each truth object (AJI)
+     * @return aggregated Jaccard index, NaN if the union is empty
+     */
+    private double aggregatedJaccardIndex(boolean unique){
+        long[] truthCounts = truthStatistics.getCounts();
+        long[] testCounts = testStatistics.getCounts();
+        boolean[] validTruth = new boolean[maxTruth + 1];
+        boolean[] validTest = new boolean[maxTest + 1];
+        for(int x = 1; x <= maxTruth; x++) validTruth[x] = iou.getf(x, 0) >= 0;
+        for(int y = 1; y <= maxTest; y++) validTest[y] = iou.getf(0, y) >= 0;
+
+        // overlapping pairs of analyzed objects (labels 1..max) with their IoU
+        OverlapPairs pairs = getOverlapPairs();
+        ArrayList<ObjectMatch> overlaps = new ArrayList<>();
+        for(int k = 0; k < pairs.size; k++){
+            int x = pairs.truth[k];
+            int y = pairs.test[k];
+            if(x == 0 || y == 0 || !validTruth[x] || !validTest[y]) continue;
+            overlaps.add(new ObjectMatch(x, y, iou.getf(x, y)));
+        }
+
+        int[] pairedTest = new int[maxTruth + 1];
+        boolean[] usedTest = new boolean[maxTest + 1];
+        if(unique){
+            overlaps.sort((a, b) -> Double.compare(b.iou, a.iou));
+            for(ObjectMatch match : overlaps){
+                if(pairedTest[match.truth] != 0 || usedTest[match.test]) continue;
+                pairedTest[match.truth] = match.test;
+                usedTest[match.test] = true;
+            }
+        } else {
+            double[] bestIoU = new double[maxTruth + 1];
+            for(ObjectMatch match : overlaps){
+                if(match.iou > bestIoU[match.truth]){
+                    bestIoU[match.truth] = match.iou;
+                    pairedTest[match.truth] = match.test;
+                }
+            }
+            for(int x = 1; x <= maxTruth; x++) usedTest[pairedTest[x]] = true;
+        }
+
+        long intersections = 0;
+        long unions = 0;
+        for(int x = 1; x <= maxTruth; x++){
+            if(!validTruth[x]) continue;
+            int y = pairedTest[x];
+            if(y == 0){
+                unions += truthCounts[x];
+                continue;
+            }
+            long intersection = histo2D.get(x, y);
+            intersections += intersection;
+            unions += truthCounts[x] + testCounts[y] - intersection;
+        }
+        for(int y = 1; y <= maxTest; y++){
+            if(validTest[y] && !usedTest[y]) unions += testCounts[y];
+        }
+        return unions > 0 ? (double) intersections / unions : Double.NaN;
+    }
+
+    /**
+     * Returns the split part of the Variation of Information, H(test | truth) in bits:
+     * how much the test labeling over-segments the truth.
+     * VI and ARI compare the two labelings as partitions of the image, background being one more cluster
+     * in each; all objects are used, including those not analyzed for the object-level metrics.
+     *
+     * @return VI split (0 for identical labelings)
+     */
+    public double getVariationOfInformationSplit(){
+        return getClusteringScores()[0];
+    }
+
+    /**
+     * Returns the merge part of the Variation of Information, H(truth | test) in bits:
+     * how much the test labeling under-segments (merges) the truth.
+     *
+     * @return VI merge (0 for identical labelings)
+     */
+    public double getVariationOfInformationMerge(){
+        return getClusteringScores()[1];
+    }
+
+    /**
+     * Returns the Variation of Information VI = H(truth | test) + H(test | truth) in bits.
+     *
+     * @return VI (0 for identical labelings)
+     */
+    public double getVariationOfInformation(){
+        return getClusteringScores()[0] + getClusteringScores()[1];
+    }
+
+    /**
+     * Returns the Adjusted Rand Index between the truth and test labelings.
+     *
+     * @return ARI (1 for identical labelings, around 0 for independent ones), NaN if undefined
+     */
+    public double getAdjustedRandIndex(){
+        return getClusteringScores()[2];
+    }
+
+    private double[] getClusteringScores(){
+        if(clusteringScores == null) clusteringScores = computeClusteringScores();
+        return clusteringScores;
+    }
+
+    /**
+     * Computes VI split, VI merge and ARI from the non-zero cells of the contingency table (2D histogram),
+     * which are collected once per analysis and shared with AJI. Marginals come from the object statistics;
+     * the background/background cell, which may be clipped in the histogram, is recomputed from the number
+     * of pixels. Pair counts are accumulated in double as they exceed 64 bits for volumes above ~4e9 voxels.
+     *
+     * @return {VI split, VI merge, ARI}
+     */
+    private double[] computeClusteringScores(){
+        long[] truthCounts = truthStatistics.getCounts();
+        long[] testCounts = testStatistics.getCounts();
+        OverlapPairs cells = getOverlapPairs();
+        long foreground = cells.total;
+        long truthForeground = 0;
+        long testForeground = 0;
+        for(int x = 1; x <= maxTruth; x++) truthForeground += truthCounts[x];
+        for(int y = 1; y <= maxTest; y++) testForeground += testCounts[y];
+        long n = voxelCount > 0 ? voxelCount : foreground + histo2D.get(0, 0);
+        if(n == 0) return new double[]{0, 0, Double.NaN};
+        long truthBackground = n - truthForeground;
+        long testBackground = n - testForeground;
+
+        // H(test|truth) = -sum n_ij/N log(n_ij/a_i), H(truth|test) = -sum n_ij/N log(n_ij/b_j),
+        // the background/background cell first
+        double split = 0;
+        double merge = 0;
+        double pairsJoint = 0;
+        long backgroundCell = n - foreground;
+        if(backgroundCell > 0){
+            split -= backgroundCell * Math.log((double) backgroundCell / truthBackground);
+            merge -= backgroundCell * Math.log((double) backgroundCell / testBackground);
+            pairsJoint += pairs(backgroundCell);
         }
-        return new Metrics(tp, fp, fn);
+        for(int k = 0; k < cells.size; k++){
+            int x = cells.truth[k];
+            int y = cells.test[k];
+            long nij = cells.counts[k];
+            long a = (x == 0) ? truthBackground : truthCounts[x];
+            long b = (y == 0) ? testBackground : testCounts[y];
+            split -= nij * Math.log((double) nij / a);
+            merge -= nij * Math.log((double) nij / b);
+            pairsJoint += pairs(nij);
+        }
+        double pairsTruth = pairs(truthBackground);
+        for(int x = 1; x <= maxTruth; x++) pairsTruth += pairs(truthCounts[x]);
+        double pairsTest = pairs(testBackground);
+        for(int y = 1; y <= maxTest; y++) pairsTest += pairs(testCounts[y]);
+        double toBits = 1.0 / (n * Math.log(2));
+
+        double expected = pairsTruth * pairsTest / pairs(n);
+        double maximum = 0.5 * (pairsTruth + pairsTest);
+        double ari = (maximum == expected) ? Double.NaN : (pairsJoint - expected) / (maximum - expected);
+        return new double[]{Math.max(0, split * toBits), Math.max(0, merge * toBits), ari};
+    }
+
+    /**
+     * Returns the non-zero cells of the 2D histogram other than background/background, collected in one scan
+     * on first request. Filtered objects are kept, so the cells are valid whatever objects are analyzed.
+     *
+     * @return non-zero cells, in row order (test label, then truth label)
+     */
+    private OverlapPairs getOverlapPairs(){
+        if(overlapPairs == null) overlapPairs = new OverlapPairs(histo2D);
+        return overlapPairs;
+    }
+
+    private static double pairs(long count){
+        return 0.5 * count * (double) (count - 1);
+    }
+
+    /**
+     * Returns the summed-area tables of the pixel-level TP, FP and FN maps, built on first request.
+     * Pixel-level precision and recall of any rectangle can then be queried in constant time.
+     *
+     * @return pixel error map of the analysis (slices summed for stacks)
+     * @throws IllegalStateException for analyses of chunked volumes, which keep no labeled image
+     */
+    public PixelErrorMap getPixelErrorMap(){
+        if(truth == null || test == null) throw new IllegalStateException("No labeled image kept by this analysis");
+        if(pixelErrorMap == null) pixelErrorMap = PixelErrorMap.of(truth, test);
+        return pixelErrorMap;
     }
 
     /**
@@ -320,23 +923,33 @@ public class IoUAnalysis {
     }
 
     /**
-     * Returns the truth labeled image.
+     * Returns the truth labeled image, with contiguous labels matching the IoU matrix.
      * 
-     * @return ImagePlus containing ground truth object labels
+     * @return ImagePlus containing ground truth object labels, null for chunked volumes
      */
     public ImagePlus getTruth() {
         return truth;
     }
 
     /**
-     * Returns the test labeled image.
+     * Returns the test labeled image, with contiguous labels matching the IoU matrix.
      * 
-     * @return ImagePlus containing test segmentation object labels
+     * @return ImagePlus containing test segmentation object labels, null for chunked volumes
      */
     public ImagePlus getTest() {
         return test;
     }
 
+    /**
+     * Returns the evaluation region the analysis is restricted to. When set, the labeled images are cropped
+     * to its bounding box and object positions are relative to the bounding box.
+     *
+     * @return evaluation region, or null if the whole images are analyzed
+     */
+    public EvaluationRegion getRegion() {
+        return region;
+    }
+
     /**
      * Returns the maximum label value in the truth image.
      * 
@@ -496,158 +1109,63 @@ public class IoUAnalysis {
     }
 
     /**
-     * Filters objects by size and distance to image border.
-     * Objects that are too small or too close to borders are marked as not analyzed (IoU = -1).
+     * Filters objects by size and distance to image border using the per-object statistics.
+     * Objects that are too small, touch a horizontal or vertical border (minDist &ge; 0)
+     * or whose centroid is closer than minDist to such a border are marked as not analyzed (IoU = -1).
      * 
      * @param iou IoU matrix to filter
-     * @param histoTruth pixel count histogram for truth objects
-     * @param histoTest pixel count histogram for test objects
      * @param minSize minimum object size in pixels
-     * @param minDist minimum distance from border in pixels
-     * @param truth ground truth image stack
-     * @param test test segmentation image stack
-     */
-    private void checkPositionAndSize(
-            ImageProcessor iou,
-            int[] histoTruth,
-            int[] histoTest,
-            double minSize,
-            double minDist,
-            ImagePlus truth,
-            ImagePlus test
-    ) {
-        // Mark undersized objects
-        for (int y = 0; y < iou.getHeight(); y++) {
-            for (int x = 0; x < iou.getWidth(); x++) {
-                boolean truthTooSmall = x >= 0 && x < histoTruth.length && histoTruth[x] < minSize;
-                boolean testTooSmall = y >= 0 && y < histoTest.length && histoTest[y] < minSize;
-
-                if (truthTooSmall || testTooSmall) {
-                    iou.setf(x, y, -1);
-                }
-            }
-        }
-
-        // Mark objects touching or near image borders
-        if (minDist < 0) return;
-
-        ArrayList<Integer> borderTruth = new ArrayList<>();
-        ImageStack truthStack = truth.getImageStack();
-
-        for (int z = 1; z <= truthStack.getSize(); z++) {
-            borderTruth.addAll( objectBorder(truthStack.getProcessor(z), minDist)   );
-        }
-
-        Set<Integer> truthSet = new HashSet<>(borderTruth);
-        borderTruth = new ArrayList<>(truthSet);
-        ArrayList<Integer> borderTest = new ArrayList<>();
-        ImageStack testStack = test.getImageStack();
-
-        for (int z = 1; z <= testStack.getSize(); z++) {
-            borderTest.addAll(objectBorder( testStack.getProcessor(z), minDist)  );
-        }
-
-        Set<Integer> testSet = new HashSet<>(borderTest);
-        borderTest = new ArrayList<>(testSet);
-
-        removefromIoU(iou, borderTruth, borderTest);
+     * @param minDist minimum distance from border in pixels (-1 to keep objects on borders)
+     */
+    private void checkPositionAndSize(ImageProcessor iou, double minSize, double minDist) {
+        boolean[] removedTruth = rejectedObjects(truthStatistics, minSize, minDist);
+        boolean[] removedTest = rejectedObjects(testStatistics, minSize, minDist);
+        removefromIoU(iou, removedTruth, removedTest);
     }
 
     /**
-     * Identifies all object labels that touch or are close to image borders.
-     * Scans a border region of width/height minDist around image edges.
+     * Flags the objects rejected by the size and border filters. Background (label 0) is never rejected.
      * 
-     * @param ip labeled image processor (single plane)
-     * @param minDist border distance threshold
-     * @return list of object labels within minDist pixels of any edge
+     * @param statistics per-object statistics
+     * @param minSize minimum object size in pixels
+     * @param minDist minimum distance from border in pixels
+     * @return flags indexed by label
      */
-    private ArrayList<Integer> objectBorder(ImageProcessor ip, double minDist) {
-
-        ArrayList<Integer> border = new ArrayList<>();
-
-        int dist = (int) Math.round(minDist);
-
-        dist = Math.max(0, dist);
-        dist = Math.min(dist, Math.min(ip.getWidth(), ip.getHeight()) - 1);
-
-        // Check top and bottom edges
-        for (int x = 0; x < ip.getWidth(); x++) {
-            for (int y = 0; y <= dist; y++) {
-
-                float v1 = ip.getf(x, y);
-                float v2 = ip.getf(x, ip.getHeight() - 1 - y);
-
-                if (v1 > 0) border.add((int) v1);
-                if (v2 > 0) border.add((int) v2);
-            }
-        }
-
-        // Check left and right edges
-        for (int y = 0; y < ip.getHeight(); y++) {
-            for (int x = 0; x <= dist; x++) {
-
-                float v1 = ip.getf(x, y);
-                float v2 = ip.getf(ip.getWidth() - 1 - x, y);
-
-                if (v1 > 0) border.add((int) v1);
-                if (v2 > 0) border.add((int) v2);
+    private static boolean[] rejectedObjects(ObjectStatistics statistics, double minSize, double minDist) {
+        boolean[] rejected = new boolean[statistics.getMaxLabel() + 1];
+        for (int label = 1; label < rejected.length; label++) {
+            if (statistics.getCount(label) < minSize) {
+                rejected[label] = true;
+            } else if (minDist >= 0 && statistics.getCount(label) > 0) {
+                rejected[label] = statistics.touchesBorder(label)
+                        || statistics.getCentroidDistanceToBorder(label) < minDist;
             }
         }
-
-        // Remove duplicates and return unique border object labels
-        Set<Integer> set = new HashSet<>(border);
-        return new ArrayList<>(set);
+        return rejected;
     }
 
     /**
-     * Marks all IoU entries for border objects as not analyzed (-1).
+     * Marks all IoU entries of rejected objects as not analyzed (-1).
      * 
      * @param iou IoU matrix to modify
-     * @param borderTruth list of truth object labels to remove
-     * @param borderTest list of test object labels to remove
+     * @param removedTruth flags of truth objects to remove, indexed by label
+     * @param removedTest flags of test objects to remove, indexed by label
      */
-    private void removefromIoU(ImageProcessor iou, ArrayList<Integer> borderTruth, ArrayList<Integer> borderTest) {
-        // Mark entire rows (test objects) as not analyzed
-        for (Integer bt : borderTruth) {
-
-            if (bt == null) continue;
-
-            int truthLabel = bt;
-
-            if (truthLabel <= 0 || truthLabel >= iou.getWidth()) {
-                IJ.log(
-                        "Warning: truth border label " +
-                                truthLabel +
-                                " ignored because IoU width is " +
-                                iou.getWidth()
-                );
-                continue;
-            }
-
+    private void removefromIoU(ImageProcessor iou, boolean[] removedTruth, boolean[] removedTest) {
+        int width = Math.min(iou.getWidth(), removedTruth.length);
+        int height = Math.min(iou.getHeight(), removedTest.length);
+        // Mark entire columns (truth objects) as not analyzed
+        for (int x = 1; x < width; x++) {
+            if (!removedTruth[x]) continue;
             for (int y = 0; y < iou.getHeight(); y++) {
-                iou.setf(truthLabel, y, -1);
+                iou.setf(x, y, -1);
             }
         }
-
-        // Mark entire columns (truth objects) as not analyzed
-        for (Integer bt : borderTest) {
-
-            if (bt == null) continue;
-
-            int testLabel = bt;
-
-            if (testLabel <= 0 || testLabel >= iou.getHeight()) {
-                IJ.log(
-                        "Warning: test border label " +
-                                testLabel +
-                                " ignored because IoU height is " +
-                                iou.getHeight()
-                );
-                continue;
-            }
-
+        // Mark entire rows (test objects) as not analyzed
+        for (int y = 1; y < height; y++) {
+            if (!removedTest[y]) continue;
             for (int x = 0; x < iou.getWidth(); x++) {
-                iou.setf(x, testLabel, -1);
+                iou.setf(x, y, -1);
             }
         }
     }
@@ -666,6 +1184,9 @@ public class IoUAnalysis {
 
         result.setPixelMetrics(getPixelMetrics());
         result.setObjectMetrics(getMetrics(0.5));
+        result.setAggregatedJaccardIndex(getAggregatedJaccardIndex(), getAggregatedJaccardIndexPlus());
+        result.setVariationOfInformation(getVariationOfInformationSplit(), getVariationOfInformationMerge());
+        result.setAdjustedRandIndex(getAdjustedRandIndex());
 
         int nbIndexes = (int)Math.round((overlapMax - overlapMin) / overlapInc + 1);
 
@@ -693,12 +1214,12 @@ public class IoUAnalysis {
      * @param width image width
      * @param height image height
      * @param rois array of ROIs to label
-     * @return ShortProcessor labeled image
+     * @return 32-bit labeled image
      */
     private static ImageProcessor labeledImageFromRois(int width, int height, Roi[] rois){
-        ImageProcessor ip = new ShortProcessor(width, height);
+        ImageProcessor ip = new FloatProcessor(width, height);
         for(int i = 0; i < rois.length; i++){
-            ip.setColor(i + 1);
+            ip.setValue(i + 1);
             ip.fill(rois[i]);
         }
         return ip;
@@ -776,6 +1297,105 @@ public class IoUAnalysis {
         return filtered;
     }
 
+    /**
+     * Per-worker accumulation of the object statistics and label co-occurrences of chunked volumes.
+     * Co-occurrences are kept sparse, keyed by truthLabel * (maxTest + 1) + testLabel,
+     * and counted by runs since neighbouring voxels mostly share their labels.
+     */
+    private static class ChunkAccumulator {
+        final ChunkedLabelVolume truth;
+        final ChunkedLabelVolume test;
+        final long testRange;
+        final ObjectStatistics truthStatistics;
+        final ObjectStatistics testStatistics;
+        final HashMap<Long, long[]> pairs = new HashMap<>();
+        int incorrect;
+
+        ChunkAccumulator(ChunkedLabelVolume truth, ChunkedLabelVolume test, int maxTruth, int maxTest) {
+            this.truth = truth;
+            this.test = test;
+            this.testRange = maxTest + 1L;
+            truthStatistics = new ObjectStatistics(truth.getWidth(), truth.getHeight(), truth.getDepth(), maxTruth);
+            testStatistics = new ObjectStatistics(test.getWidth(), test.getHeight(), test.getDepth(), maxTest);
+        }
+
+        void add(int chunk) throws IOException {
+            int x0 = truth.getChunkX(chunk);
+            int y0 = truth.getChunkY(chunk);
+            int z0 = truth.getChunkZ(chunk);
+            int w = truth.getChunkWidth(chunk);
+            int h = truth.getChunkHeight(chunk);
+            int d = truth.getChunkDepth(chunk);
+            int[] truthLabels = truth.readChunk(chunk);
+            int[] testLabels = test.readChunk(chunk);
+            incorrect += truthStatistics.add(truthLabels, x0, y0, z0, w, h, d);
+            testStatistics.add(testLabels, x0, y0, z0, w, h, d);
+
+            long runKey = -1;
+            long run = 0;
+            for (int i = 0; i < truthLabels.length; i++) {
+                int t = truthLabels[i];
+                int s = testLabels[i];
+                if (t < 0 || s < 0) continue;
+                long key = t * testRange + s;
+                if (key != runKey) {
+                    if (run > 0) count(runKey, run);
+                    runKey = key;
+                    run = 0;
+                }
+                run++;
+            }
+            if (run > 0) count(runKey, run);
+        }
+
+        private void count(long key, long n) {
+            long[] counter = pairs.get(key);
+            if (counter == null) pairs.put(key, new long[]{n});
+            else counter[0] += n;
+        }
+
+        void merge(ChunkAccumulator other) {
+            truthStatistics.merge(other.truthStatistics);
+            testStatistics.merge(other.testStatistics);
+            for (Map.Entry<Long, long[]> pair : other.pairs.entrySet()) count(pair.getKey(), pair.getValue()[0]);
+            incorrect += other.incorrect;
+        }
+    }
+
+    /**
+     * Non-zero cells of a 2D histogram, background/background excluded.
+     */
+    private static class OverlapPairs {
+        int size;
+        int[] truth = new int[16];
+        int[] test = new int[16];
+        long[] counts = new long[16];
+        // sum of the counts
+        long total;
+
+        OverlapPairs(ImageProcessor histo2D){
+            int width = histo2D.getWidth();
+            int height = histo2D.getHeight();
+            int[] cells = histo2D.getPixels() instanceof int[] ? (int[]) histo2D.getPixels() : null;
+            for(int y = 0; y < height; y++){
+                for(int x = (y == 0) ? 1 : 0; x < width; x++){
+                    long count = cells != null ? cells[y * width + x] : histo2D.get(x, y);
+                    if(count == 0) continue;
+                    if(size == truth.length){
+                        truth = Arrays.copyOf(truth, 2 * size);
+                        test = Arrays.copyOf(test, 2 * size);
+                        counts = Arrays.copyOf(counts, 2 * size);
+                    }
+                    truth[size] = x;
+                    test[size] = y;
+                    counts[size] = count;
+                    total += count;
+                    size++;
+                }
+            }
+        }
+    }
+
     /**
      * Represents a potential match between a truth and test object with associated IoU value.
      */
@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Per-pixel kernels applied to whole label planes: label remapping and color-code lookup.
+ * <p>
+ * The loops work on the pixel arrays themselves (byte[], short[], float[]) instead of calling
+ * getf/setf for every pixel, so the JIT compiles them into tight gather loops without virtual calls.
+ * Other processor types fall back to getf/setf.
+ * </p>
+ */
+public final class LabelKernels {
+
+    private LabelKernels() {
+    }
+
+    /**
+     * Replaces every label by convert[label]. Source and target may be the same processor
+     * (in-place remapping) and must have the same size.
+     *
+     * @param source plane to read (labels must be valid indexes of convert)
+     * @param target plane to write, of any type able to hold the new labels
+     * @param convert conversion array where convert[oldLabel] = newLabel
+     * @return largest new label written, -1 for an empty plane
+     */
+    public static int remap(ImageProcessor source, ImageProcessor target, int[] convert) {
+        int size = source.getPixelCount();
+        Object in = source.getPixels();
+        Object out = target.getPixels();
+        int max = -1;
+        if (in instanceof short[] && out instanceof short[]) {
+            short[] src = (short[]) in;
+            short[] dst = (short[]) out;
+            for (int i = 0; i < size; i++) {
+                int label = convert[src[i] & 0xffff];
+                dst[i] = (short) label;
+                if (label > max) max = label;
+            }
+        } else if (in instanceof byte[] && out instanceof byte[]) {
+            byte[] src = (byte[]) in;
+            byte[] dst = (byte[]) out;
+            for (int i = 0; i < size; i++) {
+                int label = convert[src[i] & 0xff];
+                dst[i] = (byte) label;
+                if (label > max) max = label;
+            }
+        } else if (in instanceof float[] && out instanceof float[]) {
+            float[] src = (float[]) in;
+            float[] dst = (float[]) out;
+            for (int i = 0; i < size; i++) {
+                int label = convert[(int) src[i]];
+                dst[i] = label;
+                if (label > max) max = label;
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                int label = convert[(int) source.getf(i)];
+                target.setf(i, label);
+                if (label > max) max = label;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Looks up, for every pixel, the color of its (truth label, test label) pair.
+     * Pairs outside the table get color 0.
+     * A byte color code (as built by {@link IoUAnalysis#computeColorCode}) is read in place; labels of
+     * planes that are not 16-bit are converted one row at a time into small buffers.
+     *
+     * @param truth truth label plane
+     * @param test test label plane of the same size
+     * @param colorcode table where colorcode(truthLabel, testLabel) = color index
+     * @return color index of every pixel
+     */
+    public static byte[] lookup(ImageProcessor truth, ImageProcessor test, ImageProcessor colorcode) {
+        int width = colorcode.getWidth();
+        int height = colorcode.getHeight();
+        byte[] table = colorcode.getPixels() instanceof byte[] ? (byte[]) colorcode.getPixels()
+                : (byte[]) colorcode.convertToByte(false).getPixels();
+        int size = truth.getPixelCount();
+        byte[] result = new byte[size];
+        if (truth.getPixels() instanceof short[] && test.getPixels() instanceof short[]) {
+            short[] truthLabels = (short[]) truth.getPixels();
+            short[] testLabels = (short[]) test.getPixels();
+            for (int i = 0; i < size; i++) {
+                int t = truthLabels[i] & 0xffff;
+                int s = testLabels[i] & 0xffff;
+                if (t < width && s < height) result[i] = table[s * width + t];
+            }
+            return result;
+        }
+        int rowLength = truth.getWidth();
+        int[] truthLabels = new int[rowLength];
+        int[] testLabels = new int[rowLength];
+        for (int offset = 0; offset < size; offset += rowLength) {
+            labels(truth, offset, truthLabels);
+            labels(test, offset, testLabels);
+            for (int x = 0; x < rowLength; x++) {
+                int t = truthLabels[x];
+                int s = testLabels[x];
+                // unsigned comparison also rejects negative labels
+                if (Integer.compareUnsigned(t, width) < 0 && Integer.compareUnsigned(s, height) < 0) {
+                    result[offset + x] = table[s * width + t];
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void labels(ImageProcessor ip, int offset, int[] labels) {
+        int length = labels.length;
+        Object pixels = ip.getPixels();
+        if (pixels instanceof short[]) {
+            short[] values = (short[]) pixels;
+            for (int i = 0; i < length; i++) labels[i] = values[offset + i] & 0xffff;
+        } else if (pixels instanceof byte[]) {
+            byte[] values = (byte[]) pixels;
+            for (int i = 0; i < length; i++) labels[i] = values[offset + i] & 0xff;
+        } else if (pixels instanceof float[]) {
+            float[] values = (float[]) pixels;
+            for (int i = 0; i < length; i++) labels[i] = (int) values[offset + i];
+        } else {
+            for (int i = 0; i < length; i++) labels[i] = (int) ip.getf(offset + i);
+        }
+    }
+}
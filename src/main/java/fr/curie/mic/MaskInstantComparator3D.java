@@ -28,6 +28,7 @@ package fr.curie.mic;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.*;
 import ij.measure.ResultsTable;
@@ -38,7 +39,12 @@ import java.awt.*;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import ij.CompositeImage;
 
 /**
@@ -78,6 +84,13 @@ public class MaskInstantComparator3D implements PlugIn {
     private double overlapMax;
     private double overlapInc;
     private double minDist;
+    private boolean parallelEvaluation;
+    // chunked label volumes given instead of images
+    private String truthVolumePath;
+    private String testVolumePath;
+    // optional confidence of the test objects, from a score image or a label/score table
+    private ImagePlus testScoreImage;
+    private ObjectScores testScoreTable;
 
     //  ROIS (if object type methods)
     private Roi[] truthRois;
@@ -91,9 +104,15 @@ public class MaskInstantComparator3D implements PlugIn {
     private boolean showGraphs;
 
     private boolean showComposite;
+    private String compositeExportDirectory = "";
     private boolean showCorrespondances;
     private ImagePlus graphHyperStack;
     private ArrayList<ImageProcessor> correspondanceImages;
+    private ResultsTable objectPairsTable;
+    // ascending object volume edges for size-stratified metrics, null when not requested
+    private double[] sizeBinEdges;
+    // region the comparison is restricted to, null for the whole volume
+    private EvaluationRegion evaluationRegion;
     private ImagePlus correspondanceHyperStack;
 
 
@@ -131,10 +150,12 @@ public class MaskInstantComparator3D implements PlugIn {
         }
 
         if(showComposite) lutcomposite = IoUAnalysis.getMiCLUT();
-        analysis();
+        if(truthVolumePath != null) chunkedAnalysis();
+        else analysis();
 
         resultsTable.show("Mask comparison results");
         if(pixelObjectMethod)pixelObjectResultsTable.show("Mask comparison Object with IoU thresholds");
+        if(objectPairsTable != null) objectPairsTable.show("Object pairs");
         if(correspondanceHyperStack != null){
             correspondanceHyperStack.show();
         }
@@ -149,6 +170,8 @@ public class MaskInstantComparator3D implements PlugIn {
      * Main analysis method that processes all channels and frames.
      * Validates input images, then iterates through time points and channels,
      * extracting 3D volumes and performing slice-by-slice comparisons.
+     * When parallel evaluation is selected, the (channel, frame) volumes are evaluated
+     * concurrently and merged into the result tables in the same order as the sequential run.
      * Accumulates results and generates composite images if requested.
      *
      * @return true if analysis completed successfully, false if validation failed
@@ -172,18 +195,22 @@ public class MaskInstantComparator3D implements PlugIn {
             correspondanceImages = new ArrayList<>();
         }
 
-        boolean ok = true;
-
-        for (int t = 1; t <= nFrames; t++) {
-            for (int c = 1; c <= nChannels; c++) {
-                IJ.log("Analyzing channel " + c + ", frame " + t);
-                ImagePlus truthSubVolume = extractCZVolume(originalTruth, c, t);
-                ImagePlus testSubVolume = extractCZVolume(originalTest, c, t);
-                truthMaskIP = truthSubVolume;
-                testMaskIP = testSubVolume;
-                resultsTable.incrementCounter();
-                boolean currentOk = analysis3D(c, t);
-                ok = ok && currentOk;
+        boolean ok;
+        if (parallelEvaluation && nChannels * nFrames > 1) {
+            ok = parallelAnalysis(originalTruth, originalTest, nChannels, nFrames);
+        } else {
+            ok = true;
+            for (int t = 1; t <= nFrames; t++) {
+                for (int c = 1; c <= nChannels; c++) {
+                    IJ.log("Analyzing channel " + c + ", frame " + t);
+                    ImagePlus truthSubVolume = extractCZVolume(originalTruth, c, t);
+                    ImagePlus testSubVolume = extractCZVolume(originalTest, c, t);
+                    truthMaskIP = truthSubVolume;
+                    testMaskIP = testSubVolume;
+                    resultsTable.incrementCounter();
+                    boolean currentOk = analysis3D(c, t);
+                    ok = ok && currentOk;
+                }
             }
         }
         truthMaskIP = originalTruth;
@@ -191,12 +218,116 @@ public class MaskInstantComparator3D implements PlugIn {
         if(showCorrespondances){
             buildCorrespondanceHyperStack(nChannels, nFrames);
         }
-        if (showComposite && (objectMethod || pixelObjectMethod)) {
+        if ((showComposite || !compositeExportDirectory.isEmpty()) && (objectMethod || pixelObjectMethod)) {
             buildAndShowCompositeHyperstacks(originalTruth, originalTest);
         }
         return ok;
     }
 
+    /**
+     * Evaluates all (channel, frame) volumes on a fixed pool of {@link Prefs#getThreads()} threads.
+     * Each task only computes its metrics; results are then added to the tables, graphs and
+     * correspondence list by the calling thread, frame by frame and channel by channel,
+     * so the output does not depend on the order in which tasks finish.
+     *
+     * @param originalTruth the truth hyperstack
+     * @param originalTest the test hyperstack
+     * @param nChannels number of channels
+     * @param nFrames number of frames
+     * @return true if every volume was evaluated, false otherwise
+     */
+    private boolean parallelAnalysis(ImagePlus originalTruth, ImagePlus originalTest, int nChannels, int nFrames) {
+        int nThreads = Math.max(1, Math.min(Prefs.getThreads(), nChannels * nFrames));
+        IJ.log("Analyzing " + nChannels + " channel(s) x " + nFrames + " frame(s) on " + nThreads + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        // virtual stacks read planes from disk and are not safe to share between threads
+        boolean virtual = originalTruth.getStack().isVirtual() || originalTest.getStack().isVirtual()
+                || (testScoreImage != null && testScoreImage.getStack().isVirtual());
+        Object readLock = new Object();
+        try {
+            ArrayList<Future<VolumeEvaluation>> tasks = new ArrayList<>();
+            for (int t = 1; t <= nFrames; t++) {
+                for (int c = 1; c <= nChannels; c++) {
+                    final int channel = c;
+                    final int frame = t;
+                    tasks.add(executor.submit(() -> {
+                        ImagePlus truthSubVolume;
+                        ImagePlus testSubVolume;
+                        ImagePlus scoreSubVolume;
+                        if (virtual) {
+                            synchronized (readLock) {
+                                truthSubVolume = extractCZVolume(originalTruth, channel, frame);
+                                testSubVolume = extractCZVolume(originalTest, channel, frame);
+                                scoreSubVolume = testScoreImage == null ? null : extractCZVolume(testScoreImage, channel, frame);
+                            }
+                        } else {
+                            truthSubVolume = extractCZVolume(originalTruth, channel, frame);
+                            testSubVolume = extractCZVolume(originalTest, channel, frame);
+                            scoreSubVolume = testScoreImage == null ? null : extractCZVolume(testScoreImage, channel, frame);
+                        }
+                        return evaluateVolume(truthSubVolume, testSubVolume, scoreSubVolume, channel, frame);
+                    }));
+                }
+            }
+            boolean ok = true;
+            for (Future<VolumeEvaluation> task : tasks) {
+                try {
+                    VolumeEvaluation evaluation = task.get();
+                    IJ.log("Analyzing channel " + evaluation.channel + ", frame " + evaluation.frame);
+                    resultsTable.incrementCounter();
+                    addVolumeEvaluation(evaluation);
+                } catch (ExecutionException e) {
+                    IJ.log("Evaluation failed: " + e.getCause());
+                    ok = false;
+                }
+            }
+            return ok;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            IJ.error("Analysis interrupted.");
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Compares two chunked label volumes (see {@link ChunkedLabelVolume}).
+     * Chunks empty in both volumes are skipped and the others are processed in parallel.
+     * Composite images are not available since the volumes are never loaded as images.
+     *
+     * @return true if the analysis succeeded, false otherwise
+     */
+    public boolean chunkedAnalysis() {
+        if(showCorrespondances){
+            correspondanceImages = new ArrayList<>();
+        }
+        try (ChunkedLabelVolume truth = ChunkedLabelVolume.open(new File(truthVolumePath));
+             ChunkedLabelVolume test = ChunkedLabelVolume.open(new File(testVolumePath))) {
+            if (!truth.hasSameLayout(test)) {
+                IJ.error("Truth and test volumes must have the same size and chunk size.");
+                return false;
+            }
+            IJ.log("Analyzing chunked volumes " + truth.getTitle() + " and " + test.getTitle());
+            IoUAnalysis analysis = IoUAnalysis.create(truth, test, minSize, minDist);
+            if (testScoreTable != null) analysis.setTestScores(testScoreTable);
+            VolumeEvaluation evaluation = evaluateAnalysis(analysis, 1, 1, truth.getTitle(), test.getTitle(),
+                    truth.getTitle() + "_VS_" + test.getTitle() + "_IoU_graph");
+            resultsTable.incrementCounter();
+            addVolumeEvaluation(evaluation);
+        } catch (IOException e) {
+            IJ.error("Chunked volume analysis failed: " + e.getMessage());
+            return false;
+        }
+        if(showCorrespondances){
+            buildCorrespondanceHyperStack(1, 1);
+        }
+        if (showComposite || !compositeExportDirectory.isEmpty()) {
+            IJ.log("composite images are not available for chunked volumes");
+        }
+        return true;
+    }
+
     /**
     * Performs 3D comparison for a single channel and time point.
     * Calculates metrics using pixel, object, and/or pixel-object methods
@@ -207,87 +338,158 @@ public class MaskInstantComparator3D implements PlugIn {
     * @return true if analysis succeeded, false otherwise
     */
     public boolean analysis3D(int channel, int frame){
-        IoUAnalysis analysis = IoUAnalysis.create(truthMaskIP, testMaskIP,minSize, minDist);
-        int maxTruth = analysis.getMaxTruth();
-        int maxTest = analysis.getMaxTest();
-
-        IJ.log("Truth has "+maxTruth+" objects");
-        IJ.log("Test has "+maxTest+" objects");
-
+        ImagePlus scores = testScoreImage == null ? null : extractCZVolume(testScoreImage, channel, frame);
+        addVolumeEvaluation(evaluateVolume(truthMaskIP, testMaskIP, scores, channel, frame));
+        return true;
+    }
 
-        resultsTable.addValue("Truth image", truthMaskIP.getTitle());
-        resultsTable.addValue("Test image", testMaskIP.getTitle());
-        resultsTable.addValue("Channel", channel);
-        resultsTable.addValue("Frame", frame);
-        resultsTable.addValue("Truth objects", maxTruth);
-        resultsTable.addValue("Test objects", maxTest);
+    /**
+     * Computes the metrics of one (channel, frame) volume without touching the shared
+     * tables, graphs or correspondence list, so it can run on any thread.
+     *
+     * @param truth truth volume
+     * @param test test volume
+     * @param scores score volume of the test objects, or null
+     * @param channel the channel index being analyzed
+     * @param frame the frame (time point) being analyzed
+     * @return the metrics of the volume
+     */
+    private VolumeEvaluation evaluateVolume(ImagePlus truth, ImagePlus test, ImagePlus scores, int channel, int frame){
+        String graphTitle = truth.getShortTitle() + "_VS_" + test.getShortTitle() + "_IoU_graph";
+        if(!objectMethod && !pixelObjectMethod && evaluationRegion == null){
+            // pixel level only: no IoU matrix needed, compare packed foregrounds
+            VolumeEvaluation evaluation = new VolumeEvaluation(channel, frame, truth.getTitle(), test.getTitle(), graphTitle,
+                    MicUtils.countObjects(truth), MicUtils.countObjects(test));
+            if(pixelMethod) evaluation.pixelMetrics = PackedMask.metrics(truth, test);
+            return evaluation;
+        }
+        IoUAnalysis analysis = IoUAnalysis.create(truth, test, minSize, minDist, scores, evaluationRegion);
+        if(testScoreTable != null) analysis.setTestScores(testScoreTable);
+        return evaluateAnalysis(analysis, channel, frame, truth.getTitle(), test.getTitle(), graphTitle);
+    }
 
-        //compute histogram 2D to get correspondance between two images
-        //ImageProcessor histo2D = MicUtils.histo2D(truthMaskIP,maxTruth,testMaskIP,maxTest);
+    /**
+     * Computes the metrics selected in the dialog from an IoU analysis.
+     *
+     * @param analysis IoU analysis of the volume
+     * @param channel the channel index being analyzed
+     * @param frame the frame (time point) being analyzed
+     * @param truthTitle title of the truth volume
+     * @param testTitle title of the test volume
+     * @param graphTitle title of the IoU graph
+     * @return the metrics of the volume
+     */
+    private VolumeEvaluation evaluateAnalysis(IoUAnalysis analysis, int channel, int frame, String truthTitle, String testTitle, String graphTitle){
+        VolumeEvaluation evaluation = new VolumeEvaluation(channel, frame, truthTitle, testTitle, graphTitle, analysis.getMaxTruth(), analysis.getMaxTest());
 
         //pixel analysis
-        if(pixelMethod) {
-            //pixelAnalysis(histo2D);
-            //Metrics metrics = new Metrics(histo2D, -1, null);
-            Metrics metrics = analysis.getPixelMetrics();
-            addToResultTable(resultsTable, "Pixel", metrics.getTP(), metrics.getFP(), metrics.getFN(),
-                    metrics.getPrecision(), metrics.getSensitivity(), metrics.getJaccardIndex(), metrics.getF1measure(), -1);
-        }
+        if(pixelMethod) evaluation.pixelMetrics = analysis.getPixelMetrics();
 
         //object based analysis
         if(objectMethod || pixelObjectMethod) {
-            //compute histograms 1D for each images
-            //IJ.log("truth histo");
-            //int[] histoTruth=MicUtils.histo1D(truthMaskIP,maxTruth);
-            //IJ.log("test histo");
-            //int[] histoTest=MicUtils.histo1D(testMaskIP,maxTest);
-            //compute IoUs for each objects
-            //IJ.log("compute ious");
-            //ImageProcessor iou = MicUtils.computesIoUs(histo2D, histoTruth, histoTest);
-            //IoUAnalysis analysis = computeIoUForVolumes(truthMaskIP, testMaskIP);
-            //IoUAnalysis analysis = IoUAnalysis.create(truthMaskIP,testMaskIP,minSize,minDist);
-            //checkPositionAndSize(iou,histoTruth,histoTest,minSize,minDist,truthMaskIP,testMaskIP);
-            if(showCorrespondances) correspondanceImages.add(analysis.getIoU().duplicate());
+            if(showCorrespondances) {
+                evaluation.correspondance = analysis.getIoU().duplicate();
+                evaluation.objectPairs = ObjectPairStatistics.compute(analysis, 0.5);
+            }
             if(objectMethod) {
-                //double[] metrics = objectAnalysis(iou, 0.5);
-                Metrics metrics = analysis.getMetrics(0.5);
-                addToResultTable(resultsTable, "Object",metrics.getTP(),metrics.getFP(),metrics.getFN(),
-                        metrics.getPrecision(),metrics.getSensitivity(),metrics.getJaccardIndex(),metrics.getF1measure(),0.5);
-                /*if(showComposite) {
-                    ImageProcessor colorcode = convertIoU2ColorCode(iou,0.5);
-                    ImagePlus imp = displayCombination(truthMaskIP, testMaskIP, colorcode);
-                    imp.setTitle("IoU"+0.5+"_"+imp.getTitle());
-                    imp.show();
-                }*/
+                evaluation.objectMetrics = analysis.getMetrics(0.5);
+                if(sizeBinEdges != null) evaluation.sizeMetrics = analysis.getMetricsBySize(0.5, sizeBinEdges);
+                evaluation.aggregatedJaccardIndexes = new double[]{analysis.getAggregatedJaccardIndex(), analysis.getAggregatedJaccardIndexPlus()};
+                evaluation.clusteringScores = new double[]{analysis.getVariationOfInformationSplit(), analysis.getVariationOfInformationMerge(), analysis.getAdjustedRandIndex()};
+            }
+            if(analysis.getTestScores() != null){
+                AveragePrecision ap = analysis.createAveragePrecision(0.5);
+                evaluation.averagePrecisions = new double[]{ap.compute(0.5), ap.compute(0.75), ap.compute(AveragePrecision.cocoThresholds())};
             }
             if(pixelObjectMethod){
                 int nbcomp=(int)Math.round((overlapMax-overlapMin)/overlapInc+1);
-                double[] ious=new double[nbcomp];
-                double[] precisions=new double[nbcomp];
-                double[] sensitivities=new double[nbcomp];
-                double[] jaccards=new double[nbcomp];
-                double[] dscs=new double[nbcomp];
+                evaluation.thresholds=new double[nbcomp];
+                evaluation.curveMetrics=new Metrics[nbcomp];
                 int index=0;
                 for(int th=(int)(overlapMin*10000); th<=(int)((overlapMax+EPSILON)*10000); th+=(int)(overlapInc*10000)){
-                    if(pixelObjectResultsTable.getCounter()>0) pixelObjectResultsTable.incrementCounter();
                     double qth=th/10000.0;
-                    //double[] metrics = objectAnalysis(iou, qth);
-                    Metrics metrics = analysis.getMetrics(qth);
-                    ious[index]=qth;
-                    precisions[index]=metrics.getPrecision();
-                    sensitivities[index]=metrics.getSensitivity();
-                    jaccards[index]=metrics.getJaccardIndex();
-                    dscs[index]=metrics.getF1measure();
-                    //IJ.log("index:"+index+" , iou:"+ious[index]+" , jaccard:"+jaccards[index]);
+                    evaluation.thresholds[index]=qth;
+                    evaluation.curveMetrics[index]=analysis.getMetrics(qth);
                     index++;
-                    addToResultTable(pixelObjectResultsTable, "Object",metrics.getTP(),metrics.getFP(),metrics.getFN(),
-                            metrics.getPrecision(),metrics.getSensitivity(),metrics.getJaccardIndex(),metrics.getF1measure(),qth);
                 }
-                if(showGraphs) createGraphs(channel, frame, truthMaskIP.getShortTitle()+"_VS_"+testMaskIP.getShortTitle()+"_IoU_graph",ious,precisions,sensitivities,jaccards,dscs);
+                if(sizeBinEdges != null) evaluation.sizeCurveMetrics = analysis.getMetricsCurveBySize(evaluation.thresholds, sizeBinEdges);
+            }
+        }
+        return evaluation;
+    }
 
+    /**
+     * Adds the metrics of one volume to the result tables, graphs and correspondence list.
+     * Must be called from a single thread, in the order the rows should appear.
+     *
+     * @param evaluation metrics computed by {@link #evaluateVolume}
+     */
+    private void addVolumeEvaluation(VolumeEvaluation evaluation){
+        IJ.log("Truth has "+evaluation.maxTruth+" objects");
+        IJ.log("Test has "+evaluation.maxTest+" objects");
+
+        resultsTable.addValue("Truth image", evaluation.truthTitle);
+        resultsTable.addValue("Test image", evaluation.testTitle);
+        resultsTable.addValue("Channel", evaluation.channel);
+        resultsTable.addValue("Frame", evaluation.frame);
+        resultsTable.addValue("Truth objects", evaluation.maxTruth);
+        resultsTable.addValue("Test objects", evaluation.maxTest);
+
+        if(evaluation.pixelMetrics != null) {
+            Metrics metrics = evaluation.pixelMetrics;
+            addToResultTable(resultsTable, "Pixel", metrics.getTP(), metrics.getFP(), metrics.getFN(),
+                    metrics.getPrecision(), metrics.getSensitivity(), metrics.getJaccardIndex(), metrics.getF1measure(), -1);
+        }
+        if(evaluation.correspondance != null) correspondanceImages.add(evaluation.correspondance);
+        if(evaluation.objectPairs != null) {
+            if(objectPairsTable == null) objectPairsTable = new ResultsTable();
+            evaluation.objectPairs.appendTo(objectPairsTable, evaluation.truthTitle + "/" + evaluation.testTitle, evaluation.channel, evaluation.frame, 0);
+        }
+        if(evaluation.objectMetrics != null) {
+            Metrics metrics = evaluation.objectMetrics;
+            addToResultTable(resultsTable, "Object",metrics.getTP(),metrics.getFP(),metrics.getFN(),
+                    metrics.getPrecision(),metrics.getSensitivity(),metrics.getJaccardIndex(),metrics.getF1measure(),0.5);
+            addPanopticQuality(resultsTable, "Object", metrics);
+        }
+        if(evaluation.sizeMetrics != null) addSizeBinMetrics(resultsTable, "Object (IoU=0.5, ", evaluation.sizeMetrics);
+        if(evaluation.aggregatedJaccardIndexes != null) {
+            resultsTable.addValue("Object AJI", evaluation.aggregatedJaccardIndexes[0]);
+            resultsTable.addValue("Object AJI+", evaluation.aggregatedJaccardIndexes[1]);
+        }
+        if(evaluation.clusteringScores != null) {
+            resultsTable.addValue("VI split", evaluation.clusteringScores[0]);
+            resultsTable.addValue("VI merge", evaluation.clusteringScores[1]);
+            resultsTable.addValue("VI", evaluation.clusteringScores[0] + evaluation.clusteringScores[1]);
+            resultsTable.addValue("ARI", evaluation.clusteringScores[2]);
+        }
+        if(evaluation.averagePrecisions != null) {
+            resultsTable.addValue("AP50 (scores)", evaluation.averagePrecisions[0]);
+            resultsTable.addValue("AP75 (scores)", evaluation.averagePrecisions[1]);
+            resultsTable.addValue("AP[.50:.95] (scores)", evaluation.averagePrecisions[2]);
+        }
+        if(evaluation.curveMetrics != null){
+            int nbcomp=evaluation.curveMetrics.length;
+            double[] precisions=new double[nbcomp];
+            double[] sensitivities=new double[nbcomp];
+            double[] jaccards=new double[nbcomp];
+            double[] dscs=new double[nbcomp];
+            double[] panopticQualities=new double[nbcomp];
+            for(int index=0; index<nbcomp; index++){
+                Metrics metrics = evaluation.curveMetrics[index];
+                if(metrics == null) continue;
+                if(pixelObjectResultsTable.getCounter()>0) pixelObjectResultsTable.incrementCounter();
+                precisions[index]=metrics.getPrecision();
+                sensitivities[index]=metrics.getSensitivity();
+                jaccards[index]=metrics.getJaccardIndex();
+                dscs[index]=metrics.getF1measure();
+                panopticQualities[index]=metrics.getPanopticQuality();
+                addToResultTable(pixelObjectResultsTable, "Object",metrics.getTP(),metrics.getFP(),metrics.getFN(),
+                        metrics.getPrecision(),metrics.getSensitivity(),metrics.getJaccardIndex(),metrics.getF1measure(),evaluation.thresholds[index]);
+                addPanopticQuality(pixelObjectResultsTable, "Object", metrics);
+                if(evaluation.sizeCurveMetrics != null) addSizeBinMetrics(pixelObjectResultsTable, "Object (", evaluation.sizeCurveMetrics[index]);
             }
+            if(showGraphs) createGraphs(evaluation.channel, evaluation.frame, evaluation.graphTitle,evaluation.thresholds,precisions,sensitivities,jaccards,dscs,panopticQualities);
         }
-        return true;
     }
 
     /**
@@ -344,12 +546,14 @@ public class MaskInstantComparator3D implements PlugIn {
 
     /**
     * Extracts a 3D volume (C-Z) from the source hyperstack for a specific channel and frame.
-    * Returns a new ImagePlus containing all slices for the given channel and time point.
+    * Returns a view on the source: the slices of the new ImagePlus share the pixel arrays of the
+    * source hyperstack, so nothing is copied. The view must be treated as read-only
+    * (IoUAnalysis renumbers labels into copies, never in place).
     *
     * @param source the source hyperstack image
     * @param channel the channel index to extract
     * @param frame the frame (time point) index to extract
-    * @return a new ImagePlus containing the extracted C-Z volume as a stack
+    * @return a new ImagePlus sharing the pixels of the C-Z volume as a stack
     */
     private ImagePlus extractCZVolume(ImagePlus source, int channel, int frame) {
 
@@ -362,10 +566,10 @@ public class MaskInstantComparator3D implements PlugIn {
 
         for (int z = 1; z <= nSlices; z++) {
             int stackIndex = source.getStackIndex(channel, z, frame);
-            ImageProcessor ip = (sourceStack!=null && sourceStack.size()>0) ? sourceStack.getProcessor(stackIndex).duplicate() : source.getProcessor().duplicate();
+            Object pixels = (sourceStack!=null && sourceStack.size()>0) ? sourceStack.getPixels(stackIndex) : source.getProcessor().getPixels();
 
             String label = (sourceStack!=null && sourceStack.size()>0) ? sourceStack.getSliceLabel(stackIndex) : source.getShortTitle();
-            subStack.addSlice(label, ip);
+            subStack.addSlice(label, pixels);
         }
 
         String title = source.getShortTitle() + "_C" + channel + "_T" + frame;
@@ -425,6 +629,8 @@ public class MaskInstantComparator3D implements PlugIn {
      * Builds and displays composite hyperstack images showing IoU-colored comparisons
      * for all channels and time points. Creates color-coded representations of object
      * correspondences using the configured composite LUT.
+     * If an export directory is set, each plane is written to a tiled TIFF as soon as it is
+     * rendered and nothing is kept in memory nor displayed.
      *
      * @param originalTruth the full truth hyperstack
      * @param originalTest the full test hyperstack
@@ -435,7 +641,7 @@ public class MaskInstantComparator3D implements PlugIn {
             IJ.log("No IoU threshold available for composite hyperstack.");
             return;
         }
-        int channelOffset = 0;
+        int channelOffset = pixelMethod ? 1 : 0;
 
         int width = originalTruth.getWidth();
         int height = originalTruth.getHeight();
@@ -451,44 +657,26 @@ public class MaskInstantComparator3D implements PlugIn {
         for (int originalChannel = 1; originalChannel <= nOriginalChannels; originalChannel++) {
             IJ.log("Building composite hyperstack for original channel " + originalChannel);
             //long timestart= System.currentTimeMillis();
-            ImageStack resultStack = new ImageStack(width, height);
-            for (int t = 1; t <= nFrames; t++) {
-                ImagePlus truthVolume = extractCZVolume(originalTruth, originalChannel, t);
-                ImagePlus testVolume = extractCZVolume(originalTest, originalChannel, t);
-
-                //ImageProcessor iou = computeIoUForVolumes(truthVolume, testVolume);
-                //IoUAnalysis analysis = computeIoUForVolumes(truthVolume, testVolume);
-                IoUAnalysis analysis = IoUAnalysis.create(truthVolume,testVolume,minSize,minDist);
-
-                ImageStack truthStack = truthVolume.getImageStack();
-                ImageStack testStack = testVolume.getImageStack();
-
-                for (int z = 1; z <= nSlices; z++) {
-
-                    ImageProcessor truthProcessor = truthStack.getProcessor(z);
-                    ImageProcessor testProcessor = testStack.getProcessor(z);
-                    if(pixelMethod) {
-                        ImageProcessor pixelOverlay = createPixelOverlayPlane(truthProcessor, testProcessor);
-                        resultStack.addSlice("Pixel superposition C=" + originalChannel
-                                + " Z=" + z + " T=" + t, pixelOverlay);
-                        channelOffset=1;
-                    }
-
-                    for (int thresholdIndex = 0; thresholdIndex < thresholds.length; thresholdIndex++) {
-                        //long start = System.currentTimeMillis();
-                        ImageProcessor compositePlane = analysis.createCompositePlane(truthProcessor,testProcessor,
-                                thresholds[thresholdIndex]
-                        );
-                        //IJ.log(" : createCompositePlane : "+(System.currentTimeMillis()-start)+" ms");
-                        String label ="IoU=" + IJ.d2s(thresholds[thresholdIndex], 4) +
-                                " C=" + originalChannel + " Z=" + z + " T=" + t;
-                        resultStack.addSlice(label, compositePlane);
-                    }
-                }
-            }
-
             String title ="c"+originalChannel+"_" + originalTruth.getShortTitle() +
                             "_VS_" + originalTest.getShortTitle() + "_sourceC" + originalChannel;
+            if (!compositeExportDirectory.isEmpty()) {
+                File output = new File(compositeExportDirectory, title + ".tif");
+                IJ.log("export composite to " + output.getAbsolutePath());
+                try (CompositeTiffWriter writer = new CompositeTiffWriter(output, width, height, thresholds.length + channelOffset, nSlices, nFrames, lutcomposite)) {
+                    renderCompositeChannel(originalTruth, originalTest, originalChannel, thresholds, null, writer);
+                } catch (IOException e) {
+                    IJ.error("Composite export failed: " + e.getMessage());
+                    return;
+                }
+                continue;
+            }
+            ImageStack resultStack = new ImageStack(width, height);
+            try {
+                renderCompositeChannel(originalTruth, originalTest, originalChannel, thresholds, resultStack, null);
+            } catch (IOException e) {
+                IJ.error("Composite rendering failed: " + e.getMessage());
+                return;
+            }
 
             ImagePlus composite = new ImagePlus(title, resultStack);
             composite.setDimensions(thresholds.length + channelOffset,nSlices,nFrames);
@@ -509,6 +697,70 @@ public class MaskInstantComparator3D implements PlugIn {
         }
     }
 
+    /**
+     * Renders the composite planes of one source channel in hyperstack order (display channel, Z, T).
+     * Each plane is either added to the result stack or written by the writer, so that in export mode
+     * only the plane being rendered is kept in memory.
+     *
+     * @param originalTruth the full truth hyperstack
+     * @param originalTest the full test hyperstack
+     * @param originalChannel the source channel
+     * @param thresholds the IoU thresholds of the composite channels
+     * @param resultStack stack receiving the planes (when writer is null)
+     * @param writer streaming writer receiving the planes, or null
+     * @throws IOException if a plane cannot be written
+     */
+    private void renderCompositeChannel(ImagePlus originalTruth, ImagePlus originalTest, int originalChannel, double[] thresholds,
+                                        ImageStack resultStack, CompositeTiffWriter writer) throws IOException {
+        int nSlices = originalTruth.getNSlices();
+        int nFrames = originalTruth.getNFrames();
+        for (int t = 1; t <= nFrames; t++) {
+            ImagePlus truthVolume = extractCZVolume(originalTruth, originalChannel, t);
+            ImagePlus testVolume = extractCZVolume(originalTest, originalChannel, t);
+
+            //ImageProcessor iou = computeIoUForVolumes(truthVolume, testVolume);
+            //IoUAnalysis analysis = computeIoUForVolumes(truthVolume, testVolume);
+            IoUAnalysis analysis = IoUAnalysis.create(truthVolume,testVolume,minSize,minDist,null,evaluationRegion);
+
+            ImageStack truthStack = analysis.getTruth().getImageStack();
+            ImageStack testStack = analysis.getTest().getImageStack();
+            // slices of the analysis are shifted when the region restricts the volume
+            int firstSlice = evaluationRegion == null ? 0 : evaluationRegion.getFirstSlice();
+
+            for (int z = 1; z <= nSlices; z++) {
+
+                int analysisSlice = z - firstSlice;
+                boolean analyzed = analysisSlice >= 1 && analysisSlice <= truthStack.getSize();
+                ImageProcessor truthProcessor = analyzed ? truthStack.getProcessor(analysisSlice) : null;
+                ImageProcessor testProcessor = analyzed ? testStack.getProcessor(analysisSlice) : null;
+                if(pixelMethod) {
+                    ImageProcessor pixelOverlay = createPixelOverlayPlane(truthVolume.getImageStack().getProcessor(z),
+                            testVolume.getImageStack().getProcessor(z));
+                    if (writer != null) writer.writePlane(pixelOverlay);
+                    else resultStack.addSlice("Pixel superposition C=" + originalChannel
+                            + " Z=" + z + " T=" + t, pixelOverlay);
+                }
+
+                for (int thresholdIndex = 0; thresholdIndex < thresholds.length; thresholdIndex++) {
+                    //long start = System.currentTimeMillis();
+                    ImageProcessor compositePlane;
+                    if(!analyzed) compositePlane = new ByteProcessor(truthVolume.getWidth(), truthVolume.getHeight());
+                    else {
+                        compositePlane = analysis.createCompositePlane(truthProcessor,testProcessor,
+                                thresholds[thresholdIndex]
+                        );
+                        if(evaluationRegion != null) compositePlane = evaluationRegion.uncrop(compositePlane);
+                    }
+                    //IJ.log(" : createCompositePlane : "+(System.currentTimeMillis()-start)+" ms");
+                    String label ="IoU=" + IJ.d2s(thresholds[thresholdIndex], 4) +
+                            " C=" + originalChannel + " Z=" + z + " T=" + t;
+                    if (writer != null) writer.writePlane(compositePlane);
+                    else resultStack.addSlice(label, compositePlane);
+                }
+            }
+        }
+    }
+
     /**
     * Internal method to add metric data to a results table.
     * Calculates and records TP, FP, FN, and derived statistics for the given comparison method.
@@ -538,6 +790,36 @@ public class MaskInstantComparator3D implements PlugIn {
 
     }
 
+    /**
+     * Adds the metrics of each object volume bin to the current row of a result table.
+     *
+     * @param resultsTable the results table to update
+     * @param prefix method name before the bin name, closed by a parenthesis
+     * @param metrics metrics of each bin
+     */
+    private void addSizeBinMetrics(ResultsTable resultsTable, String prefix, Metrics[] metrics) {
+        for(int bin = 0; bin < metrics.length; bin++) {
+            String method = prefix + IoUAnalysis.getSizeBinName(sizeBinEdges, bin) + ")";
+            Metrics m = metrics[bin];
+            addToResultTable(resultsTable, method, m.getTP(), m.getFP(), m.getFN(),
+                    m.getPrecision(), m.getSensitivity(), m.getJaccardIndex(), m.getF1measure(), -1);
+        }
+    }
+
+    /**
+     * Adds the panoptic (PQ), segmentation (SQ) and recognition (RQ) qualities of an object matching to a result table.
+     *
+     * @param resultsTable the results table to update
+     * @param method the comparison method name
+     * @param metrics metrics of a one-to-one object matching
+     */
+    private void addPanopticQuality(ResultsTable resultsTable, String method, Metrics metrics) {
+        if(!metrics.hasPanopticQuality()) return;
+        resultsTable.addValue(method + " PQ", metrics.getPanopticQuality());/*(sum of matched IoUs/(TP+FP/2+FN/2))*/
+        resultsTable.addValue(method + " SQ", metrics.getSegmentationQuality());/*(mean matched IoU)*/
+        resultsTable.addValue(method + " RQ", metrics.getRecognitionQuality());/*(TP/(TP+FP/2+FN/2))*/
+    }
+
 
     /**
      * Creates and configures the user input dialog for mask comparison parameters.
@@ -573,6 +855,7 @@ public class MaskInstantComparator3D implements PlugIn {
 //      Segmentation to test
         if (useOpenImages) gd.addChoice("Test_mask_image", imageList, imageList[0]);
         else gd.addFileField("Test_mask_path", "");
+        gd.addFileField("Test_object_scores (optional label,score table or score image)", "");
         //gd.addFileField("Test_particles_ROI_zip_path(if exists)", "");
 
         if (!useOpenImages) {
@@ -595,10 +878,14 @@ public class MaskInstantComparator3D implements PlugIn {
         gd.addMessage("-------------------------------------------------- filters on objects --------------------------------------------------");
         gd.addNumericField("Minimum_size_for_objects (pixels)",0);
         gd.addNumericField("Minimum_distance_to_border (pixels)",0);
+        gd.addDirectoryField("Composite_export_directory (optional)", "");
+        gd.addStringField("Object_volume_bins (volume edges in voxels, comma separated, optional)", "");
+        gd.addFileField("Evaluation_region (optional mask image or stack, .roi or ROI .zip)", "");
+        gd.addCheckbox("Evaluate_channels/frames_in_parallel", false);
 
         gd.addMessage("distance to border value explanation:");
         //gd.addToSameRow();
-        gd.addMessage("set -1 to remove nothing, 0 to remove objects touching borders, higher values to remove objects with pixels in defined distance from horizontal and vertical borders of image");
+        gd.addMessage("set -1 to remove nothing, 0 to remove objects touching borders, higher values also remove objects whose center is closer than this distance to horizontal and vertical borders of image");
 
         Vector chV=gd.getCheckboxes();
         Vector numV=gd.getNumericFields();
@@ -668,18 +955,11 @@ public class MaskInstantComparator3D implements PlugIn {
 
         if (useOpenImages) testMaskPathOrTitle = gd.getNextChoice();
         else testMaskPathOrTitle = gd.getNextString();
+        String testScoresPath = gd.getNextString().trim();
 
         boolean showImage;
         if (!useOpenImages) showImage = gd.getNextBoolean();
         else showImage = false;
-        String truthRoiTemp = "";
-        String testRoiTemp = "";
-        if(!useOpenImages){
-            truthRoiTemp = gd.getNextString();
-            testRoiTemp = gd.getNextString();
-            if(!truthRoiTemp.equals("")) IJ.log("will load truth ROI: "+truthRoiTemp);
-            if(!testRoiTemp.equals("")) IJ.log("will load test ROI: "+testRoiTemp);
-        }
 
         //String testRoiTemp = gd.getNextString();
 
@@ -700,30 +980,102 @@ public class MaskInstantComparator3D implements PlugIn {
         showCorrespondances = gd.getNextBoolean();
 
 //        Set images
-        if (useOpenImages) truthMaskIP = WindowManager.getImage(truthMaskPathOrTitle);
-        else truthMaskIP = getImage(truthMaskPathOrTitle, showImage);
-        if (useOpenImages) testMaskIP = WindowManager.getImage(testMaskPathOrTitle);
-        else testMaskIP = getImage(testMaskPathOrTitle, showImage);
-
-        truthMaskIP.resetRoi();
-        testMaskIP.resetRoi();
-
-        MicUtils.checkImagePlus(truthMaskIP);
-        MicUtils.checkImagePlus(testMaskIP);
-        nChannels=truthMaskIP.getNChannels();
-        nFrames=truthMaskIP.getNFrames();
+        if (!useOpenImages && ChunkedLabelVolume.isChunkedVolume(truthMaskPathOrTitle) && ChunkedLabelVolume.isChunkedVolume(testMaskPathOrTitle)) {
+            // chunked volumes are read chunk by chunk during the analysis
+            truthVolumePath = truthMaskPathOrTitle;
+            testVolumePath = testMaskPathOrTitle;
+            nChannels = 1;
+            nFrames = 1;
+        } else {
+            if (useOpenImages) truthMaskIP = WindowManager.getImage(truthMaskPathOrTitle);
+            else truthMaskIP = getImage(truthMaskPathOrTitle, showImage);
+            if (useOpenImages) testMaskIP = WindowManager.getImage(testMaskPathOrTitle);
+            else testMaskIP = getImage(testMaskPathOrTitle, showImage);
+
+            truthMaskIP.resetRoi();
+            testMaskIP.resetRoi();
+
+            MicUtils.checkImagePlus(truthMaskIP);
+            MicUtils.checkImagePlus(testMaskIP);
+            nChannels=truthMaskIP.getNChannels();
+            nFrames=truthMaskIP.getNFrames();
+        }
 
         minSize = gd.getNextNumber();
         maxSize = Double.POSITIVE_INFINITY;
         minDist = gd.getNextNumber();
         IJ.log("minimum size of objects: "+minSize);
         IJ.log("minimum distance to border: "+minDist);
+        readTestScores(testScoresPath);
+        compositeExportDirectory = gd.getNextString().trim();
+        if(!compositeExportDirectory.isEmpty()) IJ.log("composite images will be written to "+compositeExportDirectory);
+        sizeBinEdges = MicUtils.parseNonNegativeValues(gd.getNextString(), "object volume edge");
+        if(sizeBinEdges != null) {
+            Arrays.sort(sizeBinEdges);
+            IJ.log("object volume bin edges: "+Arrays.toString(sizeBinEdges));
+        }
+        readEvaluationRegion(gd.getNextString().trim());
+        parallelEvaluation = gd.getNextBoolean();
 //        Set ROIs
 
 
     }
 
 
+    /**
+     * Loads the region the comparison is restricted to. Problems are logged and the whole volume is analyzed.
+     *
+     * @param path path of a mask image or stack, a .roi file or a zip of ROIs, empty for no region
+     */
+    private void readEvaluationRegion(String path) {
+        evaluationRegion = null;
+        if (path.isEmpty()) return;
+        if (truthMaskIP == null) {
+            IJ.log("Evaluation region ignored: not available for chunked volumes");
+            return;
+        }
+        try {
+            EvaluationRegion region = EvaluationRegion.open(path, truthMaskIP.getWidth(), truthMaskIP.getHeight());
+            region.checkSize(truthMaskIP.getWidth(), truthMaskIP.getHeight(), truthMaskIP.getNSlices());
+            evaluationRegion = region;
+            IJ.log("evaluation region: " + region.getBounds() + (region.isStack() ? " from slice " + (region.getFirstSlice() + 1) : ""));
+        } catch (IOException | IllegalArgumentException e) {
+            IJ.log("Evaluation region ignored: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the confidence of the test objects: a .csv/.txt/.tsv file is read as a label,score table,
+     * any other file as a score image with the dimensions of the test image (mean score per object).
+     * Problems are logged and the analysis runs without scores.
+     *
+     * @param path path given in the dialog, empty for no scores
+     */
+    private void readTestScores(String path) {
+        testScoreImage = null;
+        testScoreTable = null;
+        if (path.isEmpty()) return;
+        String lower = path.toLowerCase();
+        if (lower.endsWith(".csv") || lower.endsWith(".txt") || lower.endsWith(".tsv")) {
+            try {
+                testScoreTable = ObjectScores.read(new File(path));
+                IJ.log(testScoreTable.size() + " test object scores read from " + path);
+            } catch (IOException e) {
+                IJ.log("Test object scores ignored: " + e.getMessage());
+            }
+            return;
+        }
+        ImagePlus scores = IJ.openImage(path);
+        if (scores == null || testMaskIP == null || scores.getWidth() != testMaskIP.getWidth() || scores.getHeight() != testMaskIP.getHeight()
+                || scores.getStackSize() != testMaskIP.getStackSize()) {
+            IJ.log("Test object scores ignored: " + path + " is not an image with the dimensions of the test mask");
+            return;
+        }
+        scores.setDimensions(testMaskIP.getNChannels(), testMaskIP.getNSlices(), testMaskIP.getNFrames());
+        testScoreImage = scores;
+        IJ.log("test object scores are the mean of " + scores.getTitle() + " over each object");
+    }
+
     /**
     * Loads an image from the specified file path.
     * Optionally displays the image with adjusted display range for visibility.
@@ -756,7 +1108,7 @@ public class MaskInstantComparator3D implements PlugIn {
 
     /**
     * Creates and adds a performance metrics graph to the graph hyperstack.
-    * Plots precision, sensitivity, Jaccard index, and F-measure across IoU thresholds.
+    * Plots precision, sensitivity, Jaccard index, F-measure and panoptic quality across IoU thresholds.
     *
     * @param channel the channel index
     * @param frame the frame index
@@ -766,8 +1118,9 @@ public class MaskInstantComparator3D implements PlugIn {
     * @param sensitivity the sensitivity/recall scores
     * @param jaccardIndex the Jaccard index scores
     * @param fmeasure the F-measure scores
+    * @param panopticQuality the panoptic quality scores
     */
-    private void createGraphs(int channel,int frame, String title,double[] thresholds, double[] precision, double[] sensitivity, double[] jaccardIndex, double[] fmeasure){
+    private void createGraphs(int channel,int frame, String title,double[] thresholds, double[] precision, double[] sensitivity, double[] jaccardIndex, double[] fmeasure, double[] panopticQuality){
         IJ.log("add graphs");
         Plot plot=new Plot(title,"overlap threshold","score");
         //add precision
@@ -786,6 +1139,10 @@ public class MaskInstantComparator3D implements PlugIn {
         plot.setColor(Color.BLUE);
         plot.add("line",thresholds,fmeasure);
         labels+="\tfmeasure ((2*precision*sensitivity)/(precision+sensitivity))";
+        //add panoptic quality
+        plot.setColor(Color.MAGENTA);
+        plot.add("line",thresholds,panopticQuality);
+        labels+="\tpanoptic quality (sum of matched IoUs/(tp+fp/2+fn/2))";
         //add legend
         plot.addLegend(labels);
         //plot.setSize(graphHyperStack.getWidth(),graphHyperStack.getHeight());
@@ -831,24 +1188,45 @@ public class MaskInstantComparator3D implements PlugIn {
     }
 
     private ImageProcessor createPixelOverlayPlane(ImageProcessor truth, ImageProcessor test){
-        ByteProcessor bp = new ByteProcessor(truth.getWidth(), truth.getHeight());
-
-        for(int y=0;y<truth.getHeight();y++){
-            for(int x=0;x<truth.getWidth();x++){
-                boolean truthPixel = truth.getf(x,y) > 0;
-                boolean testPixel = test.getf(x,y) > 0;
-                if(truthPixel && testPixel){
-                    bp.set(x,y,1);   // jaune
-                }
-                else if(testPixel){
-                    bp.set(x,y,2);   // rouge
-                }
-                else if(truthPixel){
-                    bp.set(x,y,3);   // vert
-                }
-            }
+        return MicUtils.createPixelOverlayPlane(truth, test);
+    }
+
+    /**
+     * Metrics of one (channel, frame) volume, kept until they are added to the tables.
+     */
+    private static class VolumeEvaluation {
+        final int channel;
+        final int frame;
+        final String truthTitle;
+        final String testTitle;
+        final String graphTitle;
+        final int maxTruth;
+        final int maxTest;
+        Metrics pixelMetrics;
+        Metrics objectMetrics;
+        Metrics[] curveMetrics;
+        double[] thresholds;
+        // metrics per object volume bin at IoU 0.5, and per threshold then bin
+        Metrics[] sizeMetrics;
+        Metrics[][] sizeCurveMetrics;
+        // AP50, AP75 and AP[.50:.95] when the test objects have scores
+        double[] averagePrecisions;
+        // AJI and AJI+ at object level
+        double[] aggregatedJaccardIndexes;
+        // VI split, VI merge and ARI of the labelings
+        double[] clusteringScores;
+        ImageProcessor correspondance;
+        ObjectPairStatistics objectPairs;
+
+        VolumeEvaluation(int channel, int frame, String truthTitle, String testTitle, String graphTitle, int maxTruth, int maxTest) {
+            this.channel = channel;
+            this.frame = frame;
+            this.truthTitle = truthTitle;
+            this.testTitle = testTitle;
+            this.graphTitle = graphTitle;
+            this.maxTruth = maxTruth;
+            this.maxTest = maxTest;
         }
-        return bp;
     }
 
 }
@@ -30,7 +30,6 @@ import ij.gui.*;
 //import ij.measure.ResultsTable;
 import ij.plugin.LutLoader;
 import ij.plugin.PlugIn;
-import ij.plugin.RGBStackMerge;
 import ij.plugin.frame.RoiManager;
 import ij.process.*;
 
@@ -39,9 +38,11 @@ import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.image.IndexColorModel;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Vector;
+import java.util.stream.IntStream;
 
 
 //TODO centre géométrique
@@ -67,6 +68,10 @@ public class Mask_Instant_Comparator implements PlugIn {
     private ImagePlus testMaskIP;
     //composite image created in results
     private ImagePlus[] compositeImage;
+    //streaming export of composites (headless), used instead of compositeImage
+    private String compositeExportDirectory = "";
+    private CompositeTiffWriter compositeWriter;
+    private ImageProcessor[] compositePlanes;
 
     //    Methods of comparison
     private double minSize;
@@ -78,6 +83,17 @@ public class Mask_Instant_Comparator implements PlugIn {
     private double overlapMax;
     private double overlapInc;
     private double minDist;
+    // boundary F1 tolerances in pixels, null when boundary metrics are not requested
+    private double[] boundaryTolerances;
+    // bootstrap replicates for the confidence intervals of the summary, 0 for none
+    private int bootstrapReplicates;
+    // ascending object area edges for size-stratified metrics, null when not requested
+    private double[] sizeBinEdges;
+    // tile size of the pixel error heatmaps, 0 for none
+    private int heatmapTileSize;
+    private ImageStack errorHeatmaps;
+    // region the label mode comparison is restricted to, null for the whole image
+    private EvaluationRegion evaluationRegion;
 
     private enum CalculationMode {
         ROI_BASED,
@@ -184,6 +200,15 @@ public class Mask_Instant_Comparator implements PlugIn {
 
 //    SETTER
 
+    /**
+     * Restricts the label mode comparison to a region of the images.
+     *
+     * @param region 2D evaluation region, or null to compare the whole images
+     */
+    public void setEvaluationRegion(EvaluationRegion region) {
+        evaluationRegion = region;
+    }
+
     /**
      * Loads ROI regions from a file and assigns them to either truth or test masks.
      * Clears existing ROIs from the RoiManager before loading new ones.
@@ -300,45 +325,32 @@ public class Mask_Instant_Comparator implements PlugIn {
     }
 
     /**
-     * Creates a composite RGB image for visual comparison of truth and test masks.
-     * Merges the binary versions of both masks into red and green channels.
+     * Creates a composite image for visual comparison of truth and test masks.
+     * Each plane is built directly from the label values with the MiC LUT:
+     * overlap is yellow, test only is red and truth only is green.
      *
      * @param truthMaskIP the ground truth segmentation image
      * @param testMaskIP the test segmentation image
-     * @return composite RGB image where test mask is red and truth mask is green
+     * @return indexed composite image where test mask is red and truth mask is green
      */
     public static ImagePlus combineImages(ImagePlus truthMaskIP, ImagePlus testMaskIP) {
-        ImageStack testStack = new ImageStack();
-        ImageStack truthStack = new ImageStack();
-        for (int slice = 1; slice <= truthMaskIP.getNSlices(); slice++) {
-            truthMaskIP.setSlice(slice);
-            testMaskIP.setSlice(slice);
-            ByteProcessor truthMaskBinary = getMaskBinary(truthMaskIP);
-            ByteProcessor testMaskBinary = getMaskBinary(testMaskIP);
-            truthStack.addSlice(truthMaskBinary);
-            testStack.addSlice(testMaskBinary);
-        }
-
-//        --> Create ImagePlus from the ByteProcessor
-        ImagePlus truthMaskBinaryIP = new ImagePlus(truthMaskIP.getShortTitle() + "_binary", truthStack);
-        ImagePlus testMaskBinaryIP = new ImagePlus(testMaskIP.getShortTitle() + "_binary", testStack);
-
-//        Create composite image from both binary mask ImagePlus
-        ImagePlus composite = RGBStackMerge.mergeChannels(new ImagePlus[]{testMaskBinaryIP, truthMaskBinaryIP}, true);
-        composite.setTitle(testMaskIP.getShortTitle() + "_composite");
+        ImageStack truthStack = truthMaskIP.getImageStack();
+        ImageStack testStack = testMaskIP.getImageStack();
+        ImageProcessor[] planes = new ImageProcessor[truthStack.getSize()];
+        IntStream indexes = IntStream.range(0, planes.length);
+        if (!truthStack.isVirtual() && !testStack.isVirtual()) indexes = indexes.parallel();
+        indexes.forEach(i -> planes[i] = MicUtils.createPixelOverlayPlane(truthStack.getProcessor(i + 1), testStack.getProcessor(i + 1)));
+
+        ImageStack compositeStack = new ImageStack(truthMaskIP.getWidth(), truthMaskIP.getHeight());
+        for (ImageProcessor plane : planes) compositeStack.addSlice(plane);
+        ImagePlus composite = new ImagePlus(testMaskIP.getShortTitle() + "_composite", compositeStack);
+        composite.setDimensions(truthMaskIP.getNChannels(), truthMaskIP.getNSlices(), truthMaskIP.getNFrames());
+        composite.getProcessor().setLut(IoUAnalysis.getMiCLUT());
+        composite.setDisplayRange(0, 255);
         IJ.log("In the composite image : the truth mask corresponds to the green and test mask to the red");
         return composite;
     }
 
-    private static ByteProcessor getMaskBinary(ImagePlus maskIP) {
-        //Create binary image (essentially in case of image with one intensity per particle)
-        //Threshold and create mask from labeled image
-        maskIP.resetDisplayRange();
-        maskIP.getProcessor().setThreshold(1, maskIP.getProcessor().getMax());
-
-        return maskIP.getProcessor().createMask();
-    }
-
     /**
      * Main analysis method that validates inputs and performs comparison across all slices, channels, and frames.
      * Verifies image compatibility (size, dimensions, type) before proceeding with analysis.
@@ -398,6 +410,7 @@ public class Mask_Instant_Comparator implements PlugIn {
         //if (isStack){
         int[] dimensions = truthMaskIP.getDimensions(); //[width,height,channels, slices, frames]
         for (int c = 0; c < dimensions[2]; c++) {
+            if (!compositeExportDirectory.isEmpty()) openCompositeWriter(c);
             for (int t = 0; t < dimensions[4]; t++) {
 //            Iterate on slices
                 for (int nrSlice = 1; nrSlice <= dimensions[3]; nrSlice++) {
@@ -423,13 +436,16 @@ public class Mask_Instant_Comparator implements PlugIn {
                         testMaskIP.setPosition(c+1,nrSlice,t+1);
                     }
                     pairComparisonChoice(c, t, nrSlice, truthMaskIP.getProcessor(), testMaskIP.getProcessor(), truthRoiStackTemp, testRoiStackTemp);
+                    if (compositeWriter != null) writeCompositePlanes(c, t, nrSlice);
                     resultDisplay.incrementMainTable();
                     resultDisplay.incrementThresholdTable();
                 }
             }
+            closeCompositeWriter();
         }
         //remove last line of resultsTable
         resultDisplay.deleteLastRows();
+        if (compositeImage != null && pixelMethod) addCompositePixels();
 
 
         setLUT(truthMaskIP);
@@ -533,29 +549,50 @@ public class Mask_Instant_Comparator implements PlugIn {
     }
 
     private void pairComparisonChoiceLabel(int channel, int time, int nrSlice, ImageProcessor truthMaskProc, ImageProcessor testMaskProc, Roi[] truthRois, Roi[] testRois){
-        ImagePlus truth = new ImagePlus("truth", truthMaskProc.duplicate());
-        ImagePlus test = new ImagePlus("test", testMaskProc.duplicate());
-
-        IoUAnalysis analysis = IoUAnalysis.create(truth, test, minSize, minDist);
+        ImagePlus truth = new ImagePlus("truth", truthMaskProc);
+        ImagePlus test = new ImagePlus("test", testMaskProc);
+
+        // only the foreground bounding box is analyzed, an empty plane is reduced to one background pixel;
+        // heatmaps need the whole plane and an evaluation region already bounds the analysis.
+        // The box keeps one background pixel on each side so that object contours are unchanged.
+        EvaluationRegion region = evaluationRegion;
+        boolean empty = false;
+        if(region == null && heatmapTileSize == 0){
+            Rectangle foreground = PackedMask.foregroundBounds(PackedMask.of(truthMaskProc), PackedMask.of(testMaskProc));
+            empty = foreground == null;
+            if(!empty) foreground.grow(1, 1);
+            region = EvaluationRegion.ofContent(empty ? new Rectangle(1, 1) : foreground, truthMaskProc.getWidth(), truthMaskProc.getHeight());
+        }
+        IoUAnalysis analysis = IoUAnalysis.create(truth, test, minSize, minDist, null, region);
+        truth = analysis.getTruth();
+        test = analysis.getTest();
         AnalysisResult result = analysis.computeAnalysisResult(overlapMin,overlapMax,overlapInc);
         result.setChannel(channel);
         result.setFrame(time);
         result.setSlice(nrSlice);
-        int indexComposite = 1;
+        int indexComposite = pixelMethod ? 1 : 0;
 
         resultDisplay.addMainObjectCounts(analysis.getMaxTruth(), analysis.getMaxTest());
+        if(heatmapTileSize > 0) addErrorHeatmap(channel, time, nrSlice, analysis);
+        if(boundaryTolerances != null){
+            result.setBoundaryMetrics(addBoundaryMetrics(channel, time, nrSlice, truth.getProcessor(), analysis.getMaxTruth(),
+                    test.getProcessor(), analysis.getMaxTest(), analysis.getIoU()));
+        }
 
         if(pixelMethod){
             Metrics metrics = result.getPixelMetrics();
             resultDisplay.addMetric("Pixel", metrics);
-            if(compositeImage != null) addCompositePixels(compositeImage[channel], indexComposite, channel, time, nrSlice);
         }
 
         if(objectMethod){
             Metrics metrics = result.getObjectMetrics();
             indexComposite++;
-            if(compositeImage != null) if(compositeImage != null) addCompositeLabelObjects(compositeImage[channel], indexComposite, channel, time, nrSlice, analysis, truth.getProcessor(), test.getProcessor(), 0.5);
+            if(hasComposites() && !empty) addCompositeLabelObjects(indexComposite, channel, time, nrSlice, analysis, truth.getProcessor(), test.getProcessor(), 0.5);
             resultDisplay.addMetric("Object (IoU=0.5)", metrics);
+            resultDisplay.addAggregatedJaccardIndex(result.getAggregatedJaccardIndex(), result.getAggregatedJaccardIndexPlus());
+            resultDisplay.addClusteringScores(result.getVariationOfInformationSplit(), result.getVariationOfInformationMerge(), result.getAdjustedRandIndex());
+            if(showCorrespondances) resultDisplay.addObjectPairs(channel, time, nrSlice, ObjectPairStatistics.compute(analysis, 0.5));
+            if(sizeBinEdges != null) addSizeBinMetrics(analysis.getMetricsBySize(0.5, sizeBinEdges), "Object (IoU=0.5, ", false);
         }
         if(pixelObjectMethod) {
             Metrics[] curveMetrics = result.getCurveMetrics();
@@ -563,18 +600,20 @@ public class Mask_Instant_Comparator implements PlugIn {
             resultDisplay.addMeanScores(result);
             resultDisplay.accumulate(result);
             if(showGraphs) resultDisplay.addPlot(result, truthMaskIP.getShortTitle() + "/" + testMaskIP.getShortTitle());
-            if(compositeImage != null){
+            if(hasComposites() && !empty){
                 for(double threshold : thresholds){
                     indexComposite++;
-                    addCompositeLabelObjects(compositeImage[channel], indexComposite, channel, time, nrSlice, analysis, truth.getProcessor(), test.getProcessor(), threshold);
+                    addCompositeLabelObjects(indexComposite, channel, time, nrSlice, analysis, truth.getProcessor(), test.getProcessor(), threshold);
                 }
             }
+            Metrics[][] sizeCurves = sizeBinEdges == null ? null : analysis.getMetricsCurveBySize(thresholds, sizeBinEdges);
             for(int i = 0; i < thresholds.length; i++){
                 if(i != 0) resultDisplay.incrementThresholdTable();
                 resultDisplay.addThresholdContext(channel, time, nrSlice, analysis.getMaxTruth(), analysis.getMaxTest());
                 Metrics m = curveMetrics[i];
                 resultDisplay.addMetric("Object", m, thresholds[i]);
                 resultDisplay.addThresholdAP(m);
+                if(sizeCurves != null) addSizeBinMetrics(sizeCurves[i], "Object (", true);
             }
         }
     }
@@ -602,14 +641,18 @@ public class Mask_Instant_Comparator implements PlugIn {
         testMaskProc = labeledImage(testMaskProc.getWidth(), testMaskProc.getHeight(), testRois);
 
         IoUAnalysis roiAnalysis = IoUAnalysis.create(truthRois, testRois, truthMaskProc.getWidth(), truthMaskProc.getHeight(), minDist);
+        if (heatmapTileSize > 0) addErrorHeatmap(channel, time, nrSlice, roiAnalysis);
+        BoundaryMetrics boundary = null;
+        if (boundaryTolerances != null) {
+            boundary = addBoundaryMetrics(channel, time, nrSlice, truthMaskProc, truthRois.length, testMaskProc, testRois.length, roiAnalysis.getIoU());
+        }
 
         allTruthRoi.add(truthRois);
 //            LAUNCH METHODS
-        int indexComposite = 1;
+        int indexComposite = pixelMethod ? 1 : 0;
         if (pixelMethod) {
             Metrics pixelMetrics = computePixelMetrics(truthMaskProc, testMaskProc);
             resultDisplay.addMetric("Pixel", pixelMetrics);
-            if (compositeImage != null) addCompositePixels(compositeImage[channel], indexComposite, channel, time, nrSlice);
         }
 
         if (objectMethod || pixelObjectMethod) {
@@ -632,8 +675,11 @@ public class Mask_Instant_Comparator implements PlugIn {
                 //Metrics objectMetrics = roiAnalysis.getMetrics(0.5);
                 //Metrics objectMetrics = computeROIMetricsAtThreshold(truthRois, testRois, objectAssignation, validTruth, validTest, overlapPercents, 0.5);
                 indexComposite++;
-                if(compositeImage != null) addCompositeLabelObjects(compositeImage[channel], indexComposite, channel, time, nrSlice, roiAnalysis, truthMaskProc, testMaskProc, 0.5);
+                if(hasComposites()) addCompositeLabelObjects(indexComposite, channel, time, nrSlice, roiAnalysis, truthMaskProc, testMaskProc, 0.5);
                 resultDisplay.addMetric("Object (IoU=0.5)", objectMetrics);
+                resultDisplay.addAggregatedJaccardIndex(roiAnalysis.getAggregatedJaccardIndex(), roiAnalysis.getAggregatedJaccardIndexPlus());
+                resultDisplay.addClusteringScores(roiAnalysis.getVariationOfInformationSplit(), roiAnalysis.getVariationOfInformationMerge(), roiAnalysis.getAdjustedRandIndex());
+                if(sizeBinEdges != null) addSizeBinMetrics(roiAnalysis.getMetricsBySize(0.5, sizeBinEdges), "Object (IoU=0.5, ", false);
 
             }
             if (pixelObjectMethod) {
@@ -641,18 +687,20 @@ public class Mask_Instant_Comparator implements PlugIn {
                 Metrics[] curveMetrics = computeROIMetricsCurveFromIoU(roiAnalysis, thresholds);
                 //Metrics[] curveMetrics = computeROIMetricsCurve(truthRois, testRois, objectAssignation, validTruth, validTest, overlapPercents, thresholds);
                 AnalysisResult result = AnalysisResult.fromCurveMetrics(curveMetrics, thresholds, channel, time, nrSlice);
+                result.setBoundaryMetrics(boundary);
                 resultDisplay.addMeanScores(result);
                 resultDisplay.accumulate(result);
                 //create object Images
-                if (compositeImage != null) {
+                if (hasComposites()) {
                     for (double range : thresholds) {
                         indexComposite++;
-                        addCompositeLabelObjects(compositeImage[channel], indexComposite, channel, time, nrSlice, roiAnalysis, truthMaskProc, testMaskProc, range);
+                        addCompositeLabelObjects(indexComposite, channel, time, nrSlice, roiAnalysis, truthMaskProc, testMaskProc, range);
                     }
                 }
                 //create graphs
                 if(showGraphs) resultDisplay.addPlot(result, truthMaskIP.getShortTitle() + "/" + testMaskIP.getShortTitle());
                 //add to result table
+                Metrics[][] sizeCurves = sizeBinEdges == null ? null : roiAnalysis.getMetricsCurveBySize(thresholds, sizeBinEdges);
                 for (int i = 0; i < thresholds.length; i++) {
                     if(i != 0) resultDisplay.incrementThresholdTable();
                     resultDisplay.addThresholdContext(channel, time, nrSlice, truthRois.length, testRois.length);
@@ -661,11 +709,65 @@ public class Mask_Instant_Comparator implements PlugIn {
                     resultDisplay.addMetric("Object", m, thresholds[i]);
                     //pixelObjectResultsTable.addValue("AP = precision*sensitivity", precision[i] * sensitivity[i]);
                     resultDisplay.addThresholdAP(m);
+                    if(sizeCurves != null) addSizeBinMetrics(sizeCurves[i], "Object (", true);
                 }
             }
         }
     }
 
+    /**
+     * Adds the precision, recall and F-measure heatmaps of one plane to the heatmap stack.
+     *
+     * @param channel channel index
+     * @param time frame index
+     * @param nrSlice slice index
+     * @param analysis analysis of the plane
+     */
+    private void addErrorHeatmap(int channel, int time, int nrSlice, IoUAnalysis analysis) {
+        ImageStack heatmap = analysis.getPixelErrorMap().heatmap(heatmapTileSize);
+        if (errorHeatmaps == null) errorHeatmaps = new ImageStack(heatmap.getWidth(), heatmap.getHeight());
+        for (int i = 1; i <= heatmap.getSize(); i++) {
+            errorHeatmaps.addSlice("c" + channel + " z" + nrSlice + " t" + time + " " + heatmap.getSliceLabel(i), heatmap.getProcessor(i));
+        }
+    }
+
+    /**
+     * Adds the metrics of each object area bin to the main table or to the current row of the threshold table.
+     *
+     * @param metrics metrics of each bin
+     * @param prefix method name before the bin name, closed by a parenthesis
+     * @param thresholdTable true for the threshold table, false for the main table
+     */
+    private void addSizeBinMetrics(Metrics[] metrics, String prefix, boolean thresholdTable) {
+        for (int bin = 0; bin < metrics.length; bin++) {
+            String method = prefix + IoUAnalysis.getSizeBinName(sizeBinEdges, bin) + ")";
+            if (thresholdTable) resultDisplay.addThresholdMetric(method, metrics[bin]);
+            else resultDisplay.addMetric(method, metrics[bin]);
+        }
+    }
+
+    /**
+     * Computes the boundary metrics of one plane at the requested tolerances and adds them to the result tables:
+     * plane scores to the main table, object scores to the per-object table when correspondences are shown.
+     *
+     * @param channel channel index
+     * @param time frame index
+     * @param nrSlice slice index
+     * @param truth truth label plane (labels 1 to maxTruth)
+     * @param maxTruth number of truth objects
+     * @param test test label plane (labels 1 to maxTest)
+     * @param maxTest number of test objects
+     * @param iou IoU matrix of the plane
+     * @return boundary metrics of the plane
+     */
+    private BoundaryMetrics addBoundaryMetrics(int channel, int time, int nrSlice, ImageProcessor truth, int maxTruth,
+                                               ImageProcessor test, int maxTest, ImageProcessor iou) {
+        BoundaryMetrics boundary = BoundaryMetrics.compute(truth, maxTruth, test, maxTest, iou, boundaryTolerances);
+        resultDisplay.addBoundaryScores(boundary);
+        if (showCorrespondances) resultDisplay.addBoundaryObjects(channel, time, nrSlice, boundary);
+        return boundary;
+    }
+
     private void objectAssignation(Roi[] truthRois, Roi[] testRois, int[] correspondance, double[] overlapPercent) {
         Arrays.fill(correspondance, -1);
         Arrays.fill(overlapPercent, -1);
@@ -733,15 +835,22 @@ public class Mask_Instant_Comparator implements PlugIn {
         return !(distanceThreshold >= 0) || (box.getY() != 0 && !(box.getY() + box.getHeight() >= imgHeight));
     }
 
+    private int getNbCompositeIndexes() {
+        int nbIndexes = ((pixelObjectMethod) ? (int) Math.round((overlapMax - overlapMin) / overlapInc + 1) : 0);
+        nbIndexes += ((pixelMethod) ? 1 : 0);
+        nbIndexes += ((objectMethod) ? 1 : 0);
+        return nbIndexes;
+    }
+
+    private String getCompositeTitle(int channel) {
+        return "C" + channel + "_display of masks " + truthMaskIP.getTitle() + "__VS__" + testMaskIP.getTitle();
+    }
+
     private void createCompositeStack() {
         IJ.log("create composite");
         lutComposite = IoUAnalysis.getMiCLUT();
 
-        int nbIndexes = ((pixelObjectMethod) ? (int) Math.round((overlapMax - overlapMin) / overlapInc + 1) : 0);
-        IJ.log("nbIndexes:" + nbIndexes);
-        nbIndexes += ((pixelMethod) ? 1 : 0);
-        IJ.log("nbIndexes:" + nbIndexes);
-        nbIndexes += ((objectMethod) ? 1 : 0);
+        int nbIndexes = getNbCompositeIndexes();
         IJ.log("nbIndexes:" + nbIndexes);
         IJ.log("nb channels : " + truthMaskIP.getNChannels());
         IJ.log("nb frames : " + truthMaskIP.getNFrames());
@@ -749,7 +858,7 @@ public class Mask_Instant_Comparator implements PlugIn {
         IJ.log("create " + truthMaskIP.getNChannels() + " composite stack (one per channel)");
         compositeImage = new ImagePlus[truthMaskIP.getNChannels()];
         for (int channel = 1; channel <= truthMaskIP.getNChannels(); channel++) {
-            compositeImage[channel - 1] = IJ.createImage("C" + channel + "_display of masks " + truthMaskIP.getTitle() + "__VS__" + testMaskIP.getTitle(), "composite", truthMaskIP.getWidth(), truthMaskIP.getHeight(), nbIndexes, truthMaskIP.getNSlices(), truthMaskIP.getNFrames());
+            compositeImage[channel - 1] = IJ.createImage(getCompositeTitle(channel), "composite", truthMaskIP.getWidth(), truthMaskIP.getHeight(), nbIndexes, truthMaskIP.getNSlices(), truthMaskIP.getNFrames());
         }
 
     }
@@ -828,11 +937,13 @@ public class Mask_Instant_Comparator implements PlugIn {
         boolean[] acceptedTruth = new boolean[nTruth];
         boolean[] acceptedTest = new boolean[nTest];
         int tp = 0;
+        double matchedIoUSum = 0;
         for(RoiMatch match : matches){
             if(acceptedTruth[match.truth] || acceptedTest[match.test]) continue;
             acceptedTruth[match.truth] = true;
             acceptedTest[match.test] = true;
             tp++;
+            matchedIoUSum += match.iou;
         }
         int fp = 0;
         for(int j = 0; j < nTest; j++){
@@ -844,7 +955,7 @@ public class Mask_Instant_Comparator implements PlugIn {
         }
 
         IJ.log("ROI metrics from IoU threshold=" + threshold + " TP=" + tp + " FP=" + fp + " FN=" + fn + " validTruth=" + countTrue(validTruth) + " validTest=" + countTrue(validTest));
-        return new Metrics(tp, fp, fn);
+        return new Metrics(tp, fp, fn, matchedIoUSum);
     }
     private int countTrue(boolean[] values){
         int count = 0;
@@ -874,23 +985,90 @@ public class Mask_Instant_Comparator implements PlugIn {
     }
 
 
-    private void addCompositePixels(ImagePlus imp, int index, int channel, int time, int slice) {
-        IJ.log("add composite from pixels");
-        truthMaskIP.setPosition(channel + 1, slice, time + 1);
-        testMaskIP.setPosition(channel + 1, slice, time + 1);
-        ByteProcessor truthMaskBinary = getMaskBinary(truthMaskIP);
-        ByteProcessor testMaskBinary = getMaskBinary(testMaskIP);
-        ColorProcessor col = new ColorProcessor(truthMaskIP.getWidth(), truthMaskIP.getHeight());
-        col.setChannel(1, testMaskBinary);
-        col.setChannel(2, truthMaskBinary);
-        ImagePlus rgb = new ImagePlus("rgb", col);
-        ImageConverter converter = new ImageConverter(rgb);
-        converter.convertRGBtoIndexedColor(256);
-        imp.getImageStack().getProcessor(imp.getStackIndex(index, slice, time +1)).copyBits(rgb.getProcessor(), 0, 0, Blitter.COPY);
+    private boolean hasComposites() {
+        return compositeImage != null || compositeWriter != null;
+    }
 
-        CompositeImage ci = (CompositeImage) imp;
-        ci.setChannelLut(rgb.getProcessor().getLut(), index);
-        imp.resetDisplayRange();
+    /**
+     * Opens the streaming TIFF writer for the composite of one source channel.
+     *
+     * @param channel source channel (0-based)
+     * @return true if the writer is ready, false if the file could not be created
+     */
+    private boolean openCompositeWriter(int channel) {
+        File output = new File(compositeExportDirectory, getCompositeTitle(channel + 1) + ".tif");
+        IJ.log("export composite to " + output.getAbsolutePath());
+        try {
+            compositeWriter = new CompositeTiffWriter(output, truthMaskIP.getWidth(), truthMaskIP.getHeight(),
+                    getNbCompositeIndexes(), truthMaskIP.getNSlices(), truthMaskIP.getNFrames(), lutComposite);
+            compositePlanes = new ImageProcessor[getNbCompositeIndexes()];
+            return true;
+        } catch (IOException e) {
+            IJ.error("Composite export failed: " + e.getMessage());
+            compositeWriter = null;
+            return false;
+        }
+    }
+
+    /**
+     * Writes the composite planes rendered for one slice and releases them.
+     * The pixel superposition plane is rendered here, directly from the mask stacks.
+     */
+    private void writeCompositePlanes(int channel, int time, int slice) {
+        if (pixelMethod) {
+            int sourceIndex = truthMaskIP.getStackIndex(channel + 1, slice, time + 1);
+            compositePlanes[0] = MicUtils.createPixelOverlayPlane(truthMaskIP.getImageStack().getProcessor(sourceIndex), testMaskIP.getImageStack().getProcessor(sourceIndex));
+        }
+        try {
+            for (int i = 0; i < compositePlanes.length; i++) {
+                ImageProcessor plane = compositePlanes[i];
+                compositeWriter.writePlane(plane != null ? plane : new ByteProcessor(truthMaskIP.getWidth(), truthMaskIP.getHeight()));
+                compositePlanes[i] = null;
+            }
+        } catch (IOException e) {
+            IJ.error("Composite export failed: " + e.getMessage());
+            closeCompositeWriter();
+        }
+    }
+
+    private void closeCompositeWriter() {
+        if (compositeWriter == null) return;
+        try {
+            compositeWriter.close();
+        } catch (IOException e) {
+            IJ.error("Composite export failed: " + e.getMessage());
+        }
+        compositeWriter = null;
+        compositePlanes = null;
+    }
+
+    /**
+     * Fills the pixel superposition channel (index 1) of every composite stack.
+     * Planes are read directly from the mask stacks and rendered in parallel,
+     * without changing the displayed slice of the masks.
+     */
+    private void addCompositePixels() {
+        IJ.log("add composite from pixels");
+        ImageStack truthStack = truthMaskIP.getImageStack();
+        ImageStack testStack = testMaskIP.getImageStack();
+        int nChannels = truthMaskIP.getNChannels();
+        int nSlices = truthMaskIP.getNSlices();
+        int nFrames = truthMaskIP.getNFrames();
+        IntStream planes = IntStream.range(0, nChannels * nSlices * nFrames);
+        if (!truthStack.isVirtual() && !testStack.isVirtual()) planes = planes.parallel();
+        planes.forEach(i -> {
+            int channel = i % nChannels;
+            int slice = (i / nChannels) % nSlices + 1;
+            int time = i / (nChannels * nSlices);
+            int sourceIndex = truthMaskIP.getStackIndex(channel + 1, slice, time + 1);
+            ImageProcessor overlay = MicUtils.createPixelOverlayPlane(truthStack.getProcessor(sourceIndex), testStack.getProcessor(sourceIndex));
+            ImagePlus imp = compositeImage[channel];
+            imp.getImageStack().getProcessor(imp.getStackIndex(1, slice, time + 1)).copyBits(overlay, 0, 0, Blitter.COPY);
+        });
+        for (ImagePlus imp : compositeImage) {
+            if (imp instanceof CompositeImage) ((CompositeImage) imp).setChannelLut(lutComposite, 1);
+            else imp.getProcessor().setLut(lutComposite);
+        }
     }
 
     private void addCompositeObjects(ImagePlus imp, int index, int channel, int time, int slice, Roi[] truthRois, Roi[] testRois, int[] correspondence, boolean[] validTruth, boolean[] validTest, double[] overlapPercent, double threshold) {
@@ -952,9 +1130,15 @@ public class Mask_Instant_Comparator implements PlugIn {
         //imp.getImageStack().getProcessor(imp.getStackIndex(index,slice,time)).copyBits(col,0,0,Blitter.COPY);
     }
 
-    private void addCompositeLabelObjects(ImagePlus imp, int index, int channel, int time, int slice, IoUAnalysis analysis, ImageProcessor truthMaskProc, ImageProcessor testMaskProc, double threshold){
+    private void addCompositeLabelObjects(int index, int channel, int time, int slice, IoUAnalysis analysis, ImageProcessor truthMaskProc, ImageProcessor testMaskProc, double threshold){
         IJ.log("add composite from label masks with threshold " + threshold + " at display channel " + index);
         ImageProcessor compositePlane = analysis.createCompositePlane(truthMaskProc, testMaskProc, threshold);
+        if(analysis.getRegion() != null) compositePlane = analysis.getRegion().uncrop(compositePlane);
+        if(compositeWriter != null){
+            compositePlanes[index - 1] = compositePlane;
+            return;
+        }
+        ImagePlus imp = compositeImage[channel];
         IJ.log("label composite source type = " + compositePlane.getClass().getSimpleName() + ", max = " + compositePlane.getMax());
         ImageProcessor processorToCopy = compositePlane;
         if(compositePlane instanceof ColorProcessor){
@@ -1058,24 +1242,7 @@ public class Mask_Instant_Comparator implements PlugIn {
     }
 
     private Metrics computePixelMetrics(ImageProcessor truthMaskProc, ImageProcessor testMaskProc){
-        int truePositive = 0;
-        int falsePositive = 0;
-        int falseNegative = 0;
-        int[][] truthPixelsValues = truthMaskProc.getIntArray();
-        int[][] testPixelsValues = testMaskProc.getIntArray();
-        for(int x = 0; x < truthMaskProc.getWidth(); x++){
-            for(int y = 0; y < truthMaskProc.getHeight(); y++){
-                int truthValue = truthPixelsValues[x][y];
-                int testValue = testPixelsValues[x][y];
-                if(truthValue != 0){
-                    if(testValue != 0) truePositive++;
-                    else falseNegative++;
-                }else{
-                    if(testValue != 0) falsePositive++;
-                }
-            }
-        }
-        return new Metrics(truePositive, falsePositive, falseNegative);
+        return PackedMask.metrics(truthMaskProc, testMaskProc);
     }
 
     /**
@@ -1122,6 +1289,33 @@ public class Mask_Instant_Comparator implements PlugIn {
         return maxValue;
     }
 
+    /**
+     * Opens the evaluation region of the label mode comparison.
+     * The region is ignored, with a message, if it cannot be read, if it is a stack or if it does not match the images.
+     *
+     * @param path path of a mask image, a .roi file or a zip of ROIs
+     * @return the region, or null if it is ignored
+     */
+    private EvaluationRegion openEvaluationRegion(String path) {
+        if (!useLabelMaskCalculation()) {
+            IJ.log("the evaluation region is only used in Label_mask_based mode, it is ignored in ROI_based mode");
+            return null;
+        }
+        try {
+            EvaluationRegion region = EvaluationRegion.open(path, truthMaskIP.getWidth(), truthMaskIP.getHeight());
+            if (region.isStack()) {
+                IJ.error("The evaluation region must be a single plane, it is ignored.");
+                return null;
+            }
+            region.checkSize(truthMaskIP);
+            IJ.log("evaluation region: " + region.getBounds());
+            return region;
+        } catch (IOException | IllegalArgumentException e) {
+            IJ.error(e.getMessage() + "\nThe evaluation region is ignored.");
+            return null;
+        }
+    }
+
 //    GENERIC DIALOG FUNCTIONS
 
     /**
@@ -1184,11 +1378,26 @@ public class Mask_Instant_Comparator implements PlugIn {
         String mode = gd.getNextChoice();
         calculationMode = mode.equals("Label_mask_based") ? CalculationMode.LABEL_MASK_BASED : CalculationMode.ROI_BASED;
         IJ.log("Object calculation mode : " + calculationMode);
+        compositeExportDirectory = gd.getNextString().trim();
+        if (!compositeExportDirectory.isEmpty()) IJ.log("composite images will be written to " + compositeExportDirectory);
+        boundaryTolerances = MicUtils.parseNonNegativeValues(gd.getNextString(), "boundary tolerance");
+        if (boundaryTolerances != null) IJ.log("boundary F1 tolerances: " + Arrays.toString(boundaryTolerances));
+        sizeBinEdges = MicUtils.parseNonNegativeValues(gd.getNextString(), "object area edge");
+        if (sizeBinEdges != null) {
+            Arrays.sort(sizeBinEdges);
+            IJ.log("object area bin edges: " + Arrays.toString(sizeBinEdges));
+        }
+        bootstrapReplicates = (int) Math.max(0, gd.getNextNumber());
+        heatmapTileSize = (int) Math.max(0, gd.getNextNumber());
+        errorHeatmaps = null;
+        String regionPath = gd.getNextString().trim();
 
 //        Set ROIs
         if (!truthRoiTemp.equals("")) setRois(truthRoiTemp, true);
         if (!testRoiTemp.equals("")) setRois(testRoiTemp, false);
-        if (showComposite && truthMaskIP.getNSlices() == testMaskIP.getNSlices()) createCompositeStack();
+        evaluationRegion = regionPath.isEmpty() ? null : openEvaluationRegion(regionPath);
+        if (!compositeExportDirectory.isEmpty()) lutComposite = IoUAnalysis.getMiCLUT();
+        else if (showComposite && truthMaskIP.getNSlices() == testMaskIP.getNSlices()) createCompositeStack();
 
         if (!truthMaskIP.isStack() || !testMaskIP.isStack()) showSummary = false;
     }
@@ -1256,10 +1465,18 @@ public class Mask_Instant_Comparator implements PlugIn {
         gd.addChoice("Object_calculation_mode", new String[]{"ROI_based", "Label_mask_based"},
                 "ROI_based"
         );
+        gd.addDirectoryField("Composite_export_directory (optional)", "");
+        gd.addStringField("Boundary_F1_tolerances (pixels, comma separated, optional)", "");
+        gd.addStringField("Object_area_bins (area edges in pixels, comma separated, optional)", "");
+        gd.addNumericField("Bootstrap_replicates for summary confidence intervals (Stacks, 0 = none)", 0, 0);
+        gd.addNumericField("Error_heatmap_tile_size (pixels, 0 = none)", 0, 0);
+        gd.addFileField("Evaluation_region (optional mask image, .roi or ROI .zip, Label_mask_based mode only)", "");
 
         gd.addMessage("distance to border value explanation:");
         //gd.addToSameRow();
         gd.addMessage("set -1 to remove nothing, 0 to remove objects touching borders, higher values uses the distance of truth object's center to border");
+        gd.addMessage("if an export directory is given, composite images are written there as tiled TIFF instead of being displayed (open them with Bio-Formats)");
+        gd.addMessage("the evaluation region is ignored in the default ROI_based mode");
 
         Vector chV = gd.getCheckboxes();
         Vector numV = gd.getNumericFields();
@@ -1275,6 +1492,7 @@ public class Mask_Instant_Comparator implements PlugIn {
                 ((TextField) numV.get(0)).setEnabled(varChecked);
                 ((TextField) numV.get(1)).setEnabled(varChecked);
                 ((TextField) numV.get(2)).setEnabled(varChecked);
+                ((TextField) numV.get(5)).setEnabled(varChecked);
 
                 ((Checkbox) chV.get(4 + offset)).setEnabled(varChecked);
                 ((Checkbox) chV.get(5 + offset)).setEnabled(varChecked);
@@ -1295,6 +1513,7 @@ public class Mask_Instant_Comparator implements PlugIn {
                 ((TextField) numV.get(0)).setEnabled(varChecked);
                 ((TextField) numV.get(1)).setEnabled(varChecked);
                 ((TextField) numV.get(2)).setEnabled(varChecked);
+                ((TextField) numV.get(5)).setEnabled(varChecked);
 
                 ((Checkbox) chV.get(4 + offset)).setEnabled(varChecked);
                 ((Checkbox) chV.get(5 + offset)).setEnabled(varChecked);
@@ -1344,7 +1563,12 @@ public class Mask_Instant_Comparator implements PlugIn {
             resultDisplay.showTables(pixelObjectMethod, objectMethod, showCorrespondances);
 
             if (showSummary) {
-                resultDisplay.showSummaryGraph();
+                resultDisplay.showSummaryGraph(bootstrapReplicates);
+            }
+            if (errorHeatmaps != null) {
+                ImagePlus heatmaps = new ImagePlus("Error heatmap (tile " + heatmapTileSize + ") " + testMaskIP.getTitle(), errorHeatmaps);
+                heatmaps.setDisplayRange(0, 1);
+                heatmaps.show();
             }
 
             if (compositeImage != null) {
@@ -3,8 +3,6 @@ package fr.curie.mic;
 import ij.IJ;
 import ij.process.ImageProcessor;
 
-import java.util.*;
-
 /**
  * Computes and stores segmentation metrics (TP, FP, FN) at object or pixel level.
  * Supports precision, recall, Jaccard Index, F1-measure, and precision-recall curves with confidence scores.
@@ -13,12 +11,13 @@ public class Metrics {
     private final double IoUthreshold;
     private final ImageProcessor IoUs;
 
-    private int tp;
-    private int fn;
-    private int fp;
+    private long tp;
+    private long fn;
+    private long fp;
+    // sum of the IoUs of the matched pairs, NaN when the matching is not one-to-one (pixel level, IoU matrix analysis)
+    private double matchedIoUSum = Double.NaN;
 
     private final double[] confidences;
-    private int[] labels;
 
     /**
      * Constructs Metrics from IoU matrix and optional confidence scores.
@@ -43,7 +42,7 @@ public class Metrics {
      * @param fp false positive count
      * @param fn false negative count
      */
-    public Metrics(int tp, int fp, int fn){
+    public Metrics(long tp, long fp, long fn){
         this.IoUs = null;
         this.IoUthreshold = Double.NaN;
         this.confidences = null;
@@ -52,6 +51,20 @@ public class Metrics {
         this.fp = fp;
         this.fn = fn;
     }
+
+    /**
+     * Constructs Metrics from the counts of a one-to-one matching and the IoUs of its matched pairs,
+     * enabling the panoptic quality scores.
+     *
+     * @param tp true positive count (matched pairs)
+     * @param fp false positive count
+     * @param fn false negative count
+     * @param matchedIoUSum sum of the IoUs of the tp matched pairs
+     */
+    public Metrics(long tp, long fp, long fn, double matchedIoUSum){
+        this(tp, fp, fn);
+        this.matchedIoUSum = matchedIoUSum;
+    }
     /**
      * Adds another Metrics' counts to this instance.
      * Aggregates TP, FP, FN across multiple analyses.
@@ -62,6 +75,7 @@ public class Metrics {
         this.tp += other.tp;
         this.fp += other.fp;
         this.fn += other.fn;
+        this.matchedIoUSum += other.matchedIoUSum;
     }
 
     /**
@@ -105,7 +119,6 @@ public class Metrics {
      *    - 2+ matches: TP (over-segmentation: multiple truth objects detected as one)
      * 2. For each truth object (column x): count matches with IoU >= threshold
      *    - 0 matches: FN (false negative)
-     * 3. Store object labels if confidence scores provided
      * 
      * @return array with {tp, fp, fn, precision, sensitivity, jaccard, dsc}
      */
@@ -115,7 +128,6 @@ public class Metrics {
         fn=0;
         float[] row=new float[IoUs.getWidth()+1];
         float[] col = new float[IoUs.getHeight()+1];
-        labels = (confidences!=null)? new int[confidences.length]:null;
         
         // Process each test object (row in IoU matrix)
         for(int y=1;y<IoUs.getHeight();y++){
@@ -124,15 +136,10 @@ public class Metrics {
             for(int x=1;x<IoUs.getWidth();x++){
                 if(row[x]>=IoUthreshold) found++;
             }
-            switch (found){
-                case 0: if(row[0]>0)fp++;
-                        if(labels!=null) labels[y-1]=0;
-                        break;
-                case 1: tp++;
-                        if(labels!=null) labels[y-1]=1;
-                        break;
-                default: tp++;
-                        break;
+            if(found==0){
+                if(row[0]>0)fp++;
+            }else{
+                tp++;
             }
         }
         row=null;
@@ -153,21 +160,21 @@ public class Metrics {
      * 
      * @return number of correctly detected objects
      */
-    public int getTP() { return tp;  }
+    public long getTP() { return tp;  }
     
     /**
      * Returns the false positive count.
      * 
      * @return number of incorrectly detected objects
      */
-    public int getFP() { return fp; }
+    public long getFP() { return fp; }
     
     /**
      * Returns the false negative count.
      * 
      * @return number of undetected objects
      */
-    public int getFN() { return fn; }
+    public long getFN() { return fn; }
     
     /**
      * Returns the IoU threshold used for object-level analysis.
@@ -176,14 +183,6 @@ public class Metrics {
      */
     public double getIoUthreshold() { return IoUthreshold; }
     
-    /**
-     * Returns the object-level labels computed from confidence scores.
-     * Only populated if confidences array was provided.
-     * 
-     * @return array where labels[i] = 1 if confident object, 0 if unmatched
-     */
-    public int[] getLabels() { return labels; }
-    
     /**
      * Computes precision: TP / (TP + FP).
      * Returns NaN if denominator is zero.
@@ -219,20 +218,54 @@ public class Metrics {
     double getF1measure(){ return (tp + fp + fn > 0) ? (2.0 * tp) / (double)(2 * tp + fp + fn) : Double.NaN;}
     
     /**
-     * Computes Average Precision from precision-recall curve.
-     * Only works if confidence scores were provided.
+     * Tells if the IoUs of the matched pairs are known, i.e. if the panoptic quality scores are defined.
+     *
+     * @return true for metrics of a one-to-one object matching
+     */
+    public boolean hasPanopticQuality(){ return !Double.isNaN(matchedIoUSum); }
+
+    /**
+     * Computes the segmentation quality (SQ): mean IoU of the matched pairs.
+     * Returns NaN if there is no matched pair or the matched IoUs are unknown.
+     *
+     * @return segmentation quality [0, 1]
+     */
+    public double getSegmentationQuality(){ return (tp > 0) ? matchedIoUSum / tp : Double.NaN; }
+
+    /**
+     * Computes the recognition quality (RQ): TP / (TP + FP/2 + FN/2), i.e. the F1-measure.
+     *
+     * @return recognition quality [0, 1]
+     */
+    public double getRecognitionQuality(){ return hasPanopticQuality() ? getF1measure() : Double.NaN; }
+
+    /**
+     * Computes the panoptic quality (PQ): sum of matched IoUs / (TP + FP/2 + FN/2), equal to SQ * RQ.
+     * Returns NaN if there is no object or the matched IoUs are unknown.
+     *
+     * @return panoptic quality [0, 1]
+     */
+    public double getPanopticQuality(){
+        return (tp + fp + fn > 0) ? matchedIoUSum / (tp + 0.5 * fp + 0.5 * fn) : Double.NaN;
+    }
+
+    /**
+     * Computes the COCO-style interpolated Average Precision at the IoU threshold of this instance
+     * (see {@link AveragePrecision}).
+     * Only works if confidence scores were provided, confidences[i] being the score of test object i+1.
      * 
      * @return AP value [0, 1], or NaN if no confidence scores
      */
     double getAveragePrecision(){
-        List<Map<String, Double>> precisionRecallCurve = calculatePrecisionRecallCurve();
-        double ap=0;
-        for (Map<String, Double> point : precisionRecallCurve) {
-                    ap+=point.get("precision");
-        }
-        if(precisionRecallCurve.isEmpty()) return Double.NaN;
-        ap /= precisionRecallCurve.size();
-        return ap;
+        if(confidences==null || IoUs==null || IoUthreshold<0) return Double.NaN;
+        return new AveragePrecision(IoUs, scoresByLabel(), IoUthreshold).compute(IoUthreshold);
+    }
+
+    private double[] scoresByLabel(){
+        double[] scores = new double[confidences.length + 1];
+        scores[0] = Double.NaN;
+        System.arraycopy(confidences, 0, scores, 1, confidences.length);
+        return scores;
     }
     
     /**
@@ -256,67 +289,16 @@ public class Metrics {
 
 
     /**
-     * Calculates precision-recall curve from confidence scores and labels.
-     * Sorts objects by confidence (descending) and computes precision/recall at each threshold.
-     * 
-     * Algorithm:
-     * 1. Pair each confidence score with its label (1=TP, 0=FP)
-     * 2. Sort by confidence descending
-     * 3. Iterate through sorted list, accumulating TP and FP
-     * 4. Compute precision = TP/(TP+FP) and recall = TP/numPositives
+     * Calculates the precision-recall curve from the confidence scores.
+     * Test objects are ranked by decreasing confidence and matched greedily to the unmatched truth object
+     * with the highest IoU above the threshold; precision and recall are computed after each of them.
      * 
-     * @return list of maps with keys: "threshold" (confidence), "precision", "recall"
-     */
-    public List<Map<String, Double>> calculatePrecisionRecallCurve() {
-        if(confidences==null) return Collections.emptyList();
-        if(labels==null) return Collections.emptyList();
-        if(confidences.length!=labels.length) throw new IllegalStateException("confidences and labels must have the same length");
-        
-        // Pair each score with its label and sort by score descending
-        List<ScoreLabel> scoreLabelList = new ArrayList<>();
-        for (int i = 0; i < confidences.length; i++) {
-            scoreLabelList.add(new ScoreLabel(confidences[i], labels[i]));
-        }
-        scoreLabelList.sort((a, b) -> Double.compare(b.score, a.score));
-
-        int tp = 0, fp = 0;
-        int numPositives = (int) Arrays.stream(labels).filter(l -> l == 1).count();
-
-        List<Map<String, Double>> prCurve = new ArrayList<>();
-
-        // Compute precision and recall at each threshold
-        for (ScoreLabel sl : scoreLabelList) {
-            if (sl.label == 1) {
-                tp++;
-            } else {
-                fp++;
-            }
-
-            double precision = (tp + fp) == 0 ? 0 : (double) tp / (tp + fp);
-            double recall = (numPositives > 0) ? (double) tp / numPositives : 0.0;
-
-            Map<String, Double> point = new HashMap<>();
-            point.put("threshold", sl.score);
-            point.put("precision", precision);
-            point.put("recall", recall);
-
-            prCurve.add(point);
-        }
-
-        return prCurve;
-    }
-
-    /**
-     * Container for a confidence score with its corresponding label.
+     * @return {confidence, precision, recall} arrays with one point per ranked test object,
+     *         empty arrays if no confidence scores were provided
      */
-    static class ScoreLabel {
-        double score;
-        int label;
-
-        ScoreLabel(double score, int label) {
-            this.score = score;
-            this.label = label;
-        }
+    public double[][] calculatePrecisionRecallCurve() {
+        if(confidences==null || IoUs==null || IoUthreshold<0) return new double[][]{new double[0], new double[0], new double[0]};
+        return new AveragePrecision(IoUs, scoresByLabel(), IoUthreshold).getPrecisionRecallCurve(IoUthreshold);
     }
 
     /**
@@ -32,6 +32,9 @@ import ij.io.FileInfo;
 import ij.plugin.Converter;
 import ij.process.*;
 
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
 /**
  * Utility methods for image processing operations used by MiC.
  * Provides histogram computation, IoU calculation, and object label normalization.
@@ -89,10 +92,11 @@ public class MicUtils {
      * @param max1 maximum expected label in imp1
      * @param imp2 second ImagePlus (test labels)
      * @param max2 maximum expected label in imp2
-     * @return ShortProcessor histogram where histo[i][j] = co-occurrence count
+     * @return IntProcessor histogram where histo[i][j] = co-occurrence count; the background/background
+     * count histo[0][0] is capped at Integer.MAX_VALUE
      */
     public static ImageProcessor histo2D(ImagePlus imp1, int max1, ImagePlus imp2, int max2){
-        ImageProcessor histo= new ShortProcessor(max1+1, max2+1);
+        ImageProcessor histo= new IntProcessor(max1+1, max2+1);
         if(imp1.getNSlices()==1){
             return histo2D(imp1.getProcessor(), imp2.getProcessor(),histo);
         }
@@ -106,19 +110,25 @@ public class MicUtils {
     
     /**
      * Accumulates 2D histogram from two single-plane images.
+     * Background/background pixels are added once per plane, saturating at Integer.MAX_VALUE.
      * 
      * @param ip1 first image processor
      * @param ip2 second image processor
-     * @param histo 2D histogram array to accumulate into (modified in-place)
+     * @param histo 2D histogram to accumulate into (modified in-place), 32-bit integer counts
      * @return updated histogram
      */
     public static ImageProcessor histo2D(ImageProcessor ip1, ImageProcessor ip2, ImageProcessor histo){
-        for(int y=0;y<ip1.getHeight();y++){
-            for(int x=0;x<ip1.getWidth();x++){
-                int val = histo.get((int)ip1.getf(x,y),(int)ip2.getf(x,y));
-                histo.set((int)ip1.getf(x,y),(int)ip2.getf(x,y),val+1);
-            }
+        int width = histo.getWidth();
+        int[] counts = (int[]) histo.getPixels();
+        int background = 0;
+        int size = ip1.getPixelCount();
+        for(int i=0;i<size;i++){
+            int a = (int)ip1.getf(i);
+            int b = (int)ip2.getf(i);
+            if((a|b)==0) background++;
+            else counts[b*width+a]++;
         }
+        counts[0] = (int)Math.min(Integer.MAX_VALUE, (long)counts[0]+background);
         return histo;
     }
 
@@ -132,7 +142,7 @@ public class MicUtils {
      * @param histoTest 1D histogram of test object sizes (pixel counts)
      * @return FloatProcessor with IoU values [0, 1]
      */
-    public static ImageProcessor computesIoUs(ImageProcessor histo2D, int[] histoTruth, int[] histoTest){
+    public static ImageProcessor computesIoUs(ImageProcessor histo2D, long[] histoTruth, long[] histoTest){
         FloatProcessor fp=new FloatProcessor(histo2D.getWidth(), histo2D.getHeight());
         for(int y=0;y<histo2D.getHeight();y++){
             for(int x=0;x<histo2D.getWidth();x++){
@@ -152,16 +162,22 @@ public class MicUtils {
      * Operates on entire image stack (all slices).
      * 
      * Example: labels [0, 1, 0, 3, 0, 5] → [0, 1, 0, 2, 0, 3]
+     * 32-bit images are renumbered from their distinct values (see {@link #distinctLabels(ImagePlus)}),
+     * so arbitrary or non-integer label IDs are supported.
      * 
      * @param imp ImagePlus to renumber (modified in-place)
      * @return maximum label value after renumbering
      */
     public static int correctObjectNumbering(ImagePlus imp){
-        StackStatistics sstats=new StackStatistics(imp);
-        int[] histo= MicUtils.histo1D(imp, (int)Math.round(sstats.max));
+        if(imp.getBitDepth()==32){
+            float[] labels=distinctLabels(imp);
+            ImageStack is=imp.getImageStack();
+            for(int z=1;z<=is.getSize();z++) renumberSparse(is.getProcessor(z),is.getProcessor(z),labels);
+            return labels.length;
+        }
         int max=-1;
 
-        int[] convert = conversionIndexes(histo);
+        int[] convert = conversionIndexes(imp);
         if(imp.getNSlices()==1){
             return correctObjectNumbering(imp.getProcessor(),convert);
         }
@@ -173,6 +189,181 @@ public class MicUtils {
         return max;
     }
 
+    /**
+     * Renumbers object labels to be contiguous starting from 1 without modifying the source image.
+     * If the labels are already contiguous the source image itself is returned;
+     * otherwise each plane is renumbered into a new processor of the same type.
+     *
+     * @param imp ImagePlus to renumber (left untouched)
+     * @param convert conversion map from {@link #conversionIndexes(ImagePlus)}
+     * @return ImagePlus with contiguous labels (imp itself when no renumbering is needed)
+     */
+    public static ImagePlus renumberObjects(ImagePlus imp, int[] convert){
+        if(maxIndex(convert)==convert.length-1) return imp;
+        ImageStack is=imp.getImageStack();
+        ImageStack renumbered=new ImageStack(imp.getWidth(),imp.getHeight());
+        for(int z=1;z<=is.getSize();z++){
+            ImageProcessor source=is.getProcessor(z);
+            ImageProcessor target=source.createProcessor(source.getWidth(),source.getHeight());
+            LabelKernels.remap(source,target,convert);
+            renumbered.addSlice(is.getSliceLabel(z),target);
+        }
+        ImagePlus result=new ImagePlus(imp.getTitle(),renumbered);
+        result.setDimensions(imp.getNChannels(),imp.getNSlices(),imp.getNFrames());
+        return result;
+    }
+
+    /**
+     * Builds the label conversion map of a whole image (all slices).
+     *
+     * @param imp ImagePlus to analyze
+     * @return conversion array where convert[oldLabel] = newLabel
+     */
+    public static int[] conversionIndexes(ImagePlus imp){
+        StackStatistics sstats=new StackStatistics(imp);
+        return conversionIndexes(histo1D(imp,(int)Math.round(sstats.max)));
+    }
+
+    /**
+     * Returns the distinct object labels of an image in ascending order (0 and NaN are background).
+     * Each slice only keeps the values where a run of identical pixels starts, and slices are processed
+     * in parallel, so memory follows the number of objects rather than the largest label.
+     *
+     * @param imp label image (any bit depth, typically 32-bit with large or non-integer IDs)
+     * @return sorted distinct non-zero labels; the renumbered label of labels[i] is i+1
+     */
+    public static float[] distinctLabels(ImagePlus imp){
+        ImageStack is=imp.getImageStack();
+        float[][] perSlice=IntStream.rangeClosed(1,is.getSize()).parallel()
+                .mapToObj(z->distinctLabels(is.getProcessor(z))).toArray(float[][]::new);
+        int n=0;
+        for(float[] labels:perSlice) n+=labels.length;
+        float[] all=new float[n];
+        n=0;
+        for(float[] labels:perSlice){
+            System.arraycopy(labels,0,all,n,labels.length);
+            n+=labels.length;
+        }
+        return sortUnique(all,n);
+    }
+
+    private static float[] distinctLabels(ImageProcessor ip){
+        float[] values=new float[64];
+        int n=0;
+        float previous=0;
+        for(int i=0;i<ip.getPixelCount();i++){
+            float value=ip.getf(i);
+            if(value==previous) continue;
+            previous=value;
+            if(value==0||Float.isNaN(value)) continue;
+            if(n==values.length) values=Arrays.copyOf(values,2*n);
+            values[n++]=value;
+        }
+        return sortUnique(values,n);
+    }
+
+    private static float[] sortUnique(float[] values, int n){
+        Arrays.sort(values,0,n);
+        int unique=0;
+        for(int i=0;i<n;i++){
+            if(unique==0||values[i]!=values[unique-1]) values[unique++]=values[i];
+        }
+        return Arrays.copyOf(values,unique);
+    }
+
+    /**
+     * Returns the indexes that sort an array in ascending order; equal values keep their original order.
+     * Values are sorted as primitive longs (value bits and index packed together), so no boxing is involved.
+     *
+     * @param keys values to sort (NaN sorts last)
+     * @return indexes such that keys[indexes[0]] &le; keys[indexes[1]] &le; ...
+     */
+    public static int[] sortedIndexes(float[] keys){
+        long[] packed=new long[keys.length];
+        for(int i=0;i<keys.length;i++){
+            int bits=Float.floatToIntBits(keys[i]);
+            // flip negative values so that the signed integer order is the float order
+            bits^=(bits>>31)&0x7fffffff;
+            packed[i]=((long)bits<<32)|i;
+        }
+        Arrays.sort(packed);
+        int[] indexes=new int[keys.length];
+        for(int i=0;i<keys.length;i++) indexes[i]=(int)packed[i];
+        return indexes;
+    }
+
+    /**
+     * Returns the contiguous label of a value from the distinct labels of its image.
+     *
+     * @param labels sorted distinct labels from {@link #distinctLabels(ImagePlus)}
+     * @param value pixel value
+     * @return renumbered label (1 to labels.length), 0 for background or unknown values
+     */
+    public static int sparseLabel(float[] labels, float value){
+        if(value==0||Float.isNaN(value)) return 0;
+        int index=Arrays.binarySearch(labels,value);
+        return index<0?0:index+1;
+    }
+
+    /**
+     * Renumbers a 32-bit label image to contiguous labels from its distinct values, without modifying the source.
+     * Memory used for the mapping is proportional to the number of objects.
+     *
+     * @param imp label image (left untouched)
+     * @return ImagePlus with labels 1 to n (imp itself when labels are already 1 to n)
+     */
+    public static ImagePlus renumberSparseLabels(ImagePlus imp){
+        return renumberSparseLabels(imp,distinctLabels(imp));
+    }
+
+    /**
+     * Renumbers a label image to contiguous labels from its already known distinct values, without modifying the source.
+     *
+     * @param imp label image (left untouched)
+     * @param labels sorted distinct labels of imp, from {@link #distinctLabels(ImagePlus)}
+     * @return ImagePlus with labels 1 to n (imp itself when labels are already 1 to n)
+     */
+    public static ImagePlus renumberSparseLabels(ImagePlus imp, float[] labels){
+        boolean contiguous=true;
+        for(int i=0;i<labels.length&&contiguous;i++) contiguous=labels[i]==i+1;
+        if(contiguous) return imp;
+        ImageStack is=imp.getImageStack();
+        ImageStack renumbered=new ImageStack(imp.getWidth(),imp.getHeight());
+        for(int z=1;z<=is.getSize();z++){
+            ImageProcessor target=new FloatProcessor(imp.getWidth(),imp.getHeight());
+            renumberSparse(is.getProcessor(z),target,labels);
+            renumbered.addSlice(is.getSliceLabel(z),target);
+        }
+        ImagePlus result=new ImagePlus(imp.getTitle(),renumbered);
+        result.setDimensions(imp.getNChannels(),imp.getNSlices(),imp.getNFrames());
+        return result;
+    }
+
+    private static void renumberSparse(ImageProcessor source, ImageProcessor target, float[] labels){
+        float previous=0;
+        int label=0;
+        for(int i=0;i<source.getPixelCount();i++){
+            float value=source.getf(i);
+            if(value!=previous){
+                previous=value;
+                label=sparseLabel(labels,value);
+            }
+            target.setf(i,label);
+        }
+    }
+
+    /**
+     * Returns the largest new label of a conversion map, i.e. the number of objects.
+     *
+     * @param convert conversion array where convert[oldLabel] = newLabel
+     * @return maximum label value after renumbering
+     */
+    public static int maxIndex(int[] convert){
+        int max=0;
+        for(int value:convert) max=Math.max(max,value);
+        return max;
+    }
+
     /**
      * Applies label renumbering mapping to a single plane.
      * 
@@ -181,16 +372,7 @@ public class MicUtils {
      * @return maximum label value in the processed plane
      */
     public static int correctObjectNumbering(ImageProcessor ip, int[] convert){
-        int max=-1;
-        for(int y=0;y<ip.getHeight();y++){
-            for(int x=0;x<ip.getWidth();x++) {
-                int val=(int)ip.getf(x,y);
-                int val2=convert[val];
-                max=Math.max(max,val2);
-                ip.setf(x,y,val2);
-            }
-        }
-        return max;
+        return LabelKernels.remap(ip,ip,convert);
     }
 
     /**
@@ -212,6 +394,57 @@ public class MicUtils {
         return convert;
     }
 
+    /**
+     * Builds the pixel-level superposition of two label planes in a single pass.
+     * Each pixel receives the MiC LUT index of its category: overlap (yellow),
+     * test only (red) or truth only (green); background stays 0.
+     * Foregrounds are packed as bitsets ({@link PackedMask}), so no display state or intermediate RGB image is involved
+     * and background regions are skipped 64 pixels at a time.
+     *
+     * @param truth truth labeled plane
+     * @param test test labeled plane (same size as truth)
+     * @return ByteProcessor with color indices ready for the MiC LUT
+     */
+    public static ByteProcessor createPixelOverlayPlane(ImageProcessor truth, ImageProcessor test){
+        return PackedMask.overlay(PackedMask.of(truth), PackedMask.of(test));
+    }
+
+    /**
+     * Counts the objects of a label image without modifying it, as the number of distinct non-zero labels.
+     *
+     * @param imp label image
+     * @return number of objects
+     */
+    public static int countObjects(ImagePlus imp){
+        if(imp.getBitDepth()==32) return distinctLabels(imp).length;
+        return maxIndex(conversionIndexes(imp));
+    }
+
+    /**
+     * Parses comma, semicolon or space separated values typed in a dialog;
+     * invalid or negative values are logged and skipped.
+     *
+     * @param text values typed in the dialog
+     * @param name name of a value, used in the log
+     * @return values in the typed order, null if none is valid
+     */
+    public static double[] parseNonNegativeValues(String text, String name){
+        String[] fields = text.trim().split("[,;\\s]+");
+        double[] values = new double[fields.length];
+        int n = 0;
+        for (String field : fields) {
+            if (field.isEmpty()) continue;
+            try {
+                double value = Double.parseDouble(field);
+                if (value >= 0) values[n++] = value;
+                else IJ.log("negative " + name + " ignored: " + field);
+            } catch (NumberFormatException e) {
+                IJ.log("invalid " + name + " ignored: " + field);
+            }
+        }
+        return n == 0 ? null : Arrays.copyOf(values, n);
+    }
+
     /**
      * Corrects 16-bit signed image format if necessary.
      * Converts and back-converts to ensure proper interpretation.
@@ -0,0 +1,277 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+
+/**
+ * Per-object description of a comparison: size, bounding box and centroid of every truth and test object,
+ * its best-IoU partner in the other mask and its category at an IoU threshold.
+ * <p>
+ * Everything comes from the object statistics and the IoU matrix of an {@link IoUAnalysis}: no pixel is read.
+ * Categories of truth objects are TP (best IoU above the threshold, with a partner whose best partner is this
+ * object), fused (the best test partner overlaps several truth objects), split (several test objects overlap the
+ * object) or FN; test objects are TP, fused (overlaps several truth objects), split (its best truth partner
+ * overlaps several test objects) or FP.
+ * Objects filtered by size or distance to border are "not analyzed".
+ * </p>
+ */
+public class ObjectPairStatistics {
+    public static final String TP = "TP";
+    public static final String FN = "FN";
+    public static final String FP = "FP";
+    public static final String SPLIT = "split";
+    public static final String FUSED = "fused";
+    public static final String NOT_ANALYZED = "not analyzed";
+
+    private final IoUAnalysis analysis;
+    private final double threshold;
+    private final Side truth;
+    private final Side test;
+
+    private ObjectPairStatistics(IoUAnalysis analysis, double threshold, Side truth, Side test) {
+        this.analysis = analysis;
+        this.threshold = threshold;
+        this.truth = truth;
+        this.test = test;
+    }
+
+    /**
+     * Finds the best partner and the number of overlapping objects of every truth and test object
+     * in one pass over the IoU matrix, and classifies the objects.
+     *
+     * @param analysis IoU analysis with its object statistics
+     * @param threshold IoU threshold for TP (at least 0.5 so that TP partners are unique)
+     * @return per-object statistics
+     */
+    public static ObjectPairStatistics compute(IoUAnalysis analysis, double threshold) {
+        ImageProcessor iouMatrix = analysis.getIoU();
+        float[] iou = (float[]) iouMatrix.getPixels();
+        int width = iouMatrix.getWidth();
+        Side truth = new Side(analysis.getMaxTruth());
+        Side test = new Side(analysis.getMaxTest());
+        for (int x = 1; x <= truth.size; x++) truth.valid[x] = iou[x] >= 0;
+        for (int y = 1; y <= test.size; y++) test.valid[y] = iou[y * width] >= 0;
+
+        for (int y = 1; y <= test.size; y++) {
+            if (!test.valid[y]) continue;
+            int offset = y * width;
+            for (int x = 1; x <= truth.size; x++) {
+                float value = iou[offset + x];
+                if (value <= 0 || !truth.valid[x]) continue;
+                truth.add(x, y, value);
+                test.add(y, x, value);
+            }
+        }
+        truth.classify(test, threshold, false);
+        test.classify(truth, threshold, true);
+        return new ObjectPairStatistics(analysis, threshold, truth, test);
+    }
+
+    /**
+     * Returns the IoU threshold used for the categories.
+     *
+     * @return IoU threshold
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns the test object of highest IoU with a truth object.
+     *
+     * @param label truth label (1 to maxTruth)
+     * @return test label, 0 if no test object overlaps it
+     */
+    public int getTruthPartner(int label) {
+        return truth.partner[label];
+    }
+
+    /**
+     * Returns the best IoU of a truth object.
+     *
+     * @param label truth label (1 to maxTruth)
+     * @return IoU with its partner, 0 if none
+     */
+    public double getTruthBestIoU(int label) {
+        return truth.bestIoU[label];
+    }
+
+    /**
+     * Returns the category of a truth object.
+     *
+     * @param label truth label (1 to maxTruth)
+     * @return one of {@link #TP}, {@link #FUSED}, {@link #SPLIT}, {@link #FN}, {@link #NOT_ANALYZED}
+     */
+    public String getTruthCategory(int label) {
+        return truth.category[label];
+    }
+
+    /**
+     * Returns the truth object of highest IoU with a test object.
+     *
+     * @param label test label (1 to maxTest)
+     * @return truth label, 0 if no truth object overlaps it
+     */
+    public int getTestPartner(int label) {
+        return test.partner[label];
+    }
+
+    /**
+     * Returns the best IoU of a test object.
+     *
+     * @param label test label (1 to maxTest)
+     * @return IoU with its partner, 0 if none
+     */
+    public double getTestBestIoU(int label) {
+        return test.bestIoU[label];
+    }
+
+    /**
+     * Returns the category of a test object.
+     *
+     * @param label test label (1 to maxTest)
+     * @return one of {@link #TP}, {@link #FUSED}, {@link #SPLIT}, {@link #FP}, {@link #NOT_ANALYZED}
+     */
+    public String getTestCategory(int label) {
+        return test.category[label];
+    }
+
+    /**
+     * Appends one row per truth object then one row per test object to a table.
+     * Columns are looked up once and rows written by index, so large object counts stay cheap.
+     * Labels are the original labels of the images. Z columns are only written for 3D volumes.
+     *
+     * @param rt table to append to
+     * @param image image name
+     * @param channel channel index
+     * @param frame frame index
+     * @param slice slice index (0 for volumes)
+     */
+    public void appendTo(ResultsTable rt, String image, int channel, int frame, int slice) {
+        boolean volume = analysis.getTruthStatistics().getDepth() > 1;
+        String[] headings = volume
+                ? new String[]{"channel", "frame", "slice", "label", "area", "bounds x", "bounds y", "bounds z",
+                        "bounds width", "bounds height", "bounds depth", "centroid x", "centroid y", "centroid z",
+                        "best IoU", "partner label"}
+                : new String[]{"channel", "frame", "slice", "label", "area", "bounds x", "bounds y",
+                        "bounds width", "bounds height", "centroid x", "centroid y", "best IoU", "partner label"};
+        // image and mask first, category last
+        column(rt, "image");
+        column(rt, "mask");
+        int[] columns = new int[headings.length];
+        for (int c = 0; c < headings.length; c++) columns[c] = column(rt, headings[c]);
+        column(rt, "category");
+        appendSide(rt, columns, volume, image, "truth", channel, frame, slice, truth, analysis.getTruthStatistics(),
+                analysis.getTruthObjectIds(), analysis.getTestObjectIds());
+        appendSide(rt, columns, volume, image, "test", channel, frame, slice, test, analysis.getTestStatistics(),
+                analysis.getTestObjectIds(), analysis.getTruthObjectIds());
+    }
+
+    private static void appendSide(ResultsTable rt, int[] columns, boolean volume, String image, String mask,
+                                   int channel, int frame, int slice, Side side, ObjectStatistics statistics,
+                                   float[] ids, float[] partnerIds) {
+        for (int label = 1; label <= side.size; label++) {
+            int row = rt.size();
+            double[] values = volume
+                    ? new double[]{channel, frame, slice, ids[label], statistics.getCount(label),
+                            statistics.getMinX(label), statistics.getMinY(label), statistics.getMinZ(label),
+                            statistics.getMaxX(label) - statistics.getMinX(label) + 1,
+                            statistics.getMaxY(label) - statistics.getMinY(label) + 1,
+                            statistics.getMaxZ(label) - statistics.getMinZ(label) + 1,
+                            statistics.getCentroidX(label), statistics.getCentroidY(label), statistics.getCentroidZ(label),
+                            side.bestIoU[label], partnerIds[side.partner[label]]}
+                    : new double[]{channel, frame, slice, ids[label], statistics.getCount(label),
+                            statistics.getMinX(label), statistics.getMinY(label),
+                            statistics.getMaxX(label) - statistics.getMinX(label) + 1,
+                            statistics.getMaxY(label) - statistics.getMinY(label) + 1,
+                            statistics.getCentroidX(label), statistics.getCentroidY(label),
+                            side.bestIoU[label], partnerIds[side.partner[label]]};
+            // the first value written at row == size adds the row
+            for (int c = 0; c < columns.length; c++) rt.setValue(columns[c], row, values[c]);
+            rt.setValue("image", row, image);
+            rt.setValue("mask", row, mask);
+            rt.setValue("category", row, side.category[label]);
+        }
+    }
+
+    private static int column(ResultsTable rt, String heading) {
+        int index = rt.getColumnIndex(heading);
+        return index != ResultsTable.COLUMN_NOT_FOUND ? index : rt.getFreeColumn(heading);
+    }
+
+    /**
+     * Best partner, overlap count and category of the objects of one mask.
+     */
+    private static class Side {
+        final int size;
+        final boolean[] valid;
+        final int[] partner;
+        final float[] bestIoU;
+        final int[] overlaps;
+        final String[] category;
+
+        Side(int size) {
+            this.size = size;
+            valid = new boolean[size + 1];
+            partner = new int[size + 1];
+            bestIoU = new float[size + 1];
+            overlaps = new int[size + 1];
+            category = new String[size + 1];
+        }
+
+        void add(int label, int other, float iou) {
+            overlaps[label]++;
+            if (iou > bestIoU[label]) {
+                bestIoU[label] = iou;
+                partner[label] = other;
+            }
+        }
+
+        /**
+         * Sets the category of each object from its best IoU and the overlap counts of both masks.
+         *
+         * @param other objects of the other mask
+         * @param threshold IoU threshold for TP
+         * @param isTest true for test objects (FP when missed), false for truth objects (FN when missed)
+         */
+        void classify(Side other, double threshold, boolean isTest) {
+            for (int label = 1; label <= size; label++) {
+                if (!valid[label]) category[label] = NOT_ANALYZED;
+                else if (bestIoU[label] >= threshold && other.partner[partner[label]] == label) category[label] = TP;
+                else if (overlaps[label] == 0) category[label] = isTest ? FP : FN;
+                else {
+                    boolean selfMultiple = overlaps[label] > 1;
+                    boolean partnerMultiple = other.overlaps[partner[label]] > 1;
+                    boolean fused = isTest ? selfMultiple : partnerMultiple;
+                    boolean split = isTest ? partnerMultiple : selfMultiple;
+                    category[label] = fused ? FUSED : split ? SPLIT : (isTest ? FP : FN);
+                }
+            }
+        }
+    }
+}
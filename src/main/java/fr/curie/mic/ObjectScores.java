@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Confidence scores of test objects read from a table with one object label and one score per line.
+ * <p>
+ * Columns are separated by commas, semicolons or tabs. If a header names a "label" and a "score" column
+ * they are used, otherwise the first two columns are. Lines that cannot be parsed are skipped.
+ * Labels are those of the test image before renumbering; they are kept sorted for binary search.
+ * </p>
+ */
+public class ObjectScores {
+    private final float[] labels;
+    private final double[] scores;
+
+    private ObjectScores(float[] labels, double[] scores) {
+        this.labels = labels;
+        this.scores = scores;
+    }
+
+    /**
+     * Reads a score table.
+     *
+     * @param table CSV or tab-separated file
+     * @return scores by label
+     * @throws IOException if the file cannot be read, contains no score or gives a label twice
+     */
+    public static ObjectScores read(File table) throws IOException {
+        float[] labels = new float[256];
+        double[] scores = new double[256];
+        int n = 0;
+        int labelColumn = 0;
+        int scoreColumn = 1;
+        try (BufferedReader reader = Files.newBufferedReader(table.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            boolean first = true;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s*[,;\\t]\\s*");
+                if (first) {
+                    first = false;
+                    int labelIndex = indexOf(fields, "label");
+                    int scoreIndex = indexOf(fields, "score");
+                    if (labelIndex >= 0 && scoreIndex >= 0) {
+                        labelColumn = labelIndex;
+                        scoreColumn = scoreIndex;
+                        continue;
+                    }
+                }
+                if (fields.length <= Math.max(labelColumn, scoreColumn)) continue;
+                try {
+                    float label = Float.parseFloat(fields[labelColumn]);
+                    double score = Double.parseDouble(fields[scoreColumn]);
+                    if (n == labels.length) {
+                        labels = Arrays.copyOf(labels, 2 * n);
+                        scores = Arrays.copyOf(scores, 2 * n);
+                    }
+                    labels[n] = label;
+                    scores[n] = score;
+                    n++;
+                } catch (NumberFormatException e) {
+                    // header or comment line
+                }
+            }
+        }
+        if (n == 0) throw new IOException("No label/score pair found in " + table);
+        int[] order = MicUtils.sortedIndexes(Arrays.copyOf(labels, n));
+        float[] sortedLabels = new float[n];
+        double[] sortedScores = new double[n];
+        for (int i = 0; i < n; i++) {
+            sortedLabels[i] = labels[order[i]];
+            sortedScores[i] = scores[order[i]];
+            if (i > 0 && sortedLabels[i] == sortedLabels[i - 1]) throw new IOException("Label " + sortedLabels[i] + " has several scores in " + table);
+        }
+        return new ObjectScores(sortedLabels, sortedScores);
+    }
+
+    private static int indexOf(String[] fields, String name) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].replace("\"", "").trim().equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of scored labels.
+     *
+     * @return number of labels in the table
+     */
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     * Returns the score of a label.
+     *
+     * @param label original label of the test object
+     * @return its score, NaN if the table has none
+     */
+    public double getScore(float label) {
+        int index = Arrays.binarySearch(labels, label);
+        return index < 0 ? Double.NaN : scores[index];
+    }
+
+    /**
+     * Returns the scores of renumbered objects.
+     *
+     * @param objectIds original label of each renumbered object (index 0 is the background)
+     * @return scores indexed by renumbered label, NaN for the background and for unscored objects
+     */
+    public double[] forObjects(float[] objectIds) {
+        double[] result = new double[objectIds.length];
+        result[0] = Double.NaN;
+        for (int i = 1; i < objectIds.length; i++) result[i] = getScore(objectIds[i]);
+        return result;
+    }
+}
@@ -0,0 +1,448 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+/**
+ * Per-label statistics of a labeled image (2D or 3D) gathered in a single pass:
+ * pixel count, bounding box (including Z extent), centroid and, optionally, the mean of a value image
+ * (e.g. detection scores) over each object.
+ * <p>
+ * Index 0 holds the background pixel count, so {@link #getCounts()} can be used
+ * wherever a 1D histogram of the labels is expected. Bounding boxes and centroids
+ * are only defined for labels with at least one pixel.
+ * </p>
+ */
+public class ObjectStatistics {
+    private int width;
+    private int height;
+    private int depth;
+    private final long[] counts;
+    private final int[] minX;
+    private final int[] maxX;
+    private final int[] minY;
+    private final int[] maxY;
+    private final int[] minZ;
+    private final int[] maxZ;
+    private final long[] sumX;
+    private final long[] sumY;
+    private final long[] sumZ;
+    private double[] valueSums;
+
+    ObjectStatistics(int width, int height, int depth, int maxLabel) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        int n = maxLabel + 1;
+        counts = new long[n];
+        minX = new int[n];
+        maxX = new int[n];
+        minY = new int[n];
+        maxY = new int[n];
+        minZ = new int[n];
+        maxZ = new int[n];
+        sumX = new long[n];
+        sumY = new long[n];
+        sumZ = new long[n];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(minZ, Integer.MAX_VALUE);
+        Arrays.fill(maxX, -1);
+        Arrays.fill(maxY, -1);
+        Arrays.fill(maxZ, -1);
+    }
+
+    /**
+     * Gathers the statistics of all labels of an image in one pass over its pixels.
+     *
+     * @param labels labeled image (all slices are used)
+     * @param maxLabel highest label value; pixels above it are reported and ignored
+     * @return statistics indexed by label
+     */
+    public static ObjectStatistics compute(ImagePlus labels, int maxLabel) {
+        return compute(labels, maxLabel, null);
+    }
+
+    /**
+     * Gathers the statistics of all labels of an image in one pass over its pixels,
+     * also summing the pixels of a value image over each label.
+     *
+     * @param labels labeled image (all slices are used)
+     * @param maxLabel highest label value; pixels above it are reported and ignored
+     * @param values image with the same dimensions as labels, or null
+     * @return statistics indexed by label
+     */
+    public static ObjectStatistics compute(ImagePlus labels, int maxLabel, ImagePlus values) {
+        ImageStack stack = labels.getImageStack();
+        ImageStack valueStack = values == null ? null : values.getImageStack();
+        if (valueStack != null && (valueStack.getSize() != stack.getSize() || values.getWidth() != labels.getWidth()
+                || values.getHeight() != labels.getHeight())) {
+            throw new IllegalArgumentException("Value image must have the same dimensions as the labels");
+        }
+        ObjectStatistics stats = new ObjectStatistics(labels.getWidth(), labels.getHeight(), stack.getSize(), maxLabel);
+        if (valueStack != null) stats.valueSums = new double[maxLabel + 1];
+        int incorrect = 0;
+        for (int z = 0; z < stack.getSize(); z++) {
+            incorrect += stats.add(stack.getProcessor(z + 1), valueStack == null ? null : valueStack.getProcessor(z + 1), z);
+        }
+        if (incorrect > 0) IJ.log(incorrect + " pixels were incorrects!");
+        return stats;
+    }
+
+    private int add(ImageProcessor ip, ImageProcessor values, int z) {
+        int incorrect = 0;
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                int label = (int) ip.getf(i);
+                if (label < 0 || label >= counts.length) {
+                    incorrect++;
+                    continue;
+                }
+                counts[label]++;
+                if (label == 0) continue;
+                if (x < minX[label]) minX[label] = x;
+                if (x > maxX[label]) maxX[label] = x;
+                if (y < minY[label]) minY[label] = y;
+                if (y > maxY[label]) maxY[label] = y;
+                if (z < minZ[label]) minZ[label] = z;
+                if (z > maxZ[label]) maxZ[label] = z;
+                sumX[label] += x;
+                sumY[label] += y;
+                sumZ[label] += z;
+                if (values != null) valueSums[label] += values.getf(i);
+            }
+        }
+        return incorrect;
+    }
+
+    /**
+     * Accumulates the labels of one chunk of a larger volume.
+     *
+     * @param labels chunk labels, x fastest
+     * @param x0 x of the chunk origin in the volume
+     * @param y0 y of the chunk origin in the volume
+     * @param z0 z of the chunk origin in the volume
+     * @param w chunk width
+     * @param h chunk height
+     * @param d chunk depth
+     * @return number of labels above the maximum label, which are ignored
+     */
+    int add(int[] labels, int x0, int y0, int z0, int w, int h, int d) {
+        int incorrect = 0;
+        int i = 0;
+        for (int z = z0; z < z0 + d; z++) {
+            for (int y = y0; y < y0 + h; y++) {
+                for (int x = x0; x < x0 + w; x++, i++) {
+                    int label = labels[i];
+                    if (label < 0 || label >= counts.length) {
+                        incorrect++;
+                        continue;
+                    }
+                    counts[label]++;
+                    if (label == 0) continue;
+                    if (x < minX[label]) minX[label] = x;
+                    if (x > maxX[label]) maxX[label] = x;
+                    if (y < minY[label]) minY[label] = y;
+                    if (y > maxY[label]) maxY[label] = y;
+                    if (z < minZ[label]) minZ[label] = z;
+                    if (z > maxZ[label]) maxZ[label] = z;
+                    sumX[label] += x;
+                    sumY[label] += y;
+                    sumZ[label] += z;
+                }
+            }
+        }
+        return incorrect;
+    }
+
+    /**
+     * Adds the statistics gathered by another worker on a different part of the same volume.
+     *
+     * @param other statistics with the same maximum label
+     */
+    void merge(ObjectStatistics other) {
+        for (int label = 0; label < counts.length; label++) {
+            if (other.counts[label] == 0) continue;
+            counts[label] += other.counts[label];
+            minX[label] = Math.min(minX[label], other.minX[label]);
+            maxX[label] = Math.max(maxX[label], other.maxX[label]);
+            minY[label] = Math.min(minY[label], other.minY[label]);
+            maxY[label] = Math.max(maxY[label], other.maxY[label]);
+            minZ[label] = Math.min(minZ[label], other.minZ[label]);
+            maxZ[label] = Math.max(maxZ[label], other.maxZ[label]);
+            sumX[label] += other.sumX[label];
+            sumY[label] += other.sumY[label];
+            sumZ[label] += other.sumZ[label];
+        }
+    }
+
+    /**
+     * Builds the statistics of the renumbered labels. The background count is recomputed
+     * from the volume size, so voxels never visited (skipped empty chunks) are counted as background.
+     *
+     * @param convert conversion from original to new labels (0 for absent labels)
+     * @param newMaxLabel highest new label
+     * @return statistics indexed by the new labels
+     */
+    ObjectStatistics renumber(int[] convert, int newMaxLabel) {
+        ObjectStatistics result = new ObjectStatistics(width, height, depth, newMaxLabel);
+        long foreground = 0;
+        for (int label = 1; label < counts.length; label++) {
+            int target = convert[label];
+            if (target == 0 || counts[label] == 0) continue;
+            result.counts[target] = counts[label];
+            result.minX[target] = minX[label];
+            result.maxX[target] = maxX[label];
+            result.minY[target] = minY[label];
+            result.maxY[target] = maxY[label];
+            result.minZ[target] = minZ[label];
+            result.maxZ[target] = maxZ[label];
+            result.sumX[target] = sumX[label];
+            result.sumY[target] = sumY[label];
+            result.sumZ[target] = sumZ[label];
+            foreground += counts[label];
+        }
+        long background = (long) width * height * depth - foreground;
+        result.counts[0] = background;
+        return result;
+    }
+
+    /**
+     * Moves the statistics gathered on a cropped image to the coordinates of the full image, so that
+     * positions and border tests refer to the full image. Object counts are unchanged and the background
+     * count becomes the rest of the evaluated pixels.
+     *
+     * @param dx x of the crop origin in the full image
+     * @param dy y of the crop origin in the full image
+     * @param dz z of the crop origin in the full image
+     * @param width full image width
+     * @param height full image height
+     * @param depth full image depth
+     * @param pixelCount number of pixels evaluated in the full image
+     */
+    void translate(int dx, int dy, int dz, int width, int height, int depth, long pixelCount) {
+        long foreground = 0;
+        for (int label = 1; label < counts.length; label++) {
+            if (counts[label] == 0) continue;
+            minX[label] += dx;
+            maxX[label] += dx;
+            minY[label] += dy;
+            maxY[label] += dy;
+            minZ[label] += dz;
+            maxZ[label] += dz;
+            sumX[label] += dx * counts[label];
+            sumY[label] += dy * counts[label];
+            sumZ[label] += dz * counts[label];
+            foreground += counts[label];
+        }
+        counts[0] = pixelCount - foreground;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+    }
+
+    /**
+     * Returns the pixel count of every label, background included at index 0.
+     *
+     * @return counts indexed by label (not a copy)
+     */
+    public long[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * Returns the highest label covered by these statistics.
+     *
+     * @return maximum label
+     */
+    public int getMaxLabel() {
+        return counts.length - 1;
+    }
+
+    /**
+     * Returns the number of pixels (voxels) of a label.
+     *
+     * @param label object label
+     * @return pixel count
+     */
+    public long getCount(int label) {
+        return counts[label];
+    }
+
+    /**
+     * Returns the leftmost column containing the label.
+     *
+     * @param label object label
+     * @return minimum x
+     */
+    public int getMinX(int label) {
+        return minX[label];
+    }
+
+    /**
+     * Returns the rightmost column containing the label.
+     *
+     * @param label object label
+     * @return maximum x
+     */
+    public int getMaxX(int label) {
+        return maxX[label];
+    }
+
+    /**
+     * Returns the top row containing the label.
+     *
+     * @param label object label
+     * @return minimum y
+     */
+    public int getMinY(int label) {
+        return minY[label];
+    }
+
+    /**
+     * Returns the bottom row containing the label.
+     *
+     * @param label object label
+     * @return maximum y
+     */
+    public int getMaxY(int label) {
+        return maxY[label];
+    }
+
+    /**
+     * Returns the first slice (0-based) containing the label.
+     *
+     * @param label object label
+     * @return minimum z
+     */
+    public int getMinZ(int label) {
+        return minZ[label];
+    }
+
+    /**
+     * Returns the last slice (0-based) containing the label.
+     *
+     * @param label object label
+     * @return maximum z
+     */
+    public int getMaxZ(int label) {
+        return maxZ[label];
+    }
+
+    /**
+     * Returns the mean x of the label's pixels.
+     *
+     * @param label object label
+     * @return centroid x, NaN for an empty label
+     */
+    public double getCentroidX(int label) {
+        return counts[label] > 0 ? (double) sumX[label] / counts[label] : Double.NaN;
+    }
+
+    /**
+     * Returns the mean y of the label's pixels.
+     *
+     * @param label object label
+     * @return centroid y, NaN for an empty label
+     */
+    public double getCentroidY(int label) {
+        return counts[label] > 0 ? (double) sumY[label] / counts[label] : Double.NaN;
+    }
+
+    /**
+     * Returns the mean slice (0-based) of the label's voxels.
+     *
+     * @param label object label
+     * @return centroid z, NaN for an empty label
+     */
+    public double getCentroidZ(int label) {
+        return counts[label] > 0 ? (double) sumZ[label] / counts[label] : Double.NaN;
+    }
+
+    /**
+     * Returns the mean of the value image over an object.
+     *
+     * @param label object label
+     * @return mean value, NaN if no value image was given or the label is empty
+     */
+    public double getMeanValue(int label) {
+        if (valueSums == null || counts[label] == 0) return Double.NaN;
+        return valueSums[label] / counts[label];
+    }
+
+    /**
+     * Returns the mean of the value image over every label.
+     *
+     * @return mean values indexed by label (index 0 is the background), null if no value image was given
+     */
+    public double[] getMeanValues() {
+        if (valueSums == null) return null;
+        double[] means = new double[counts.length];
+        for (int label = 0; label < counts.length; label++) means[label] = getMeanValue(label);
+        return means;
+    }
+
+    /**
+     * Tests whether the bounding box of an object reaches the left, right, top or bottom border of the image.
+     * The first and last slices are not considered as borders.
+     *
+     * @param label object label
+     * @return true if the object has pixels on an horizontal or vertical border
+     */
+    public boolean touchesBorder(int label) {
+        if (counts[label] == 0) return false;
+        return minX[label] == 0 || minY[label] == 0 || maxX[label] == width - 1 || maxY[label] == height - 1;
+    }
+
+    /**
+     * Returns the distance from the object's centroid to the closest horizontal or vertical image border.
+     * Pixel centers are at x + 0.5, as for the ROI centers used in the correspondence table.
+     *
+     * @param label object label
+     * @return distance in pixels, NaN for an empty label
+     */
+    public double getCentroidDistanceToBorder(int label) {
+        double cx = getCentroidX(label) + 0.5;
+        double cy = getCentroidY(label) + 0.5;
+        return Math.min(Math.min(cx, width - cx), Math.min(cy, height - cy));
+    }
+
+    /**
+     * Returns the number of slices of the analyzed image.
+     *
+     * @return depth of the image
+     */
+    public int getDepth() {
+        return depth;
+    }
+}
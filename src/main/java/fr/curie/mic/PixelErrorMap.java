@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * Summed-area tables of the pixel-level TP, FP and FN maps of a comparison.
+ * <p>
+ * The maps are read from the pixel overlay of the composite (TP, test only and truth only color indices),
+ * all slices of a stack being summed on the same (x, y) grid. Once built, the TP, FP and FN counts of any
+ * rectangle, hence its pixel-level precision and recall, are obtained in constant time from four
+ * table entries, and metric heatmaps at any tile size are computed without reading the images again.
+ * </p>
+ */
+public class PixelErrorMap {
+    private final int width;
+    private final int height;
+    // (width + 1) x (height + 1) summed-area tables: entry (x, y) counts the pixels of [0, x) x [0, y)
+    private final int[] tp;
+    private final int[] fp;
+    private final int[] fn;
+
+    private PixelErrorMap(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int size = (width + 1) * (height + 1);
+        tp = new int[size];
+        fp = new int[size];
+        fn = new int[size];
+    }
+
+    /**
+     * Builds the summed-area tables of two label images: any non-zero pixel is foreground.
+     *
+     * @param truth truth labels
+     * @param test test labels with the same dimensions
+     * @return summed-area tables of the TP, FP and FN pixels
+     */
+    public static PixelErrorMap of(ImagePlus truth, ImagePlus test) {
+        ImageStack truthStack = truth.getImageStack();
+        ImageStack testStack = test.getImageStack();
+        if (truthStack.getSize() != testStack.getSize() || truth.getWidth() != test.getWidth() || truth.getHeight() != test.getHeight()) {
+            throw new IllegalArgumentException("Truth and test images must have the same dimensions");
+        }
+        if ((long) truth.getWidth() * truth.getHeight() * truthStack.getSize() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many pixels for 32-bit summed-area tables");
+        }
+        PixelErrorMap map = new PixelErrorMap(truth.getWidth(), truth.getHeight());
+        for (int z = 1; z <= truthStack.getSize(); z++) {
+            map.count(MicUtils.createPixelOverlayPlane(truthStack.getProcessor(z), testStack.getProcessor(z)));
+        }
+        map.integrate();
+        return map;
+    }
+
+    /**
+     * Adds the categories of one overlay plane at (x + 1, y + 1) of the tables.
+     */
+    private void count(ImageProcessor overlay) {
+        byte[] pixels = (byte[]) overlay.getPixels();
+        int stride = width + 1;
+        for (int y = 0; y < height; y++) {
+            int source = y * width;
+            int target = (y + 1) * stride + 1;
+            for (int x = 0; x < width; x++) {
+                switch (pixels[source + x]) {
+                    case IoUAnalysis.TP_COLOR_INDEX: tp[target + x]++; break;
+                    case IoUAnalysis.TP_OVER_COLOR_INDEX: fp[target + x]++; break;
+                    case IoUAnalysis.TP_UNDER_COLOR_INDEX: fn[target + x]++; break;
+                    default: break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Turns the per-pixel counts into summed-area tables: row prefix sums, then the row above is added.
+     */
+    private void integrate() {
+        int stride = width + 1;
+        for (int y = 1; y <= height; y++) {
+            int row = y * stride;
+            int above = row - stride;
+            int rowTP = 0;
+            int rowFP = 0;
+            int rowFN = 0;
+            for (int x = 1; x <= width; x++) {
+                rowTP += tp[row + x];
+                rowFP += fp[row + x];
+                rowFN += fn[row + x];
+                tp[row + x] = rowTP + tp[above + x];
+                fp[row + x] = rowFP + fp[above + x];
+                fn[row + x] = rowFN + fn[above + x];
+            }
+        }
+    }
+
+    private long sum(int[] table, int x0, int y0, int x1, int y1) {
+        int stride = width + 1;
+        return (long) table[y1 * stride + x1] - table[y0 * stride + x1] - table[y1 * stride + x0] + table[y0 * stride + x0];
+    }
+
+    /**
+     * Returns the pixel-level TP, FP and FN counts of a rectangle in constant time.
+     * The rectangle is clipped to the image.
+     *
+     * @param region rectangle in pixels
+     * @return pixel-level metrics of the rectangle (summed over all slices)
+     */
+    public Metrics getMetrics(Rectangle region) {
+        return getMetrics(region.x, region.y, region.width, region.height);
+    }
+
+    /**
+     * Returns the pixel-level TP, FP and FN counts of a rectangle in constant time.
+     * The rectangle is clipped to the image.
+     *
+     * @param x left column
+     * @param y top row
+     * @param w width
+     * @param h height
+     * @return pixel-level metrics of the rectangle (summed over all slices)
+     */
+    public Metrics getMetrics(int x, int y, int w, int h) {
+        int x0 = Math.max(0, Math.min(width, x));
+        int y0 = Math.max(0, Math.min(height, y));
+        int x1 = Math.max(x0, Math.min(width, x + w));
+        int y1 = Math.max(y0, Math.min(height, y + h));
+        return new Metrics(sum(tp, x0, y0, x1, y1), sum(fp, x0, y0, x1, y1), sum(fn, x0, y0, x1, y1));
+    }
+
+    /**
+     * Returns the pixel-level precision of a rectangle in constant time.
+     *
+     * @param region rectangle in pixels
+     * @return precision, NaN if the rectangle has no test pixel
+     */
+    public double getPrecision(Rectangle region) {
+        return getMetrics(region).getPrecision();
+    }
+
+    /**
+     * Returns the pixel-level recall of a rectangle in constant time.
+     *
+     * @param region rectangle in pixels
+     * @return recall, NaN if the rectangle has no truth pixel
+     */
+    public double getRecall(Rectangle region) {
+        return getMetrics(region).getRecall();
+    }
+
+    /**
+     * Computes downsampled heatmaps of the pixel-level metrics, one value per tile.
+     * Tiles on the right and bottom borders may be smaller. Undefined values are NaN.
+     *
+     * @param tileSize tile size in pixels
+     * @return stack of three slices: precision, recall and F-measure
+     */
+    public ImageStack heatmap(int tileSize) {
+        if (tileSize < 1) throw new IllegalArgumentException("Tile size must be positive");
+        int nx = (width + tileSize - 1) / tileSize;
+        int ny = (height + tileSize - 1) / tileSize;
+        float[] precision = new float[nx * ny];
+        float[] recall = new float[nx * ny];
+        float[] f1 = new float[nx * ny];
+        for (int ty = 0; ty < ny; ty++) {
+            for (int tx = 0; tx < nx; tx++) {
+                Metrics metrics = getMetrics(tx * tileSize, ty * tileSize, tileSize, tileSize);
+                int i = ty * nx + tx;
+                precision[i] = (float) metrics.getPrecision();
+                recall[i] = (float) metrics.getRecall();
+                f1[i] = (float) metrics.getF1measure();
+            }
+        }
+        ImageStack stack = new ImageStack(nx, ny);
+        stack.addSlice("precision", new FloatProcessor(nx, ny, precision));
+        stack.addSlice("recall", new FloatProcessor(nx, ny, recall));
+        stack.addSlice("F-measure", new FloatProcessor(nx, ny, f1));
+        return stack;
+    }
+
+    /**
+     * Returns the image width.
+     *
+     * @return width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the image height.
+     *
+     * @return height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+}
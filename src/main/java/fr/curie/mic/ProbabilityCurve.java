@@ -0,0 +1,273 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Pixel-level precision-recall and ROC curves of a probability map against a truth mask, for every threshold at once.
+ * <p>
+ * A single pass over the images builds the histograms of the probability over the truth foreground and over
+ * the truth background. Sweeping the thresholds from the highest bin down then gives TP (foreground at or
+ * above the threshold) and FP (background at or above the threshold) by cumulative sums, so the whole curve
+ * costs one pass instead of one comparison per threshold.
+ * </p>
+ * <p>
+ * 8 and 16-bit maps are binned on their raw values (256 and 65536 bins). 32-bit maps are binned over [0, 1] with
+ * the requested number of bins, values outside being clamped; NaN pixels are ignored. Any non-zero truth pixel
+ * is foreground. Curve points are kept only for the thresholds where the counts change.
+ * </p>
+ */
+public class ProbabilityCurve {
+    public static final int DEFAULT_BINS = 65536;
+
+    private final long foregroundTotal;
+    private final long backgroundTotal;
+    private final long ignored;
+    // curve points from the highest threshold to the lowest
+    private final double[] thresholds;
+    private final long[] tp;
+    private final long[] fp;
+
+    private ProbabilityCurve(long[] foreground, long[] background, double binWidth, long ignored) {
+        int nPoints = 0;
+        long foregroundTotal = 0;
+        long backgroundTotal = 0;
+        for (int bin = 0; bin < foreground.length; bin++) {
+            if (foreground[bin] + background[bin] > 0) nPoints++;
+            foregroundTotal += foreground[bin];
+            backgroundTotal += background[bin];
+        }
+        this.foregroundTotal = foregroundTotal;
+        this.backgroundTotal = backgroundTotal;
+        this.ignored = ignored;
+        thresholds = new double[nPoints];
+        tp = new long[nPoints];
+        fp = new long[nPoints];
+        long tpSum = 0;
+        long fpSum = 0;
+        int point = 0;
+        for (int bin = foreground.length - 1; bin >= 0; bin--) {
+            if (foreground[bin] + background[bin] == 0) continue;
+            tpSum += foreground[bin];
+            fpSum += background[bin];
+            thresholds[point] = bin * binWidth;
+            tp[point] = tpSum;
+            fp[point] = fpSum;
+            point++;
+        }
+    }
+
+    /**
+     * Builds the curves of a probability map.
+     *
+     * @param truth truth mask or label image
+     * @param probabilities probability map with the same dimensions (8, 16 or 32-bit)
+     * @param bins number of bins over [0, 1] for 32-bit maps, ignored otherwise
+     * @return the curves
+     */
+    public static ProbabilityCurve compute(ImagePlus truth, ImagePlus probabilities, int bins) {
+        if (truth.getWidth() != probabilities.getWidth() || truth.getHeight() != probabilities.getHeight()
+                || truth.getStackSize() != probabilities.getStackSize()) {
+            throw new IllegalArgumentException("The probability map must have the dimensions of the truth image");
+        }
+        int bitDepth = probabilities.getBitDepth();
+        if (bitDepth == 24) throw new IllegalArgumentException("RGB probability maps are not supported");
+        if (bitDepth == 32 && bins < 1) throw new IllegalArgumentException("The number of bins must be positive");
+        int nBins = bitDepth == 8 ? 256 : bitDepth == 16 ? 65536 : bins;
+        long[] foreground = new long[nBins];
+        long[] background = new long[nBins];
+        long ignored = 0;
+        ImageStack truthStack = truth.getImageStack();
+        ImageStack probabilityStack = probabilities.getImageStack();
+        for (int z = 1; z <= truthStack.getSize(); z++) {
+            ignored += add(truthStack.getProcessor(z), probabilityStack.getProcessor(z), foreground, background);
+        }
+        return new ProbabilityCurve(foreground, background, bitDepth == 32 ? 1.0 / nBins : 1, ignored);
+    }
+
+    /**
+     * Adds the pixels of one plane to the histograms.
+     *
+     * @return number of NaN pixels, which are not added
+     */
+    private static long add(ImageProcessor truth, ImageProcessor probabilities, long[] foreground, long[] background) {
+        int size = truth.getPixelCount();
+        Object pixels = probabilities.getPixels();
+        long ignored = 0;
+        if (pixels instanceof byte[]) {
+            byte[] values = (byte[]) pixels;
+            for (int i = 0; i < size; i++) {
+                if (truth.getf(i) != 0) foreground[values[i] & 0xff]++;
+                else background[values[i] & 0xff]++;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] values = (short[]) pixels;
+            for (int i = 0; i < size; i++) {
+                if (truth.getf(i) != 0) foreground[values[i] & 0xffff]++;
+                else background[values[i] & 0xffff]++;
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                float value = probabilities.getf(i);
+                if (Float.isNaN(value)) {
+                    ignored++;
+                    continue;
+                }
+                int bin = bin(value, foreground.length);
+                if (truth.getf(i) != 0) foreground[bin]++;
+                else background[bin]++;
+            }
+        }
+        return ignored;
+    }
+
+    /**
+     * Returns the bin of a 32-bit probability, values outside [0, 1] being clamped.
+     *
+     * @param value probability, not NaN
+     * @param bins number of bins over [0, 1]
+     * @return bin index, from 0 to bins - 1
+     */
+    static int bin(float value, int bins) {
+        if (value <= 0) return 0;
+        if (value >= 1) return bins - 1;
+        return Math.min(bins - 1, (int) (value * bins));
+    }
+
+    /**
+     * @return number of curve points, one per threshold where the counts change
+     */
+    public int size() {
+        return thresholds.length;
+    }
+
+    /**
+     * Returns the threshold of a curve point: pixels with a probability at or above it are predicted foreground.
+     *
+     * @param point curve point, from the highest threshold (0) to the lowest
+     * @return threshold, a raw value for 8 and 16-bit maps, the lower edge of a bin for 32-bit maps
+     */
+    public double getThreshold(int point) {
+        return thresholds[point];
+    }
+
+    /**
+     * Returns the pixel-level metrics of a curve point.
+     *
+     * @param point curve point, from the highest threshold (0) to the lowest
+     * @return TP, FP and FN at the threshold of the point
+     */
+    public Metrics getMetrics(int point) {
+        return new Metrics(tp[point], fp[point], foregroundTotal - tp[point]);
+    }
+
+    /**
+     * Returns the false positive rate (FP over truth background pixels) of a curve point.
+     *
+     * @param point curve point
+     * @return false positive rate, NaN without background pixel
+     */
+    public double getFalsePositiveRate(int point) {
+        return backgroundTotal > 0 ? (double) fp[point] / backgroundTotal : Double.NaN;
+    }
+
+    /**
+     * @return number of truth foreground pixels
+     */
+    public long getForegroundCount() {
+        return foregroundTotal;
+    }
+
+    /**
+     * @return number of truth background pixels
+     */
+    public long getBackgroundCount() {
+        return backgroundTotal;
+    }
+
+    /**
+     * @return number of NaN pixels of the probability map, which were ignored
+     */
+    public long getIgnoredCount() {
+        return ignored;
+    }
+
+    /**
+     * Computes the area under the ROC curve (recall against false positive rate) with the trapezoidal rule,
+     * from (0, 0) to the lowest threshold, where every pixel is predicted foreground.
+     *
+     * @return ROC AUC, NaN without foreground or background pixel
+     */
+    public double getRocAuc() {
+        if (foregroundTotal == 0 || backgroundTotal == 0) return Double.NaN;
+        double area = 0;
+        long previousTp = 0;
+        long previousFp = 0;
+        for (int point = 0; point < thresholds.length; point++) {
+            area += (double) (fp[point] - previousFp) * (tp[point] + previousTp) / 2;
+            previousTp = tp[point];
+            previousFp = fp[point];
+        }
+        return area / ((double) foregroundTotal * backgroundTotal);
+    }
+
+    /**
+     * Computes the average precision: the precision of each point weighted by the recall it adds.
+     *
+     * @return average precision, NaN without foreground pixel
+     */
+    public double getAveragePrecision() {
+        if (foregroundTotal == 0) return Double.NaN;
+        double sum = 0;
+        long previousTp = 0;
+        for (int point = 0; point < thresholds.length; point++) {
+            sum += (double) (tp[point] - previousTp) * tp[point] / (tp[point] + fp[point]);
+            previousTp = tp[point];
+        }
+        return sum / foregroundTotal;
+    }
+
+    /**
+     * Returns the curve point with the highest F1 measure; ties keep the highest threshold.
+     *
+     * @return best point, -1 if no point has a defined F1 measure
+     */
+    public int getBestF1Point() {
+        int best = -1;
+        double bestF1 = Double.NEGATIVE_INFINITY;
+        for (int point = 0; point < thresholds.length; point++) {
+            double f1 = getMetrics(point).getF1measure();
+            if (f1 > bestF1) {
+                bestF1 = f1;
+                best = point;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,274 @@
+/*-
+ * #%L
+ * MiC is an ImageJ plugin to compare segmentation masks
+ * %%
+ * Copyright (C) 2023 - 2024 Multimodal-Imaging-Center
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+package fr.curie.mic;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.gui.Plot;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+import java.awt.*;
+
+/**
+ * ImageJ plugin comparing a probability map to a truth mask at the pixel level for every threshold at once.
+ * <p>
+ * Instead of thresholding the map externally and running the comparator once per level, the precision-recall
+ * and ROC curves are built from one pass over the images ({@link ProbabilityCurve}). The plugin reports the
+ * ROC AUC, the average precision and the threshold with the best F1 measure, and optionally the full curve
+ * as a table and as graphs.
+ * </p>
+ * <p>
+ * Optionally, the objects of the thresholded map (8-connected components) are also compared to the truth
+ * objects for a range of probability thresholds, using the component tree of the map ({@link ComponentTreeSweep})
+ * instead of thresholding and labelling the map at each level.
+ * </p>
+ */
+public class ProbabilityMapComparator implements PlugIn {
+
+    /**
+     * Asks for the truth mask and the probability map, then computes and displays the curves.
+     *
+     * @param arg plugin argument (unused)
+     */
+    @Override
+    public void run(String arg) {
+        boolean useOpenImages = WindowManager.getImageCount() > 1;
+        GenericDialog gd = new GenericDialog("Probability map comparator");
+        String[] imageList = WindowManager.getImageTitles();
+        if (useOpenImages) {
+            gd.addChoice("Truth_mask_image", imageList, imageList[1]);
+            gd.addChoice("Probability_map_image", imageList, imageList[0]);
+        } else {
+            gd.addFileField("Truth_mask_path", "");
+            gd.addFileField("Probability_map_path (8, 16 or 32-bit)", "");
+        }
+        gd.addNumericField("Bins for 32-bit maps (over 0-1)", ProbabilityCurve.DEFAULT_BINS, 0);
+        gd.addCheckbox("Show_curve_table", true);
+        gd.addCheckbox("Show_graphs", true);
+        gd.addMessage("8 and 16-bit maps are thresholded on their raw values; any non-zero truth pixel is foreground");
+        gd.addMessage("--------------------------------------------------   object level   --------------------------------------------------");
+        gd.addCheckbox("Object_threshold_sweep (truth labels vs connected components of the map)", false);
+        gd.addNumericField("Minimum_probability_threshold", 0.05, 4);
+        gd.addNumericField("Maximum_probability_threshold", 0.95, 4);
+        gd.addNumericField("Increment_of_probability_threshold", 0.05, 4);
+        gd.addNumericField("Object_IoU_threshold (0-1)", 0.5, 2);
+        gd.addNumericField("Minimum_size_for_objects (pixels)", 0, 0);
+        gd.addMessage("object thresholds are probabilities (0-1), scaled to 0-255 and 0-65535 for 8 and 16-bit maps");
+        gd.showDialog();
+        if (gd.wasCanceled()) return;
+
+        ImagePlus truth;
+        ImagePlus probabilities;
+        if (useOpenImages) {
+            truth = WindowManager.getImage(gd.getNextChoice());
+            probabilities = WindowManager.getImage(gd.getNextChoice());
+        } else {
+            truth = IJ.openImage(gd.getNextString().trim());
+            probabilities = IJ.openImage(gd.getNextString().trim());
+        }
+        int bins = (int) gd.getNextNumber();
+        boolean showTable = gd.getNextBoolean();
+        boolean showGraphs = gd.getNextBoolean();
+        boolean objectSweep = gd.getNextBoolean();
+        double thresholdMin = gd.getNextNumber();
+        double thresholdMax = gd.getNextNumber();
+        double thresholdInc = gd.getNextNumber();
+        double iouThreshold = gd.getNextNumber();
+        double minSize = gd.getNextNumber();
+        if (truth == null || probabilities == null) {
+            IJ.error("Cannot open the truth mask or the probability map.");
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        ProbabilityCurve curve;
+        try {
+            curve = ProbabilityCurve.compute(truth, probabilities, bins);
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+        IJ.log("probability curve: " + curve.size() + " thresholds in " + (System.currentTimeMillis() - start) + " ms");
+        if (curve.getIgnoredCount() > 0) IJ.log(curve.getIgnoredCount() + " NaN pixels of the probability map were ignored");
+
+        ResultsTable summary = showSummary(curve, truth.getTitle(), probabilities.getTitle());
+        if (showTable) curveTable(curve).show("Probability curve");
+        if (showGraphs && curve.size() > 0) showGraphs(curve, probabilities.getShortTitle());
+
+        if (!objectSweep) return;
+        if (thresholdInc <= 0 || thresholdMax < thresholdMin) {
+            IJ.error("The probability thresholds must be increasing with a positive increment.");
+            return;
+        }
+        int nThresholds = (int) Math.floor((thresholdMax - thresholdMin) / thresholdInc + 1e-7) + 1;
+        double[] thresholds = new double[nThresholds];
+        for (int k = 0; k < nThresholds; k++) thresholds[k] = thresholdMin + k * thresholdInc;
+        start = System.currentTimeMillis();
+        Metrics[] objectMetrics;
+        try {
+            objectMetrics = ComponentTreeSweep.compute(truth, probabilities, thresholds, bins, iouThreshold, minSize);
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+        IJ.log("object threshold sweep: " + nThresholds + " thresholds in " + (System.currentTimeMillis() - start) + " ms");
+        addBestObjectF1(summary, thresholds, objectMetrics);
+        objectCurveTable(thresholds, objectMetrics).show("Probability object curve");
+        if (showGraphs) showObjectGraph(thresholds, objectMetrics, probabilities.getShortTitle(), iouThreshold);
+    }
+
+    /**
+     * Displays the summary of the curves in the "Probability map comparison" table, one row per comparison.
+     */
+    private static ResultsTable showSummary(ProbabilityCurve curve, String truthTitle, String probabilityTitle) {
+        ResultsTable rt = ResultsTable.getResultsTable("Probability map comparison");
+        if (rt == null) rt = new ResultsTable();
+        rt.incrementCounter();
+        rt.addValue("Truth", truthTitle);
+        rt.addValue("Probability map", probabilityTitle);
+        rt.addValue("Foreground pixels", curve.getForegroundCount());
+        rt.addValue("Background pixels", curve.getBackgroundCount());
+        rt.addValue("ROC AUC", curve.getRocAuc());
+        rt.addValue("AP", curve.getAveragePrecision());
+        int best = curve.getBestF1Point();
+        Metrics metrics = best < 0 ? new Metrics(0, 0, 0) : curve.getMetrics(best);
+        rt.addValue("Best F1 threshold", best < 0 ? Double.NaN : curve.getThreshold(best));
+        rt.addValue("Best F1", metrics.getF1measure());
+        rt.addValue("Precision at best F1", metrics.getPrecision());
+        rt.addValue("Recall at best F1", metrics.getRecall());
+        rt.show("Probability map comparison");
+        return rt;
+    }
+
+    /**
+     * Adds the probability threshold with the best object F1 measure to the last row of the summary table.
+     */
+    private static void addBestObjectF1(ResultsTable rt, double[] thresholds, Metrics[] metrics) {
+        int best = -1;
+        for (int k = 0; k < metrics.length; k++) {
+            double f1 = metrics[k].getF1measure();
+            if (!Double.isNaN(f1) && (best < 0 || f1 > metrics[best].getF1measure())) best = k;
+        }
+        rt.addValue("Best object F1 threshold", best < 0 ? Double.NaN : thresholds[best]);
+        rt.addValue("Best object F1", best < 0 ? Double.NaN : metrics[best].getF1measure());
+        rt.show("Probability map comparison");
+    }
+
+    /**
+     * Builds the table of the object-level metrics, one row per probability threshold.
+     */
+    private static ResultsTable objectCurveTable(double[] thresholds, Metrics[] metrics) {
+        ResultsTable rt = new ResultsTable();
+        for (int k = 0; k < thresholds.length; k++) {
+            rt.incrementCounter();
+            rt.addValue("Threshold", thresholds[k]);
+            rt.addValue("TP", metrics[k].getTP());
+            rt.addValue("FP", metrics[k].getFP());
+            rt.addValue("FN", metrics[k].getFN());
+            rt.addValue("Precision", metrics[k].getPrecision());
+            rt.addValue("Recall", metrics[k].getRecall());
+            rt.addValue("F1", metrics[k].getF1measure());
+            rt.addValue("PQ", metrics[k].getPanopticQuality());
+        }
+        return rt;
+    }
+
+    /**
+     * Displays the object-level precision, recall and F1 measure against the probability threshold.
+     */
+    private static void showObjectGraph(double[] thresholds, Metrics[] metrics, String title, double iouThreshold) {
+        double[] precision = new double[thresholds.length];
+        double[] recall = new double[thresholds.length];
+        double[] f1 = new double[thresholds.length];
+        for (int k = 0; k < thresholds.length; k++) {
+            precision[k] = metrics[k].getPrecision();
+            recall[k] = metrics[k].getRecall();
+            f1[k] = metrics[k].getF1measure();
+        }
+        Plot plot = new Plot(title + " objects (IoU=" + IJ.d2s(iouThreshold, 2) + ")", "probability threshold", "score");
+        plot.setColor(Color.RED);
+        plot.add("line", thresholds, precision);
+        plot.setColor(Color.GREEN);
+        plot.add("line", thresholds, recall);
+        plot.setColor(Color.BLUE);
+        plot.add("line", thresholds, f1);
+        plot.addLegend("precision\trecall\tF1");
+        if (thresholds.length > 1) plot.setLimits(thresholds[0], thresholds[thresholds.length - 1], 0, 1.05);
+        plot.show();
+    }
+
+    /**
+     * Builds the table of the curve, one row per threshold from the highest to the lowest.
+     */
+    private static ResultsTable curveTable(ProbabilityCurve curve) {
+        ResultsTable rt = new ResultsTable();
+        for (int point = 0; point < curve.size(); point++) {
+            Metrics metrics = curve.getMetrics(point);
+            rt.incrementCounter();
+            rt.addValue("Threshold", curve.getThreshold(point));
+            rt.addValue("TP", metrics.getTP());
+            rt.addValue("FP", metrics.getFP());
+            rt.addValue("FN", metrics.getFN());
+            rt.addValue("Precision", metrics.getPrecision());
+            rt.addValue("Recall", metrics.getRecall());
+            rt.addValue("FPR", curve.getFalsePositiveRate(point));
+            rt.addValue("F1", metrics.getF1measure());
+        }
+        return rt;
+    }
+
+    /**
+     * Displays the precision-recall and ROC curves.
+     */
+    private static void showGraphs(ProbabilityCurve curve, String title) {
+        int n = curve.size();
+        double[] precision = new double[n];
+        double[] recall = new double[n];
+        double[] falsePositiveRate = new double[n];
+        for (int point = 0; point < n; point++) {
+            Metrics metrics = curve.getMetrics(point);
+            precision[point] = metrics.getPrecision();
+            recall[point] = metrics.getRecall();
+            falsePositiveRate[point] = curve.getFalsePositiveRate(point);
+        }
+        Plot pr = new Plot(title + " precision-recall", "recall", "precision");
+        pr.setColor(Color.BLUE);
+        pr.add("line", recall, precision);
+        pr.addLegend("AP = " + IJ.d2s(curve.getAveragePrecision(), 4));
+        pr.setLimits(0, 1, 0, 1.05);
+        pr.show();
+
+        Plot roc = new Plot(title + " ROC", "false positive rate", "recall");
+        roc.setColor(Color.RED);
+        roc.add("line", falsePositiveRate, recall);
+        roc.addLegend("AUC = " + IJ.d2s(curve.getRocAuc(), 4));
+        roc.setLimits(0, 1, 0, 1.05);
+        roc.show();
+    }
+}